@@ -0,0 +1,85 @@
+package socialNetwork;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A download in chunks: the server reads the photo and cuts it into chunks (ClientHandler.generateAPDUs),
+ * and the client writes the chunks to the file at their offsets (ChunkReceiver).
+ * generateAPDUs is private, so it is called through a method handle, which the JIT inlines like a call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+
+	private static final MethodHandle GENERATE_APDUS = lookupGenerateAPDUs();
+
+	@Param({"50000", "2000000"})
+	public int fileBytes;
+
+	private Path dir;
+	private String photo;
+	private Message[] APDUs;
+	private FileChannel received;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Throwable {
+		this.dir = Files.createTempDirectory("download-benchmark");
+		this.photo = Fixtures.photo(this.dir, this.fileBytes).toString();
+		this.APDUs = (Message[])GENERATE_APDUS.invokeExact(this.photo);
+		this.received = FileChannel.open(this.dir.resolve("received.jpg"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		this.received.close();
+		Fixtures.delete(this.dir);
+	}
+
+	@Benchmark
+	public Message[] generateAPDUs() throws Throwable {
+		return (Message[])GENERATE_APDUS.invokeExact(this.photo);
+	}
+
+	//all the chunks in order, written to the same file every time
+	@Benchmark
+	public int receiveChunks() throws Exception {
+		ChunkReceiver receiver = new ChunkReceiver(this.received);
+		for(Message APDU : this.APDUs)
+			receiver.accept(APDU);
+		return receiver.getInOrder();
+	}
+
+	private static MethodHandle lookupGenerateAPDUs() {
+		try {
+			return MethodHandles.privateLookupIn(ClientHandler.class, MethodHandles.lookup())
+					.findStatic(ClientHandler.class, "generateAPDUs", MethodType.methodType(Message[].class, String.class));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/*
+ * The data that the benchmarks are run on. It is built from a fixed seed, so every run
+ * measures the same graph and the same files.
+ */
+class Fixtures {
+
+	static final int DEGREE = 50; // the users that every user follows.
+
+	//a graph of n users, named user0 to user<n-1>, where every user follows DEGREE others at random
+	static SocialGraph graph(int n) {
+		Random random = new Random(1);
+		SocialGraph graph = new SocialGraph(new SymbolTable());
+		for(int i = 0; i < n; i++)
+			graph.addUser("user" + i);
+		int degree = Math.min(DEGREE, n - 1);
+		for(int i = 0; i < n; i++) {
+			for(int j = 0; j < degree; j++) {
+				int followed = random.nextInt(n);
+				if(followed != i)
+					graph.addFollower("user" + followed, "user" + i);
+			}
+		}
+		return graph;
+	}
+
+	//a file of random bytes of this size
+	static Path photo(Path dir, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		new Random(1).nextBytes(bytes);
+		return Files.write(dir.resolve("photo" + size + ".jpg"), bytes);
+	}
+
+	//a ServerDirectory where every one of the n users has two photos with captions in two languages
+	static Path serverDirectory(Path dir, int n) throws IOException {
+		Path root = dir.resolve("ServerDirectory");
+		for(int i = 0; i < n; i++) {
+			Path folder = Files.createDirectories(root.resolve("user" + i));
+			for(int photo = 0; photo < 2; photo++) {
+				Files.write(folder.resolve("photo" + photo + ".jpg"), new byte[16]);
+				for(String language : new String[] {"ENG", "GR"})
+					Files.write(folder.resolve(MediaCatalog.captionName("photo" + photo, language)), language.getBytes());
+			}
+		}
+		return root;
+	}
+
+	static void delete(Path dir) throws IOException {
+		if(dir == null)
+			return;
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
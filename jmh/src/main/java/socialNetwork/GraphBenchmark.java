@@ -0,0 +1,60 @@
+package socialNetwork;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The operations of the social graph behind the requests: a follow and its unfollow, as
+ * ClientHandler.updateGraph makes them, and the replies to Get following and Pull Users.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+
+	@Param({"1000", "10000"})
+	public int users;
+
+	private SocialGraph graph;
+	private String user;
+	private String other;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.graph = Fixtures.graph(this.users);
+		this.user = "user" + (this.users / 2);
+		this.other = "user" + (this.users / 2 + 1);
+	}
+
+	//the unfollow undoes the follow, so every operation starts from the same graph
+	@Benchmark
+	public void updateGraph(Blackhole blackhole) {
+		blackhole.consume(this.graph.addFollower(this.user, this.other));
+		blackhole.consume(this.graph.removeFollower(this.user, this.other));
+	}
+
+	@Benchmark
+	public String getFollowing() {
+		return ClientHandler.following(this.graph, this.user);
+	}
+
+	@Benchmark
+	public String pullUsers() {
+		return ClientHandler.notFollowing(this.graph, this.user);
+	}
+}
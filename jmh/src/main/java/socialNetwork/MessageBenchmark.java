@@ -0,0 +1,63 @@
+package socialNetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A chunk of a download (a tenth of the file) encoded and decoded, in the binary protocol
+ * (FrameCodec) and with serialization, as the object streams of an old client send it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	@Param({"50000", "2000000"})
+	public int fileBytes;
+
+	private Message chunk;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		byte[] bytes = new byte[this.fileBytes / 10];
+		new Random(1).nextBytes(bytes);
+		this.chunk = new Message("File Chunk", "10", bytes, 1);
+	}
+
+	@Benchmark
+	public Message binary() throws Exception {
+		ByteBuffer frame = FrameCodec.encodeMessage(this.chunk);
+		int length = frame.getInt();
+		frame.get(); // the kind of the frame.
+		return FrameCodec.decodeMessage(frame, length);
+	}
+
+	@Benchmark
+	public Message serialized() throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(this.fileBytes / 10 + 256);
+		ObjectOutputStream stream = new ObjectOutputStream(buffer);
+		stream.writeObject(this.chunk);
+		stream.close();
+		return (Message)new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray())).readObject();
+	}
+}
@@ -0,0 +1,60 @@
+package socialNetwork;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A search of a caption among the users that a user follows, over a synthetic ServerDirectory
+ * that the MediaCatalog has read (see Fixtures.serverDirectory).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+	@Param({"1000", "10000"})
+	public int users;
+
+	private Path dir;
+	private MediaCatalog catalog;
+	private Set<String> following;
+	private String caption;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this.dir = Files.createTempDirectory("search-benchmark");
+		this.catalog = new MediaCatalog();
+		this.catalog.load(Fixtures.serverDirectory(this.dir, this.users).toString());
+		this.following = Fixtures.graph(this.users).getFollowing("user" + (this.users / 2));
+		this.caption = MediaCatalog.captionName("photo1", "ENG");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		Fixtures.delete(this.dir);
+	}
+
+	@Benchmark
+	public ArrayList<String> search() {
+		return this.catalog.search(this.caption, this.following);
+	}
+}
@@ -0,0 +1,56 @@
+package socialNetwork;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A Bloom filter of strings. mightContain never answers false for a string that was added,
+ * and answers true for a string that was not added with a small probability (about 1% while
+ * no more than the expected number of strings have been added). The bits are set atomically,
+ * so several threads can add and query at the same time.
+ */
+public class BloomFilter {
+
+	private static final int HASHES = 7; // number of bits of a string, optimal for 1% false positives.
+
+	private final AtomicLongArray bits;
+	private final long size; // number of bits.
+
+	public BloomFilter(int expected) {
+		long bitCount = Math.max(64, (long)Math.ceil(-Math.max(1, expected) * Math.log(0.01) / (Math.log(2) * Math.log(2))));
+		this.bits = new AtomicLongArray((int)((bitCount + 63) / 64));
+		this.size = this.bits.length() * 64L;
+	}
+
+	public void add(String s) {
+		long h1 = mix(s.hashCode());
+		long h2 = mix(h1) | 1;
+		for(int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h1 + i * h2, this.size);
+			int word = (int)(bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			while(((old = this.bits.get(word)) & mask) == 0 && !this.bits.compareAndSet(word, old, old | mask));
+		}
+	}
+
+	public boolean mightContain(String s) {
+		long h1 = mix(s.hashCode());
+		long h2 = mix(h1) | 1;
+		for(int i = 0; i < HASHES; i++) {
+			long bit = Math.floorMod(h1 + i * h2, this.size);
+			if((this.bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	//spreads the bits of a hash (the finalizer of MurmurHash3)
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
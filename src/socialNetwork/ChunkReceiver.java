@@ -0,0 +1,70 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * The receiving side of a download in chunks (see SlidingWindowSender and ClientHandler.generateAPDUs). Every chunk
+ * is written to the file at its offset as soon as it arrives, so the photo is not kept in memory and nothing is
+ * put together at the end. The data of a chunk is the number of chunks, and all the chunks but the last have the
+ * same size, so the offset of a chunk is its sequence times the size of the others. The last chunk waits in memory
+ * only if it arrives before all the others.
+ */
+public class ChunkReceiver {
+
+	private final FileChannel file;
+	private boolean[] received; // null until the first chunk tells how many there are.
+	private long chunkSize = -1; // the size of every chunk but the last, -1 until one of them arrives.
+	private byte[] last; // the last chunk, while its offset is not known.
+	private int next = 0; // the first chunk that has not been received.
+
+	public ChunkReceiver(FileChannel file) {
+		this.file = file;
+	}
+
+	//writes a chunk to the file and returns true, or returns false if it was received already or is not one of ours
+	public boolean accept(Message chunk) throws IOException {
+		if(this.received == null)
+			this.received = new boolean[Integer.parseInt(chunk.getData().trim())];
+		int seq = chunk.getSequence();
+		if(seq < 0 || seq >= this.received.length || this.received[seq])
+			return false;
+
+		byte[] bytes = chunk.getChunk();
+		if(seq < this.received.length - 1) {
+			this.chunkSize = bytes.length;
+			this.write(bytes, seq * this.chunkSize);
+			if(this.last != null) {
+				this.write(this.last, (this.received.length - 1) * this.chunkSize);
+				this.last = null;
+			}
+		}
+		else if(seq == 0 || this.chunkSize >= 0) {
+			this.write(bytes, seq * Math.max(0, this.chunkSize));
+		}
+		else {
+			this.last = bytes;
+		}
+
+		this.received[seq] = true;
+		while(this.next < this.received.length && this.received[this.next])
+			this.next++;
+		return true;
+	}
+
+	//the number of chunks received in order, which every ACK carries
+	public int getInOrder() {
+		return this.next;
+	}
+
+	public boolean isComplete() {
+		return this.received != null && this.next == this.received.length;
+	}
+
+	private void write(byte[] bytes, long offset) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining())
+			offset += this.file.write(buffer, offset);
+	}
+}
@@ -1,37 +1,53 @@
 package socialNetwork;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
 
 
 public class Client {
 
+	private static final int UPLOAD_BUFFER = 64 * 1024; // bytes of a file that are read at once when it is uploaded.
+
 	private Socket socket;
-	private ObjectInputStream 	in = null;
-	private ObjectOutputStream out = null;
+	private MessageChannel channel = null;//connection with the server (see MessageChannel)
 	private String clientID;//clients ID and username
-	private ArrayList<String> following;//list to store the user's the client is following
-	private ArrayList<String> followers;//list to store the user's that follow the client
+	/*
+	 The lists below are changed by the Listener while the menu reads them, so they are copy on write lists: the menu
+	 iterates over a copy that does not change under it, and the changes are rare.
+	*/
+	private final List<String> following;//list to store the user's the client is following
+	private final List<String> followers;//list to store the user's that follow the client
 	private final ArrayBlockingQueue<Message> incMessages;//list used for storing each incoming Message(see Listener Class)
-	private final ArrayList<String> followRequests;//list to store all the followRequests so that the user can interact with them(accept/reject them)
-	private final ArrayList<String> CommentRequestsForClient;
+	private final ArrayBlockingQueue<Message> transfers;//the messages of a download, which the Listener keeps apart (see download)
+	private final List<String> followRequests;//list to store all the followRequests so that the user can interact with them(accept/reject them)
+	private final List<String> CommentRequestsForClient;
+	private FeedWriter feed;//our feed and profile, which the Listener writes too (see FeedWriter)
 
 	private Listener incomingRequestsHandler;
+	private int lastRequestId = 0;//number of the last request sent. The replies of the server carry the number of their request
 	
 	public Client() {
-		this.followRequests = new ArrayList<String>();
-		this.following = new ArrayList<>();
-		this.followers = new ArrayList<>();
-		this.incMessages = new ArrayBlockingQueue<>(5);
-		this.CommentRequestsForClient = new ArrayList<>();
+		this.followRequests = new CopyOnWriteArrayList<>();
+		this.following = new CopyOnWriteArrayList<>();
+		this.followers = new CopyOnWriteArrayList<>();
+		this.incMessages = new ArrayBlockingQueue<>(64);
+		this.transfers = new ArrayBlockingQueue<>(64); // room for a window of download packets and their retransmissions.
+		this.CommentRequestsForClient = new CopyOnWriteArrayList<>();
 		this.connect();
 		this.initListener();
 	}
@@ -40,32 +56,60 @@ public class Client {
 	 Used to start the listener thread which is used to handle certain input messages and store all incoming Messages in the incMessages ArrayBlockingQueue
 	*/
 	private void initListener() {
-		incomingRequestsHandler = new Listener(this.in, this.incMessages, this.followRequests, this.following, this.followers,this.CommentRequestsForClient);
-		Thread listenerThread = new Thread(incomingRequestsHandler);
-		listenerThread.start();
+		incomingRequestsHandler = new Listener(this.channel, this.incMessages, this.transfers, this.followRequests, this.following, this.followers,this.CommentRequestsForClient);
+		Threads.start("listener", incomingRequestsHandler);
 	}
 	
 	/*
-	 Notifier class used as a "timer" in order to check if we have a notification every 2s.
+	 By default we send a Subscribe message and the server pushes every notification to the listener as soon as it is produced,
+	 so an idle client sends nothing. With --client.notify=poll (the default when the server only speaks object streams, which may be an
+	 old server) the Notifier class is used as a "timer" in order to check if we have a notification every 2s.
 	*/
-	private void initNotifier() {
-		Notifier notifyClientHandler = new Notifier(this.out, this.clientID);
-		Thread notifyThread = new Thread(notifyClientHandler);
-		notifyThread.start();
+	private void initNotifier() throws IOException {
+		String mode = Settings.get("client.notify", this.channel instanceof FramedMessageChannel ? "push" : "poll");
+		if(mode.equals("push")) {
+			this.send(new Message("Subscribe", "", this.clientID));
+			return;
+		}
+		Notifier notifyClientHandler = new Notifier(this.channel, this.clientID, this.incomingRequestsHandler);
+		Threads.start("notifier", notifyClientHandler);
 	}
 	
+	/*
+	 The socket is opened through a SocketChannel, so downloads can be written to a file from the socket directly.
+	 By default the client offers the binary protocol (see FrameCodec). A server that does not answer it is an
+	 old one, so the client connects again and sends the messages as a plain object stream. The option
+	 --client.transport=stream skips the binary protocol.
+	*/
 	private void connect() {
 		try {
-			this.socket = new Socket("localhost",5000);
-			this.out 	= new ObjectOutputStream(this.socket.getOutputStream());
-			this.in 	= new ObjectInputStream(this.socket.getInputStream());
-			
+			this.socket = SocketChannel.open(new InetSocketAddress("localhost",5000)).socket();
+			if(Settings.get("client.transport", "binary").equals("binary")) {
+				try {
+					this.channel = new FramedMessageChannel(this.socket);
+					return;
+				}
+				catch (IOException e) {
+					System.out.println("The server does not support the binary protocol, using object streams");
+					this.socket.close();
+					this.socket = SocketChannel.open(new InetSocketAddress("localhost",5000)).socket();
+				}
+			}
+			this.channel = new StreamMessageChannel(this.socket);
 		} 
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/*
+	 Sends a message to the server with the number of a new request
+	*/
+	private void send(Message m) throws IOException {
+		m.setRequestId(++this.lastRequestId);
+		this.channel.send(m);
+	}
+	
 	/*
 	 We ask from the user to give us his username and password and then send them to the server to store the information and sign up the user
 	 (if the username is already in used then the sign up is failed)
@@ -79,8 +123,7 @@ public class Client {
 			String password = input.nextLine();
 			Message msg = new Message("Sign up", password, userName);
 			try {
-				this.out.writeObject(msg);
-				this.out.flush();
+				this.send(msg);
 				Message m = this.incMessages.take();
 				while(true) {
 					if(m.getHeader().equals("Sing up reply"))
@@ -111,8 +154,7 @@ public class Client {
 			String password = input.nextLine();
 			Message msg = new Message("Login", password, userName);
 			try {
-				this.out.writeObject(msg);
-				this.out.flush();
+				this.send(msg);
 				Message m = this.incMessages.take();
 				
 				while(true) {
@@ -124,7 +166,6 @@ public class Client {
 				
 				if(m.getHeader().equals("Login success")) {
 					setClientID(userName);
-					this.initNotifier();
 					System.out.println(m.getData());
 					break;
 				}
@@ -152,8 +193,7 @@ public class Client {
 	*/
 	private void initFollowers() {
 		try {
-			this.out.writeObject(new Message("Get followers","",this.clientID));
-			this.out.flush();
+			this.send(new Message("Get followers","",this.clientID));
 
 			Message reply = this.incMessages.take();
 			while(true) {
@@ -181,8 +221,7 @@ public class Client {
 	*/
 	private void initFollowing() {
 		try {
-			this.out.writeObject(new Message("Get following","",clientID));
-			this.out.flush();
+			this.send(new Message("Get following","",clientID));
 
 			Message reply = this.incMessages.take();
 			while(true) {
@@ -222,8 +261,7 @@ public class Client {
 	*/
 	private void follow() {
 		try {
-			this.out.writeObject(new Message("Pull Users","",clientID));
-			this.out.flush();
+			this.send(new Message("Pull Users","",clientID));
 
 			Message reply = this.incMessages.take();
 			while(true) {
@@ -245,8 +283,7 @@ public class Client {
 				return;
 			else {
 				Message msg = new Message("Follow request",userToFollow,clientID);
-				this.out.writeObject(msg);
-				this.out.flush();
+				this.send(msg);
 			}
 		}
 		catch (IOException | InterruptedException e) {
@@ -267,8 +304,7 @@ public class Client {
 		Message m = new Message("Unfollow", toUnfollow, this.clientID);
 		this.following.remove(toUnfollow);
 		try {
-			this.out.writeObject(m);
-			this.out.flush();
+			this.send(m);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -282,6 +318,8 @@ public class Client {
 		-We get the caption for the file(not obligatory)
 		-We update our Profile with this new post(we append the ProfileXclientID.txt file and write the new post)
 		-We synchronize our ClientDirectory with our directory in the ServerDirectory sending the specified photo file, the caption file, and our Profile file
+	 By default (--client.sync=delta, when the server speaks the binary protocol) only the new post is sent instead of the whole Profile (see syncPost).
+	 With --client.sync=full the whole Profile is sent, as an old server expects.
 	*/
 	private void uploadAndSync() throws IOException {
 		//Display repository and upload a file to the client directory.
@@ -359,56 +397,153 @@ public class Client {
 
 		post = new Post("ID"+postID, this.clientID, fileNameWithoutExtension, captionFiles[0],captionFiles[1],new Date());
 
+		String mode = Settings.get("client.sync", this.channel instanceof FramedMessageChannel ? "delta" : "full");
+		if(mode.equals("delta")) {
+			this.syncPost(fileName, captionFiles, post);
+			return;
+		}
 
-		FileWriter fw 		= new FileWriter(dirPath+"Profile_998"+this.clientID+".txt",true);
-		BufferedWriter bw 	= new BufferedWriter(fw);
-		bw.append(post.toString());
-		bw.close();
+		this.feed.appendProfile(post.toString());
 	
 		
 		//synchronize direcotry to server
 		Message synch = new Message("Synchronization", fileName, this.clientID);
-		this.out.writeObject(synch);
-		
-		DataOutputStream dos = new DataOutputStream(this.socket.getOutputStream());
-		
+		synch.setRequestId(++this.lastRequestId);
+		DataOutputStream dos = this.channel.beginRaw(synch);
 		File photoToSynch = new File(dirPath+fileName);
-		FileInputStream fis = new FileInputStream(photoToSynch);
-		byte[] data = new byte[(int)photoToSynch.length()];
+		dos.writeInt((int)photoToSynch.length());
+		writeFile(dos, photoToSynch, 0);
+		this.writeCaptions(dos, captionFiles);
+
+		File profileToSynch = new File(dirPath+"Profile_998"+this.clientID+".txt");
+		FileInputStream fis = new FileInputStream(profileToSynch);
+		byte[] data = new byte[(int)profileToSynch.length()];
 		fis.read(data);
+		fis.close();
 		dos.writeInt(data.length);
 		dos.write(data);
-		
-		File captionToSynch = null;
+		this.channel.endRaw();
+	}
 
+	/*
+	 Sends the caption files of a new post (an empty name and a length of 0 for a missing caption).
+	*/
+	private void writeCaptions(DataOutputStream dos, String[] captionFiles) throws IOException {
+		String dirPath = "ClientDirectory/"+this.clientID+"/";
 		for(int i=0;i<2;i++) {
 			if (!captionFiles[i].equals("")) {
-				captionToSynch = new File(dirPath + captionFiles[i]);
-				fis = new FileInputStream(captionToSynch);
-				data = new byte[(int) captionToSynch.length()];
-				fis.read(data);
+				File captionToSynch = new File(dirPath + captionFiles[i]);
 				dos.writeUTF(captionFiles[i]);
-				dos.writeInt(data.length);
-				dos.write(data);
+				dos.writeInt((int)captionToSynch.length());
+				writeFile(dos, captionToSynch, 0);
 			} else {
 				dos.writeUTF("");
 				dos.writeInt(0);
 			}
 		}
+	}
 
-		File profileToSynch = new File(dirPath+"Profile_998"+this.clientID+".txt");
-		fis = new FileInputStream(profileToSynch);
-		data = new byte[(int)profileToSynch.length()];
-		fis.read(data);
-		fis.close();
-		dos.writeInt(data.length);
-		dos.write(data);
+	/*
+	 Sends a file from an offset to its end through a buffer of UPLOAD_BUFFER bytes, so a file of any size is never read whole into memory.
+	*/
+	private static void writeFile(DataOutputStream dos, File file, long offset) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			fis.skipNBytes(offset);
+			byte[] buffer = new byte[UPLOAD_BUFFER];
+			int n;
+			while((n = fis.read(buffer)) > 0)
+				dos.write(buffer, 0, n);
+		}
+		finally {
+			fis.close();
+		}
+	}
+
+	//the CRC-32 of a file, which tells the server which part file an upload continues (see UserFiles.partFile)
+	private static int checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[UPLOAD_BUFFER];
+			int n;
+			while((n = fis.read(buffer)) > 0)
+				crc.update(buffer, 0, n);
+		}
+		finally {
+			fis.close();
+		}
+		return (int)crc.getValue();
+	}
+
+	//waits for the reply with a header. The other messages that arrive meanwhile are put back for their readers
+	private Message awaitReply(String header) throws InterruptedException {
+		Message reply = this.incMessages.take();
+		while(!reply.getHeader().equals(header)) {
+			this.incMessages.add(reply);
+			reply = this.incMessages.take();
+		}
+		return reply;
+	}
+
+	/*
+	 Sends the photo, the captions and only the new post, with the length of our Profile before the post (its version).
+	 The server appends the post to its copy and replies with what our Profile is missing: nothing ("OK"), the
+	 comments that were approved since our last upload ("Behind"), or its whole Profile when ours differs ("Reset").
+	 We then append what we received and the post, so our Profile is again the same as the server's.
+	 The version is read and sent under the lock of the FeedWriter, so the Listener cannot append an approved comment
+	 in between, and a comment that the Listener appends before the reply arrives is not written twice (see applySync).
+	 Before that we ask the server how much of the photo it already has, which is more than 0 when an upload of the
+	 same photo was cut off (the connection was lost, the client was closed), and we send only the rest.
+	*/
+	private void syncPost(String fileName, String[] captionFiles, Post post) throws IOException {
+		File photo = new File("ClientDirectory/"+this.clientID+"/"+fileName);
+		byte[] record = post.toString().getBytes();
+		long size = photo.length();
+		int crc = checksum(photo);
+
+		try {
+			this.send(new Message("Upload offset", size + " " + Integer.toHexString(crc) + " " + fileName, this.clientID));
+			long offset = Long.parseLong(this.awaitReply("Upload offset reply").getData());
+			if(offset > 0)
+				System.out.println("Continuing the upload of " + fileName + " from byte " + offset + " of " + size);
+
+			Message synch = new Message("Sync post", fileName, this.clientID);
+			synch.setRequestId(++this.lastRequestId);
+			DataOutputStream dos = this.channel.beginRaw(synch);
+			dos.writeLong(size);
+			dos.writeInt(crc);
+			dos.writeLong(offset);
+			writeFile(dos, photo, offset);
+			this.writeCaptions(dos, captionFiles);
+			long version = this.feed.lockProfile();
+			try {
+				dos.writeLong(version);
+				dos.writeInt(record.length);
+				dos.write(record);
+				this.channel.endRaw();
+			}
+			finally {
+				this.feed.unlockProfile();
+			}
+
+			Message reply = this.awaitReply("Sync post reply");
+			String data = reply.getData();
+			int newLine = data.indexOf('\n');
+			String status = data.substring(0, newLine).split(" ")[0];
+			byte[] missing = data.substring(newLine + 1).getBytes(StandardCharsets.ISO_8859_1);
+
+			this.feed.applySync(version, status.equals("Reset"), missing, record);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 
 
 	private void otherPosts(){
 		BufferedReader reader = null;
 		try {
+			this.feed.flush(); // the posts that the Listener received in the last ms.
 			reader = new BufferedReader(new FileReader("ClientDirectory/"+this.clientID+"/Others_998"+this.clientID+".txt"));
 			String line;
 			String feed = "\n";
@@ -438,8 +573,7 @@ public class Client {
 
 		try {
 			Message m = new Message("Access Profile",clientToAccess,clientID);
-			this.out.writeObject(m);
-			this.out.flush();
+			this.send(m);
 
 			Message profileToAcess = this.incMessages.take();
 
@@ -493,8 +627,7 @@ public class Client {
 			
 			Message m = new Message("Search",photoName+","+captionLanguage,clientID);
 			
-			this.out.writeObject(m);
-			this.out.flush();
+			this.send(m);
 
 			Message reply = this.incMessages.take();
 			
@@ -532,10 +665,14 @@ public class Client {
 	 	-We first use the search method to learn the photo name the user wants to download and which user(s) has this photo
 		-Secondly we execute the 3-way handshake sending a Download Request Message first,then receiving a Download accept Message 
 		 and lastly sending the Download Message which holds the photo name and the name of the user which has the photo
-		-Then we execute the Stop and Wait protocol sending an ACK when receiving a chunk of the file.(we delay sending the 6th ACK as explained in the Instructions given)
+		-Then we receive the chunks of the file sending an ACK for each of them as soon as it arrives (see SlidingWindowSender), and each chunk is written
+		 to the photo at its place (see ChunkReceiver). With --client.ackDelay=ms we delay sending the 6th ACK as explained in the Instructions given
+		 With --client.download=stream (the default) we send a Download stream Message instead and the server sends the whole photo
+		 in one go, which the listener writes straight to our ClientDirectory. --client.download=chunks keeps the chunks
 		-We receive the caption file 
 		-We store them in our ClientDirectory 
-
+	 The messages of the download come through the transfers queue, not incMessages, so we wait for each of them without
+	 going through the replies of the menu. A copy of a chunk that arrives late is dropped.
 	*/
 	private void download() {
 		String[] data = search();
@@ -549,23 +686,18 @@ public class Client {
 		String captionName = data[2];
 		String[] clientsWithPhoto = tmp.split("\\s+");
 		Message toDownload = null;
+		boolean streamed = Settings.get("client.download", "stream").equals("stream");
+		String downloadHeader = streamed ? "Download stream" : "Download";
 
 		try {
 			
 			if(clientsWithPhoto.length == 1) {
 	
 				Message m = new Message("Download request", "", "");
-				this.out.writeObject(m);
-				this.out.flush();
-
-				Message downloadAnswer = this.incMessages.take();
-				while(true) {
-					if(downloadAnswer.getHeader().equals("Download accept")) 
-						break;
-					this.incMessages.add(downloadAnswer);
-					downloadAnswer = this.incMessages.take();
-				}
-				toDownload = new Message("Download", captionName, clientsWithPhoto[0]);
+				this.transfers.clear(); // late chunks of the last download.
+				this.send(m);
+				this.awaitTransfer(Opcode.DOWNLOAD_ACCEPT);
+				toDownload = new Message(downloadHeader, captionName, clientsWithPhoto[0]);
 			}
 			
 			else {
@@ -573,67 +705,62 @@ public class Client {
 				int randomClient = rand.nextInt(clientsWithPhoto.length-1);
 
 				Message m = new Message("Download request", "", "");
-				this.out.writeObject(m);
-				this.out.flush();
+				this.transfers.clear(); // late chunks of the last download.
+				this.send(m);
+				this.awaitTransfer(Opcode.DOWNLOAD_ACCEPT);
 
-				Message downloadAnswer = this.incMessages.take();
-				while(true) {
-					if(downloadAnswer.getHeader().equals("Download accept")) 
-						break;
-					this.incMessages.add(downloadAnswer);
-					downloadAnswer = this.incMessages.take();
-				}
-
-				toDownload = new Message("Download", captionName, clientsWithPhoto[randomClient]);
+				toDownload = new Message(downloadHeader, captionName, clientsWithPhoto[randomClient]);
 			}
 			
-			this.out.writeObject(toDownload);
-			this.out.flush();
-
-			int seq = 0;
-			int received = 0;
-			ArrayList<Byte[]> chunks = new ArrayList<>();
-			while(received < 10) {
-				Message chunk = this.incMessages.take();
-				while(true) {
-					if(chunk.getHeader().equals("File Chunk")) 
-						break;
-					this.incMessages.add(chunk);
-					chunk = this.incMessages.take();
-				}
-				System.out.println("Received packet " + received + " with sequence " + chunk.getSequence());
-				if(chunk.getSequence() == seq) {
-					Message ack = new Message("Ack", seq);
-					this.out.writeObject(ack);
-					this.out.flush();
-					Thread.sleep(1000);
-					System.out.println("Sent ack " + seq);
-					seq = (seq + 1) % 4;
-					received++;
+			this.send(toDownload);
+
+			// the server answers with a Download error instead of the photo if it does not have it or can not read it.
+			Message first = this.awaitTransfer(streamed ? Opcode.FILE_STREAM : Opcode.FILE_CHUNK);
+			if(first.getOpcode() == Opcode.DOWNLOAD_ERROR) {
+				System.out.println("Download error: " + first.getData());
+				return;
+			}
+
+			if(streamed) {
+				// the listener has already written the photo to our directory when the message arrives (see Listener).
+				String[] info = first.getData().split(" ", 2); // size and name of the file.
+				System.out.println("Received " + info[1] + " (" + info[0] + " bytes)");
+			}
+			else {
+				/*
+				 * Every packet is acknowledged with its sequence and the number of packets received in order,
+				 * which serves both the Go-Back-N and the Selective Repeat sender. Packets that arrive
+				 * out of order are written at their place too, duplicates are only acknowledged again.
+				 */
+				long ackDelay = Settings.getLong("client.ackDelay", 0); // delays the 6th ACK, to see the retransmissions.
+				FileChannel file = FileChannel.open(Paths.get("ClientDirectory/"+this.clientID+"/"+photoName+".jpg"),
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				try {
+					ChunkReceiver receiver = new ChunkReceiver(file);
+					Message chunk = first;
+					while(true) {
+						int seq = chunk.getSequence();
+						boolean fresh = receiver.accept(chunk);
+						NetLog.event(NetLog.Category.ARQ, NetLog.Level.DEBUG, fresh ? "received" : "duplicate").with("seq", seq).log();
+
+						if(seq == 5 && ackDelay > 0) {
+							Thread.sleep(ackDelay);
+							ackDelay = 0;
+						}
+						this.send(new Message("Ack", String.valueOf(receiver.getInOrder()), null, seq));
+						if(receiver.isComplete())
+							break;
+						chunk = this.awaitTransfer(Opcode.FILE_CHUNK);
+					}
 				}
-				else {
-					Message ack = new Message("Ack", received);
-					this.out.writeObject(ack);
-					this.out.flush();
-					System.out.println("Received out of order packet " + received);
+				finally {
+					file.close();
 				}
+				System.out.println(data[2]);
 			}
 			
-			byte[] downloadFileBytes = this.mergeToFile(chunks);
-			System.out.println(data[2]);
-			File downloadedFile = new File("ClientDirectory/"+this.clientID+"/"+photoName+".jpg");
-			FileOutputStream fos = new FileOutputStream(downloadedFile);
-			fos.write(downloadFileBytes);
-			fos.close();
-			
 			
-			Message caption = this.incMessages.take();
-			while(true) {
-				if(caption.getHeader().equals("Caption Download")) 
-					break;
-				this.incMessages.add(caption);
-				caption = this.incMessages.take();
-			}
+			Message caption = this.awaitTransfer(Opcode.CAPTION_DOWNLOAD);
 			if(caption.getData().equals("Caption for this photo does not exist"))
 				System.out.println(caption.getData());
 			else {
@@ -652,21 +779,14 @@ public class Client {
 	}
 	
 	/*
-	 This method is used to merge all the chunks received from the download method in a complete file
-	*/
-	private byte[] mergeToFile(ArrayList<Byte[]> chunks) {
-		ArrayList<Byte> bytes = new ArrayList<Byte>();
-		for(Byte[] chunk: chunks) {
-			for(Byte b: chunk)
-				bytes.add(b);
-		}
-		byte[] retBytes = new byte[bytes.size()];
-		int i = 0;
-		for(Byte b: bytes) {
-			retBytes[i] = b.byteValue();
-			i++;
-		}
-		return retBytes;
+	 * Waits for the next message of a download with this opcode, or for a Download error. The others are late copies of the
+	 * chunks of a download and are dropped
+	 */
+	private Message awaitTransfer(Opcode opcode) throws InterruptedException {
+		Message m = this.transfers.take();
+		while(m.getOpcode() != opcode && m.getOpcode() != Opcode.DOWNLOAD_ERROR)
+			m = this.transfers.take();
+		return m;
 	}
 	
 
@@ -714,7 +834,7 @@ public class Client {
 				this.followers.add(str[1]);
 				Message m = new Message("Follow request accept", str[1], this.clientID);
 				try {
-					this.out.writeObject(m);
+					this.send(m);
 				}
 				catch (IOException e) {
 					e.printStackTrace();
@@ -742,8 +862,7 @@ public class Client {
 		try {
 			String data = photo+"|"+userToComment+"|"+comment;
 			Message ask = new Message("Ask Comment",data,this.clientID);
-			this.out.writeObject(ask);
-			this.out.flush();
+			this.send(ask);
 
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -755,8 +874,9 @@ public class Client {
 		ArrayList<String> photos = new ArrayList<>();
 		ArrayList<String> commenter = new ArrayList<>();
 
-		for(int i = 0; i < this.CommentRequestsForClient.size(); i++) {
-			String[] tmp = this.CommentRequestsForClient.get(i).split("`");
+		ArrayList<String> requests = new ArrayList<>(this.CommentRequestsForClient); // the ones that arrive meanwhile wait for the next time.
+		for(int i = 0; i < requests.size(); i++) {
+			String[] tmp = requests.get(i).split("`");
 			for(String s : tmp) {
 				String[] str = s.split("\\|");
 				System.out.println(i+". "+ str[2] + " commented: "+"\n"+str[1]+"\n"+ "at your " + str[0] + " photo\n");
@@ -775,13 +895,12 @@ public class Client {
 				return;
 			commentsToAccept.add(Integer.parseInt(s));
 		}
-		this.CommentRequestsForClient.clear();
+		this.CommentRequestsForClient.removeAll(requests);
 		for(int i = 0; i < comments.size(); i++) {
 			if(commentsToAccept.contains(i)) {
 				Message approve = new Message("Approve Comment",photos.get(i)+"|"+comments.get(i)+"|"+commenter.get(i),this.clientID);
 				try {
-					this.out.writeObject(approve);
-					this.out.flush();
+					this.send(approve);
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
@@ -789,8 +908,7 @@ public class Client {
 			else {
 				Message deny = new Message ("Deny Comment",photos.get(i)+"|"+comments.get(i)+"|"+commenter.get(i),this.clientID);
 				try {
-					this.out.writeObject(deny);
-					this.out.flush();
+					this.send(deny);
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
@@ -802,9 +920,10 @@ public class Client {
 	//This method is used to make the logging out of the user smooth.
 	private void logOut() {
 		try {
-			this.out.writeObject(new Message("Log Out","",""));
-			this.out.flush();
+			this.send(new Message("Log Out","",""));
 			this.socket.close();
+			if(this.feed != null)
+				this.feed.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -812,6 +931,7 @@ public class Client {
 	
 	
 	public static void main(String[] args) throws IOException {
+		Settings.parseArgs(args);
 		Client c = new Client();
 			
 		Scanner input = new Scanner(System.in);
@@ -831,10 +951,12 @@ public class Client {
 			}
 		}
 		//Logged in
-		c.incomingRequestsHandler.setClientID(c.clientID);
+		c.feed = new FeedWriter(c.clientID);
+		c.incomingRequestsHandler.setClientID(c.clientID, c.feed);
 		c.initFollowers();
 		c.initFollowing();
 		c.initDirectory();
+		c.initNotifier(); // after the directory exists, the listener writes the pushed posts in it.
 		while(true) {
 			System.out.println("Press 1 to follow new users");
 			System.out.println("Press 2 to unfollow a user");
@@ -2,6 +2,7 @@ package socialNetwork;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,17 +10,21 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /*
@@ -30,68 +35,61 @@ import java.util.Map;
  * Each instance of this class is interacting with a single client.
  */
 
-public class ClientHandler implements Runnable {
-
-	private Socket connection 		= null;
-	private ObjectInputStream in 	= null;
-	private ObjectOutputStream out 	= null;
-	private final ArrayList<Pair<String, String>> registeredUsers;
-	private final HashMap<String,ArrayList<String>> graph;
-	private final HashMap<String, ArrayList<String>> followRequests;
-	private final HashMap<String, ArrayList<String>> followAccepts;
-	private final HashMap<String, ArrayList<String>> unfollowPendings;
-	private final HashMap<String, ArrayList<String>> uploadNotifications;
-	private final HashMap<String,ArrayList<String>> commentRequests;
-	private final HashMap<String,ArrayList<String>> commentAccepts;
-
-	private String clientID;
+public class ClientHandler implements Runnable, Inbox.Sink {
+
+	private static final Metrics.Timer[] REQUESTS 		= new Metrics.Timer[Opcode.values().length]; // the timer of every header, taken on its first request (see Metrics).
+	private static final Metrics.Timer STREAMS 			= Metrics.timer("download", "stream");
+	private static final Metrics.Timer CHUNKED 			= Metrics.timer("download", "chunks");
+	private static final AtomicLong DOWNLOAD_BYTES 		= Metrics.counter("download.bytes");
+	private static final AtomicLong RETRANSMISSIONS 	= Metrics.counter("download.retransmissions");
+	// the requests that act for the user of the connection, which are answered with a Request error before the login.
+	private static final EnumSet<Opcode> NEEDS_LOGIN 	= EnumSet.of(Opcode.FOLLOW_REQUEST, Opcode.FOLLOW_REQUEST_ACCEPT, Opcode.UNFOLLOW,
+			Opcode.ASK_COMMENT, Opcode.APPROVE_COMMENT, Opcode.DENY_COMMENT, Opcode.SUBSCRIBE, Opcode.ACK_NOTIFICATIONS,
+			Opcode.FOLLOWERS_REQUESTS_NOTIFICATION, Opcode.UNFOLLOW_NOTIFICATION, Opcode.COMMENT_NOTIFICATION);
+
+	private final MessageChannel channel; // connection with the client (object streams or frames, see MessageChannel).
+	private final UserDirectory users;
+	private final SocialGraph graph;
+	private final NotificationCenter notifications; // the inboxes of the users (see Inbox).
+	private final FeedFanout fanout; // delivers the new posts to the feeds of the followers.
+	private final MediaCatalog catalog; // the photos and captions of every user (see MediaCatalog).
+	private final ProfileCache profiles; // the profile pages that were viewed (see ProfileCache).
+
+	private volatile String clientID; // set by the login, which completes on the hashing pool (see UserDirectory).
+	private int requestId; // number of the request that is being handled. Its replies carry the same number.
+	private RttEstimator rtt; // round trip time of the connection, measured by the downloads.
 	
 	
 	
 	//The constructor of the Client Handler.
 	public ClientHandler
-						(Socket connection,ArrayList<Pair<String, String>> registeredUsers,HashMap<String,ArrayList<String>> graph,
-						HashMap<String, ArrayList<String>> followRequests, HashMap<String, ArrayList<String>> followAccepts,
-						HashMap<String, ArrayList<String>> unfollowPendings, HashMap<String, ArrayList<String>> uploadNotifications,HashMap<String,ArrayList<String>> commentRequests,
-						HashMap<String,ArrayList<String>> commentAccepts) {
+						(MessageChannel channel,UserDirectory users,SocialGraph graph,
+						NotificationCenter notifications, FeedFanout fanout, MediaCatalog catalog, ProfileCache profiles) {
 		/*
 		 * Structures passed by the server.
 		 */
-		this.followAccepts 			= followAccepts;
-		this.followRequests 		= followRequests;
-		this.registeredUsers 		= registeredUsers;
-		this.unfollowPendings 		= unfollowPendings;
+		this.users 					= users;
 		this.graph 					= graph;
-		this.uploadNotifications 	= uploadNotifications;
-		this.commentRequests = commentRequests;
-		this.commentAccepts = commentAccepts;
+		this.notifications = notifications;
+		this.fanout = fanout;
+		this.catalog = catalog;
+		this.profiles = profiles;
 		
 		
 		this.clientID 				= ""; // ID of the client that this handler service.
-		try {
-			this.connection 		= connection; //connection with client.
-			this.out 				= new ObjectOutputStream(connection.getOutputStream()); //output buffer.
-			this.in  				= new ObjectInputStream(connection.getInputStream()); 	//input buffer.
-			
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		this.channel 				= channel;
 	}
 
 	/*
 	 * This method is used when a new user is registered in 
 	 * the social network. It's job is to add this user in the 
-	 * social graph as well as the other data structures that contains
-	 * all users. The method is called in the sign-up functionality.
+	 * social graph and create it's folder. The inbox of the user
+	 * is created when the first notification arrives (see NotificationCenter).
+	 * The method is called in the sign-up functionality.
 	 */
-	private void initNewUser(String username,String password) {
-		this.registeredUsers.add(new Pair(username,password));
-		this.graph.put(username,new ArrayList<>());
-		this.followAccepts.put(username,new ArrayList<>());
-		this.followRequests.put(username,new ArrayList<>());
-		this.unfollowPendings.put(username,new ArrayList<>());
-		this.uploadNotifications.put(username,new ArrayList<>());
+	private void initNewUser(String username) {
+		this.graph.addUser(username);
+		UserFiles.ensure(username);
 	}
 
 	
@@ -103,7 +101,7 @@ public class ClientHandler implements Runnable {
 	 * contains a small chunk of the file's initial data buffer. The method is called in the
 	 * download functionality.
 	 */
-	private Message[] generateAPDUs(String fileName) {
+	private static Message[] generateAPDUs(String fileName) {
 		try {
 			File file = new File(fileName);
 			byte[] fileBytes = new byte[(int)file.length()]; // buffer for the data of the multimedia file/
@@ -117,32 +115,22 @@ public class ClientHandler implements Runnable {
 			int chunkSize = (int) fileBytes.length / 10;
 			int LastChunkSize = chunkSize + (fileBytes.length % 10); //last chunk's size might differ so we add to it the remaining.
 
-			ArrayList<Byte[]> chunks = new ArrayList<>();
+			ArrayList<byte[]> chunks = new ArrayList<>();
 			
-			//for 9 first chunks, all have the same size.
+			//for 9 first chunks, all have the same size. i * chunkSize is the offset from the last iteration.
 			for(int i = 0; i < 9; i++) {
-				Byte[] tmp = new Byte[chunkSize];
-				for(int j = 0; j < chunkSize; j++) {
-					tmp[j] = fileBytes[i*chunkSize + j]; // i * chunkSize is the offset from the last iteration. Adding j to it gets us the correct byte.
-				}
-				chunks.add(tmp);	
+				chunks.add(Arrays.copyOfRange(fileBytes, i*chunkSize, (i+1)*chunkSize));
 			}
 			
 			//last chunks needs different approach because it's size is different.
-			Byte[] tmp = new Byte[LastChunkSize];
-			for(int i = 0; i < LastChunkSize; i++) {
-				tmp[i] = fileBytes[9*chunkSize + i];
-			}
-			chunks.add(tmp);
+			chunks.add(Arrays.copyOfRange(fileBytes, 9*chunkSize, 9*chunkSize + LastChunkSize));
 			
 			/*
-			 * Generating the messages. The field sequence is required
-			 * for the implementation of stop and wait protocol.
+			 * Generating the messages. The sequence of a message is its index, so the client
+			 * can put the chunks in order, and the data is the number of messages.
 			 */
-			int seq = 0;
 			for(int i = 0; i < APDUs.length; i++) {
-				APDUs[i] = new Message("File Chunk",chunks.get(i),seq); 
-				seq = (seq+1) % 4; //stop and wait requires 1 bit for enumerate the chunks, hence 0 1 0 1 ... 0 1.
+				APDUs[i] = new Message("File Chunk", String.valueOf(APDUs.length), chunks.get(i), i);
 			}
 			return APDUs;
 
@@ -155,126 +143,64 @@ public class ClientHandler implements Runnable {
 	
 	
 	/*
-	 * This method is responsible for sending the APDUs 
-	 * according to the stop and wait protocol. It takes as input
-	 * a buffer with messages that are generated by the method above
-	 * and sends them one by one using the stop and wait protocol. The method is called in the
-	 * download functionality.
+	 * This method sends the APDUs generated above with the sliding window protocol
+	 * (Go-Back-N or Selective Repeat, see SlidingWindowSender) and returns when the client
+	 * has acknowledged all of them. Messages that the client sent during the transfer are
+	 * handled afterwards. The method is called in the download functionality.
 	 */
-	private void SendAPDUs(Message[] APDUs) {
-			
+	private void sendAPDUs(Message[] APDUs) throws IOException, ClassNotFoundException {
+		if(this.rtt == null)
+			this.rtt = new RttEstimator(); // kept for the next downloads of this client.
+		for(Message APDU : APDUs)
+			APDU.setRequestId(this.requestId);
+
+		SlidingWindowSender sender = new SlidingWindowSender(this.channel, this.rtt);
+		ArrayList<Message> deferred;
+		long start = System.nanoTime();
+		boolean completed = false;
 		try {
-			int i = 0;
-			/*
-			 * Starting a new thread that implementing the stop and wait and 
-			 * it is responsible for receiving the acknowledgement.
-			 */
-			StopAndWait protocol = new StopAndWait(this.in, false);
-			Thread t = new Thread(protocol);
-			t.start();
-			
-			
-			while(i < APDUs.length) {
-				// send the message.
-				this.out.writeObject(APDUs[i]);
-				this.out.flush();
-				
-				
-				long start = System.currentTimeMillis();// start a timer.
-				while(System.currentTimeMillis() - start < 1500 ) { // as long as timer has not expired wait for the acknowledgement.
-					if(protocol.getReceivedAck()) // if you received the acknowledgement before timer expired then send the next APDU. 
-						break;
-				}
-				
-				
-				/*
-				 * If the loop above stopped because the acknowledgement got received the send the next message
-				 * should be sent. Hence increase the counter of the message received, print that the message (i) received 
-				 * and go to the next iteration. Otherwise, if the timer has expired then do not increase the counter. Just 
-				 * retransmit the message.
-				 */
-				if(protocol.getReceivedAck()) {
-					System.out.println("Received ACK " + i + " with sequence " + APDUs[i].getSequence());
-					i++;
-				}
-				else {
-					System.out.println("Server did not receive ACK");
-				}
-					
-				// update the stop and wait thread that acknowledgement is false.
-				protocol.setReceivedAck(false);
-			}
-		} 
-		catch (IOException e) {
-				e.printStackTrace();
+			deferred = sender.send(APDUs);
+			completed = true;
+		}
+		finally {
+			CHUNKED.stop(start, completed);
+			RETRANSMISSIONS.addAndGet(sender.getRetransmissions());
 		}
+		for(Message APDU : APDUs)
+			DOWNLOAD_BYTES.addAndGet(APDU.getChunk().length);
+		NetLog.event(NetLog.Category.DOWNLOAD, NetLog.Level.INFO, "sent").with("user", this.clientID).with("mode", "chunks")
+			.with("packets", APDUs.length).with("retransmitted", sender.getRetransmissions()).with("millis", (System.nanoTime() - start) / 1000000)
+			.with("rtoMillis", this.rtt.getTimeoutMillis()).log();
+
+		int requestId = this.requestId;
+		for(Message m : deferred)
+			this.handle(m);
+		this.requestId = requestId;
 	}
 	
-	private void sendAPDUsGBN(Message[] APDUs) {
-			try {
-				GBN protocol = new GBN(this.in);
-				Thread t = new Thread(protocol);
-				t.start();
-					
-				int i = 0;
-				ArrayList<Pair<Message, Long>> timerPackets = new ArrayList<>();
-				while(i < APDUs.length) {
-					int window = protocol.getRemainingWindow();
-						
-					for(int j = i; j < window; j++) {
-						this.out.writeObject(APDUs[j]);
-						this.out.flush();
-						timerPackets.add(new Pair<Message, Long>(APDUs[i], System.currentTimeMillis()));
-						protocol.setRemainingWindow(protocol.getRemainingWindow() - 1);
-					}
-					
-					//long lastTimer = timerPackets.get(0).getValue();
-					
-					while(true) {
-						long lastTimer = timerPackets.get(0).getValue();
-						while(System.currentTimeMillis() - lastTimer < protocol.getTimeout()) {
-							if(protocol.getReceivedAck()) {
-								System.out.println("Ack received " + protocol.getLastAckNumber());
-								protocol.setReceivedAck(false);
-								i = i + protocol.getLastAckNumber() + 1;
-								int lastAckNumber = protocol.getLastAckNumber();
-								int remove = lastAckNumber - i;
-								System.out.println("i number " + i);
-								for(int k = 0; k < remove; k++) {
-									timerPackets.remove(0);
-									protocol.setRemainingWindow(protocol.getRemainingWindow() + 1);
-								}
-								
-								lastTimer = timerPackets.get(0).getValue();
-								
-								for(int k = 0; k < protocol.getLastAckNumber(); k++) {
-									timerPackets.add(new Pair<Message, Long>(APDUs[i+2], System.currentTimeMillis()));
-									this.out.writeObject(APDUs[i+2]);
-									this.out.flush();
-									protocol.setRemainingWindow(protocol.getRemainingWindow() - 1);
-								}
-								
-								/*
-								int temp = i;
-								while(i < temp + protocol.getRemainingWindow()) {
-									timerPackets.add(new Pair<Message, Long>(APDUs[i], System.currentTimeMillis()));
-									this.out.writeObject(APDUs[i]);
-									this.out.flush();
-									i++;
-									protocol.setRemainingWindow(protocol.getRemainingWindow() - 1);
-								}
-								*/
-							}
-						}
-						break;
-					}
-				}
-			} 
-			catch (IOException e) {
-					e.printStackTrace();
-			};
+	/*
+	 * This method sends a whole photo in one go. The "File Stream" message tells the client
+	 * the size and the name of the file and the bytes of the file follow it. They go from
+	 * the file to the socket without being read into the heap (see MessageChannel.sendFile).
+	 */
+	private void streamFile(FileChannel file, String fileName) throws IOException {
+		long size = file.size();
+		Message header = new Message("File Stream", size + " " + fileName, "");
+		header.setRequestId(this.requestId);
+		long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			this.channel.sendFile(header, file, size);
+			completed = true;
+		}
+		finally {
+			STREAMS.stop(start, completed);
+		}
+		DOWNLOAD_BYTES.addAndGet(size);
+		NetLog.event(NetLog.Category.DOWNLOAD, NetLog.Level.INFO, "sent").with("user", this.clientID).with("mode", "stream")
+			.with("bytes", size).with("millis", (System.nanoTime() - start) / 1000000).log();
 	}
-	
+
 	private void sendCaption(String fileName, String clientName) {
 		BufferedReader reader;
 		try {
@@ -288,14 +214,12 @@ public class ClientHandler implements Runnable {
 			}
 			reader.close();
 			Message captionReply = new Message("Caption Download", data, fileName);
-			this.out.writeObject(captionReply);
-			this.out.flush();
+			this.send(captionReply);
 		} 
 		catch (IOException e) {
 			try {
 				Message captionReply = new Message("Caption Download" , "Caption for this photo does not exist", "");
-				this.out.writeObject(captionReply);
-				this.out.flush();
+				this.send(captionReply);
 			} catch (IOException e1) {
 				e1.printStackTrace();
 			}
@@ -362,460 +286,523 @@ public class ClientHandler implements Runnable {
 	@Override
 	public void run() {
 		
-		while(this.connection.isConnected()) {
+		while(this.channel.isOpen()) {
 			try {
-				Message m = (Message)this.in.readObject();
-				String header = m.getHeader();
-				String sender = m.getSender();
-				
-				/*
-				 * Sing up functionality. Checks if the name that user has chosen is available. If so it 
-				 * accept it's sign up request and makes it a new user, otherwise it reject it's request and
-				 * answers to him accordingly.
-				 */
-				if(header.equals("Sign up")) {
-					if(checkNameAvailability(sender)) {
-						String password = m.getData();
-						initNewUser(sender, password);
-						FileWriter fw = new FileWriter("registeredUsers.txt",true);
-						BufferedWriter bw = new BufferedWriter(fw);
-						bw.append("\n"+sender+" "+password);
-						bw.flush();
-						bw.close();
-						fw = new FileWriter("SocialGraph.txt", true);
-						bw = new BufferedWriter(fw);
-						bw.append("\n"+sender);
-						bw.flush();
-						bw.close();
-						Message reply = new Message("Sing up reply","Succesfully singed up","");
-						this.out.writeObject(reply);
-						this.out.flush();
-					}
-					else {
-						Message reply = new Message("Sing up reply","Sing up failed. Username already exist","");
-						this.out.writeObject(reply);
-						this.out.flush();
-					}
+				Message m = this.channel.receive();
+				this.handle(m);
+			} 
+			catch (EOFException | SocketException e) {
+				break; // the client has gone, there is nothing more to read.
+			}
+			catch (ProtocolException e) {
+				// a frame that is too long or broken, the rest of the connection can not be read.
+				NetLog.event(NetLog.Category.SESSION, NetLog.Level.WARN, "closed").with("address", this.channel.getRemoteAddress()).with("reason", e.getMessage()).log();
+				try {
+					this.channel.close();
 				}
-				
-				/*
-				 * Login functionality. Checks if the credentials are correct. If so accept the login request.
-				 * Otherwise it reject the user and send him a message that informs him about invalid login data.
-				 */
-				else if(header.equals("Login")) {
-					String password = m.getData();
-					if(this.registeredUsers.contains(new Pair<String,String>(sender,password))) {
-						this.clientID = m.getSender();
-						System.out.println("Welcome client " + clientID);
-						Message reply = new Message("Login success","Welcome client " + clientID,"");
-						updateIPsAndPorts(this.connection.getInetAddress().getHostAddress(),this.connection.getPort());
-						this.out.writeObject(reply);
-						this.out.flush();
-					}
-					else {
-						Message reply = new Message("Login failed","Invalid credentials","");
-						this.out.writeObject(reply);
-						this.out.flush();
-					}
+				catch (IOException e1) {
+					e1.printStackTrace();
 				}
-				// return to the user a message that contains it's followers. (See followers functionality in client).
-				else if(header.equals("Get followers")) {
-					String clientID = m.getSender();
-					String followers = "";			
-					ArrayList<String> tmp = this.graph.get(clientID);
-					for(String s : tmp) {
-						followers += s;
-						followers += " ";
-					}
+				break;
+			}
+			catch (ClassNotFoundException | IOException e) {
+				e.printStackTrace();
+			}
+		}	
+		this.notifications.unsubscribe(this.clientID, this);
+	}
+	
+	//sends a reply to the request that is being handled
+	private void send(Message reply) throws IOException {
+		reply.setRequestId(this.requestId);
+		this.channel.send(reply);
+	}
 
-					Message reply = new Message("Followers reply", followers, "");
-					this.out.writeObject(reply);
-					this.out.flush();
+	/*
+	 * Answers a poll. The client sends "ack" and the number of the last notification it received, a client
+	 * from before the inbox sends the time and everything sent to it before is taken as received (see Inbox.poll).
+	 */
+	private void poll(Message m) {
+		String data = m.getData();
+		long seq = data != null && data.startsWith("ack ") ? Long.parseLong(data.substring(4).trim()) : Inbox.ALL_SENT;
+		this.notifications.poll(this.clientID, this, seq);
+	}
 
-				}
-				// return to the user a message that contains the people that he follows. (See following functionality in client).
-				else if(header.equals("Get following")) {
-					String clientID = m.getSender();
-					String following = "";
-
-					for(Map.Entry<String,ArrayList<String>> set : this.graph.entrySet()) {
-						if(!set.getKey().equals(clientID)) {
-							if(set.getValue().contains(clientID)) {
-								following += set.getKey();
-								following += " ";
-							}
+	//sends a reply that was computed on another thread, after the handler went on with the next requests
+	private void reply(int requestId, Message reply) {
+		reply.setRequestId(requestId);
+		try {
+			this.channel.send(reply);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Sends a notification of the inbox of this client (see Inbox). It is called by the thread that
+	 * added the notification, by a poll or by the subscription, so the messages carry no request id.
+	 * If the connection is gone the notification stays in the inbox for the next connection.
+	 */
+	@Override
+	public boolean deliver(Message m) {
+		if(!this.channel.isOpen())
+			return false;
+		try {
+			this.channel.send(m);
+			return true;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * This method executes the functionality that corresponds to the header of a message
+	 * (its code, see Opcode). It is called by the loop above in the classic server and by a
+	 * worker thread of the NioServer when a message of this client has been decoded. The time it
+	 * takes is recorded in the timer of the header, and a message whose handling throws counts as an error (see Metrics).
+	 */
+	void handle(Message m) throws IOException, ClassNotFoundException {
+		Opcode op = m.getOpcode();
+		Metrics.Timer timer = REQUESTS[op.ordinal()];
+		if(timer == null) // a header that is not known is timed as Unknown, so a client can not add timers.
+			timer = REQUESTS[op.ordinal()] = Metrics.timer("request", op == Opcode.UNKNOWN ? "Unknown" : op.getHeader());
+		long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			this.dispatch(m);
+			completed = true;
+		}
+		finally {
+			timer.stop(start, completed);
+		}
+	}
+
+	//the functionality of each header
+	private void dispatch(Message m) throws IOException, ClassNotFoundException {
+		String sender = m.getSender();
+		this.requestId = m.getRequestId();
+		if(this.clientID.equals("") && NEEDS_LOGIN.contains(m.getOpcode())) {
+			this.send(new Message("Request error", "Log in first", ""));
+			return;
+		}
+		
+		switch(m.getOpcode()) {
+			/*
+			 * Sing up functionality. Checks if the name that user has chosen is available. If so it 
+			 * accept it's sign up request and makes it a new user, otherwise it reject it's request and
+			 * answers to him accordingly.
+			 */
+			case SIGN_UP: {
+				if(checkNameAvailability(sender)) {
+					// the password is hashed on the pool of the directory, the reply is sent when it is done.
+					int requestId = this.requestId;
+					this.users.register(sender, m.getData()).whenComplete((registered, e) -> {
+						if(registered != null && registered) {
+							initNewUser(sender);
+							this.reply(requestId, new Message("Sing up reply","Succesfully singed up",""));
 						}
-					}
-					Message reply = new Message("Following reply", following, "");
-					this.out.writeObject(reply);
-					this.out.flush();
+						else
+							this.reply(requestId, new Message("Sing up reply","Sing up failed. Username already exist",""));
+					});
 				}
-				// return the users that a client does not follow. (See follow functionality in client).
-				else if(header.equals("Pull Users")) {
-					String clientID = m.getSender();
-					String notFollowing = "";
-
-					for(Map.Entry<String,ArrayList<String>> set : this.graph.entrySet()) {
-						if(!set.getKey().equals(clientID)) {
-							if(!set.getValue().contains(clientID)) {
-								notFollowing += set.getKey();
-								notFollowing += " ";
-							}
-						}
-					}
-					Message reply = new Message("Pull Users reply", notFollowing,"");
-					this.out.writeObject(reply);
-					this.out.flush();
+				else {
+					Message reply = new Message("Sing up reply","Sing up failed. Username already exist","");
+					this.send(reply);
 				}
-				/*
-				 * Here the client requests to follow a user. After receiving that message, we go to this user
-				 * and add to it's follow request lists a new request from our client.
-				 */
-				else if(header.equals("Follow request")) {
-					String clientToFollow = m.getData();
-					if(this.followRequests.containsKey(clientToFollow))
-						this.followRequests.get(clientToFollow).add(this.clientID);
-					else {
-						ArrayList<String> list = new ArrayList<>();
-						list.add(this.clientID);
-						this.followRequests.put(clientToFollow, list);
+				break;
+			}
+		
+			/*
+			 * Login functionality. Checks if the credentials are correct. If so accept the login request.
+			 * Otherwise it reject the user and send him a message that informs him about invalid login data.
+			 */
+			case LOGIN: {
+				// the password is checked on the pool of the directory, the reply is sent when it is done.
+				int requestId = this.requestId;
+				this.users.verify(sender, m.getData()).whenComplete((valid, e) -> {
+					if(valid != null && valid) {
+						this.clientID = sender;
+						UserFiles.ensure(sender);
+						NetLog.event(NetLog.Category.SESSION, NetLog.Level.INFO, "login").with("user", sender).with("address", this.channel.getRemoteAddress()).log();
+						updateIPsAndPorts(this.channel.getRemoteAddress(),this.channel.getRemotePort());
+						this.reply(requestId, new Message("Login success","Welcome client " + clientID,""));
 					}
+					else
+						this.reply(requestId, new Message("Login failed","Invalid credentials",""));
+				});
+				break;
+			}
+			// return to the user a message that contains it's followers. (See followers functionality in client).
+			case GET_FOLLOWERS: {
+				String clientID = m.getSender();
+				StringBuilder followers = new StringBuilder();
+				for(String s : this.graph.getFollowers(clientID)) {
+					followers.append(s);
+					followers.append(" ");
 				}
-				/*
-				 * Here the client asks to check if he has new follow requests, 
-				 * new follow accepts or a follower of his has uploaded a new post. We loop through it's follow requests list,
-				 * it's follow accepts list and it's upload notification list and we send him all the update 
-				 * information required. Clients send as this type of message every 2 seconds so all updates can be implemented
-				 * here.
-				 */
-				else if(header.equals("Followers requests notification")) {
-					String reply = "";
-					ArrayList<String> followRequestsForClient = this.followRequests.get(this.clientID);
-					if(followRequestsForClient.size() > 0) {
-						for(String s: followRequestsForClient)
-							reply += s+" ";
-						Message msg = new Message("Follow Request", reply, "");
-						this.out.writeObject(msg);
-						this.followRequests.get(clientID).clear();
-					}
-					
-					reply = "";
-					ArrayList<String> followAcceptsForClient = this.followAccepts.get(this.clientID);
-					if(followAcceptsForClient.size() > 0) {
-						for(String s: followAcceptsForClient)
-							reply += s+" ";
-						Message msg = new Message("Follow Accept", reply, "");
-						this.out.writeObject(msg);
-						this.out.flush();
-						this.followAccepts.get(clientID).clear();
-					}
 
-					ArrayList<String> myUploadNotifications = this.uploadNotifications.get(this.clientID);
-					reply = "";
-					if(myUploadNotifications.size() > 0) {
-						for(String s : myUploadNotifications) 
-							reply += s+" ";
-						Message msg = new Message("Upload Notification", reply, "");
-						this.out.writeObject(msg);
-						this.out.flush();
-						this.uploadNotifications.get(clientID).clear();
-					}
+				Message reply = new Message("Followers reply", followers.toString(), "");
+				this.send(reply);
 
-					ArrayList<String> myCommentNotifications = this.commentAccepts.get(this.clientID);
-					reply = "";
-					if(myCommentNotifications.size() > 0) {
-						for(String s : myCommentNotifications)
-							reply += s+ "`";
-						Message msg = new Message("Comment Request Handled",reply, "");
-						this.out.writeObject(msg);
-						this.out.flush();
-						this.commentAccepts.get(clientID).clear();
-					}
-				}
-				
-				/*
-				 * Here our client accepted a follow requests. So we firstly updated the graph and 
-				 * then we add to the user that was accepted by our client a new request for follow accept.
-				 */
-				else if(header.equals("Follow request accept")) {
-					String acceptedUser = m.getData();
-					this.updateGraph(false, acceptedUser);
-					this.followAccepts.get(acceptedUser).add(this.clientID);
-				}
-				
-				/*
-				 * Here our client unfollowed someone. So we firstly update the graph and then
-				 * we add an unfollow request to the unfollowPendings structure of the user that 
-				 * got unfollowed by our client.
-				 */
-				else if(header.equals("Unfollow")) {
-					String toUnfollow = m.getData();
-					this.updateGraph(true, toUnfollow);
-					this.unfollowPendings.get(toUnfollow).add(this.clientID);
+				break;
+			}
+			// return to the user a message that contains the people that he follows. (See following functionality in client).
+			// The graph keeps the users that each user follows, so there is no need to look at the followers of everyone.
+			case GET_FOLLOWING: {
+				Message reply = new Message("Following reply", following(this.graph, m.getSender()), "");
+				this.send(reply);
+				break;
+			}
+			// return the users that a client does not follow. (See follow functionality in client).
+			case PULL_USERS: {
+				Message reply = new Message("Pull Users reply", notFollowing(this.graph, m.getSender()),"");
+				this.send(reply);
+				break;
+			}
+			/*
+			 * Here the client requests to follow a user. After receiving that message, we go to this user
+			 * and add to it's follow request lists a new request from our client.
+			 */
+			case FOLLOW_REQUEST: {
+				String clientToFollow = m.getData();
+				if(this.unknownUser(clientToFollow))
+					break;
+				this.notifications.add(clientToFollow, Inbox.Kind.FOLLOW_REQUEST, this.clientID);
+				break;
+			}
+			/*
+			 * Here the client asks to check if he has new follow requests, 
+			 * new follow accepts or a follower of his has uploaded a new post. We send him everything that
+			 * waits in his inbox, after what he says he received is acknowledged (see poll).
+			 * Clients that poll send this type of message every 2 seconds (see Notifier),
+			 * clients that subscribed receive the same messages as soon as they are produced.
+			 */
+			case FOLLOWERS_REQUESTS_NOTIFICATION: {
+				this.poll(m);
+				break;
+			}
+			/*
+			 * A client that subscribed received the notifications up to a sequence number (see Inbox).
+			 */
+			case ACK_NOTIFICATIONS: {
+				this.notifications.acknowledge(this.clientID, Long.parseLong(m.getData()));
+				break;
+			}
+			/*
+			 * The client asks to receive its notifications without polling. The notifications that
+			 * are already waiting are sent now and every new one as soon as it is produced.
+			 */
+			case SUBSCRIBE: {
+				this.notifications.subscribe(this.clientID, this);
+				break;
+			}
+		
+			/*
+			 * Here our client accepted a follow requests. So we firstly updated the graph and 
+			 * then we add to the user that was accepted by our client a new request for follow accept.
+			 */
+			case FOLLOW_REQUEST_ACCEPT: {
+				String acceptedUser = m.getData();
+				if(this.unknownUser(acceptedUser))
+					break;
+				this.updateGraph(false, acceptedUser);
+				this.notifications.add(acceptedUser, Inbox.Kind.FOLLOW_ACCEPT, this.clientID);
+				break;
+			}
+		
+			/*
+			 * Here our client unfollowed someone. So we firstly update the graph and then
+			 * we add an unfollow notification to the inbox of the user that 
+			 * got unfollowed by our client.
+			 */
+			case UNFOLLOW: {
+				String toUnfollow = m.getData();
+				if(this.unknownUser(toUnfollow))
+					break;
+				this.updateGraph(true, toUnfollow);
+				this.notifications.add(toUnfollow, Inbox.Kind.UNFOLLOW, this.clientID);
 
-				}
-				/*
-				 * Here we check if anyone has unfollowed our client. If so we just create a message 
-				 * with this information and we update our client.
-				 */
-				else if(header.equals("Unfollow notification")) {
-					String reply = "";
-					ArrayList<String> UnfollowNotifications = this.unfollowPendings.get(this.clientID);
-					if(UnfollowNotifications.size() > 0) {
-						for(String s: UnfollowNotifications)
-							reply += s+" ";
-						Message msg = new Message("Unfollow commit", reply, "");
-						this.out.writeObject(msg);
-						this.unfollowPendings.get(clientID).clear();
-					}
-				}
-				
-				/*
-				 * Here the client has uploaded a new photo in his profile and he asks us to synchronize it's
-				 * directory that is stored locally in server. He sends us the data of the photo and the 
-				 * caption and we then call the synchronization method ( See synchClientDirectory 1st overload for more). 
-				 */
-				else if(header.equals("Synchronization")) {
-					String fileName = m.getData();
-					DataInputStream dis = new DataInputStream(this.connection.getInputStream());
-					int length = dis.readInt();
-					byte[] photoBytes = new byte[length];
-					dis.readFully(photoBytes);
-
-					ArrayList<Byte[]> captionsBytes = new ArrayList<>();
-					ArrayList<String> captionNames = new ArrayList<>();
-
-					for(int i=0;i<2;i++) {
-						String captionName = dis.readUTF();
-
-						int hasCaption = dis.readInt();
-						byte[] captionBytes = new byte[hasCaption];
-						if (hasCaption != 0) {
-							captionNames.add(captionName);
-							dis.readFully(captionBytes);
-							Byte[] temp = new Byte[hasCaption];
-							for(int j=0;j<captionBytes.length;j++)
-								temp[j] = Byte.valueOf(captionBytes[j]);
-
-							captionsBytes.add(temp);
-						}
-					}
+				break;
+			}
+			/*
+			 * Here we check if anyone has unfollowed our client. If so we just create a message 
+			 * with this information and we update our client.
+			 */
+			case UNFOLLOW_NOTIFICATION: {
+				this.poll(m);
+				break;
+			}
+		
+			/*
+			 * Here the client has uploaded a new photo in his profile and he asks us to synchronize it's
+			 * directory that is stored locally in server. He sends us the data of the photo and the 
+			 * caption and we then call the synchronization method ( See synchClientDirectory 1st overload for more). 
+			 */
+			case SYNCHRONIZATION: {
+				String fileName = m.getData();
+				DataInputStream dis = this.channel.rawInput();
+				int photoLength = dis.readInt();
+				UserFiles.receive(dis, this.clientID, fileName, UserFiles.partFile(this.clientID, fileName, photoLength, 0), 0, photoLength);
+				ArrayList<String> captionNames = this.readCaptions(dis);
 
-					length = dis.readInt();
-					byte[] profileBytes = new byte[length];
-					dis.readFully(profileBytes);
+				int length = dis.readInt();
+				byte[] profileBytes = new byte[length];
+				dis.readFully(profileBytes);
 
-					FileInputStream fis = new FileInputStream("ServerDirectory/"+this.clientID+"/"+"Profile_998"+this.clientID+".txt");
+				String newPost;
+				ReentrantLock profileLock = UserFiles.profileLock(this.clientID);
+				profileLock.lock();
+				try {
+					FileInputStream fis = new FileInputStream(UserFiles.profile(this.clientID));
 					byte[] bytes = fis.readAllBytes();
 
 					String profileBeforeSync = new String(bytes);
 					String profileAfterSync = new String(profileBytes);
 
-					String newPost = profileAfterSync.replace(profileBeforeSync,"");
+					newPost = profileAfterSync.replace(profileBeforeSync,"");
 
 					fis.close();
-					this.synchClientDirectory(fileName, photoBytes ,captionNames,captionsBytes, profileBytes);
+					this.synchClientDirectory(fileName, captionNames, profileBytes);
+				}
+				finally {
+					profileLock.unlock();
+				}
 
-					ArrayList<String> myFollowers = this.graph.get(this.clientID);
-					for(String s: myFollowers) {
-						this.uploadNotifications.get(s).add(newPost);
-						FileWriter fw 		= new FileWriter("ServerDirectory/"+s+"/"+"Others_998"+s+".txt",true);
-						BufferedWriter bw 	= new BufferedWriter(fw);
-						bw.append(newPost);
-						bw.close();
+				// the post is written to the feeds of the followers in the background (see FeedFanout).
+				this.fanout.submit(this.clientID, newPost);
 
-					}
+				break;
+			}
+			/*
+			 * The same upload, but the client sends only its new post instead of the whole profile, together with
+			 * the length of its copy of the profile before the post (the version of the profile, see appendPost).
+			 * We store the photo and the caption, append the post and reply with what the client's copy is missing.
+			 * The photo is sent from the offset that the client asked for before (see UPLOAD_OFFSET), so an
+			 * upload that was cut off continues where it stopped.
+			 */
+			case SYNC_POST: {
+				String fileName = m.getData();
+				DataInputStream dis = this.channel.rawInput();
+				long size 	= dis.readLong();
+				int crc 	= dis.readInt();
+				long offset = dis.readLong();
+				UserFiles.receive(dis, this.clientID, fileName, UserFiles.partFile(this.clientID, fileName, size, crc), offset, size - offset);
+				ArrayList<String> captionNames = this.readCaptions(dis);
 
-				}
-				/*
-				 * Here the client request to see a user's profile. He can see it only if he follow the user with
-				 * the profile requested profile. First we check if the profile is existing. If not then we just send him a message that the 
-				 * profile does not exist. If the profile exists, then if the client follows the user with the profile asked then 
-				 * we send him the profile. If he does not follow the user with the profile asked then we deny it's request and we
-				 * send him a message and inform him that the access was denied. (See client hander Access Profile).
-				 */
-				else if(header.equals("Access Profile")) {
-					String clientToAccess = m.getData();
-
-					// check if the profile exists.
-					boolean exists = false;
-					for(Pair<String,String> p : registeredUsers) {
-						if(p.getKey().equals(clientToAccess)) {
-							exists = true;
-							break;
-						}
-					}
-					// if profile exists, then read the profile file for the user asked and write it to a message as reply.
-					if(exists) {
-						if(graph.get(clientToAccess).contains(clientID)) {
-							BufferedReader reader = new BufferedReader(new FileReader("ServerDirectory/"+clientToAccess+"/Profile_998"+clientToAccess+".txt"));
-							String line;
-							String profileToSend = "\n";
-							line = reader.readLine();
-	
-							while(line!=null) {
-								profileToSend += line;
-								profileToSend += "\n";
-								line = reader.readLine();
-							}
-							reader.close();
-	
-							Message reply = new Message("Accept Profile", profileToSend, "");
-							this.out.writeObject(reply);
-							this.out.flush();
-						}
-						else {
-							Message reply = new Message("Deny Profile", "", "");
-							this.out.writeObject(reply);
-							this.out.flush();
-						}
+				long version = dis.readLong();
+				byte[] postBytes = new byte[dis.readInt()];
+				dis.readFully(postBytes);
+
+				this.synchClientDirectory(fileName, captionNames, null);
+				this.send(this.appendPost(version, postBytes));
+
+				this.fanout.submit(this.clientID, new String(postBytes));
+				break;
+			}
+			/*
+			 * Before an upload the client asks how many bytes of the photo we already have ("size crc name"),
+			 * which is more than 0 only if an upload of the same file was cut off.
+			 */
+			case UPLOAD_OFFSET: {
+				String[] data = m.getData().split(" ", 3);
+				long size = Long.parseLong(data[0]);
+				Path part = UserFiles.partFile(this.clientID, data[2], size, Integer.parseUnsignedInt(data[1], 16));
+				this.send(new Message("Upload offset reply", String.valueOf(UserFiles.uploadedBytes(part, size)), ""));
+				break;
+			}
+			/*
+			 * Here the client request to see a user's profile. He can see it only if he follow the user with
+			 * the profile requested profile. First we check if the profile is existing. If not then we just send him a message that the 
+			 * profile does not exist. If the profile exists, then if the client follows the user with the profile asked then 
+			 * we send him the profile. If he does not follow the user with the profile asked then we deny it's request and we
+			 * send him a message and inform him that the access was denied. (See client hander Access Profile).
+			 */
+			case ACCESS_PROFILE: {
+				String clientToAccess = m.getData();
+
+				// check if the profile exists.
+				boolean exists = this.users.contains(clientToAccess);
+				// if profile exists, then read the profile file for the user asked and write it to a message as reply.
+				if(exists) {
+					UserFiles.ensure(clientToAccess);
+					if(graph.isFollower(clientToAccess, clientID)) {
+						// the page comes from the cache, or from the file the first time it is viewed.
+						String profileToSend = this.profiles.get(clientToAccess, () -> readProfile(clientToAccess));
+						Message reply = new Message("Accept Profile", profileToSend, "");
+						this.send(reply);
 					}
-					//if not exists send a message with this information.
 					else {
-						Message reply = new Message("Deny Profile", "Profile Does not Exist", "");
-						this.out.writeObject(reply);
-						this.out.flush();
+						Message reply = new Message("Deny Profile", "", "");
+						this.send(reply);
 					}
-					
 				}
-				
-				/*
-				 * Here the user has searched for a photo. First of all we find all his followers
-				 * (only from them he can search for photos). After finding them all we check their directories
-				 * in order to see which of them contains the file asked. We then return to the client a message that
-				 * contains all the ID's of his followers who have the photo. (See search operation in client).
-				 */
-				else if(header.equals("Search")) {
-					String[] data = m.getData().split(",");
-					String photoName = data[0];
-					String captionLanguage = data[1];
-
-					ArrayList<String> clientsFollowing = new ArrayList<>();
-
-					for(Map.Entry<String,ArrayList<String>> set : this.graph.entrySet()) {
-						if(!set.getKey().equals(clientID)) {
-							if(set.getValue().contains(clientID)) {
-								clientsFollowing.add(set.getKey());
-							}
-						}
-					}
+				//if not exists send a message with this information.
+				else {
+					Message reply = new Message("Deny Profile", "Profile Does not Exist", "");
+					this.send(reply);
+				}
+			
+				break;
+			}
+		
+			/*
+			 * Here the user has searched for a photo. First of all we find all his followers
+			 * (only from them he can search for photos). After finding them all we check their directories
+			 * in order to see which of them contains the file asked. We then return to the client a message that
+			 * contains all the ID's of his followers who have the photo. (See search operation in client).
+			 */
+			case SEARCH: {
+				String[] data = m.getData().split(",");
+				String photoName = data[0];
+				String captionLanguage = data[1];
 
-					String reply = "";
-					String dirPath = "ServerDirectory/";
-					String fileName = "";
-
-					for(String s : clientsFollowing) {
-						File directory = new File(dirPath+s);
-						String[] fileNames = directory.list();
-						for(String file : fileNames) {
-							if(file.contains(photoName) && file.contains(captionLanguage)) {
-								fileName = file;
-								reply += s;
-								reply += " ";
-								break;
-							}
-						}
-					}
+				// the users we follow that have the photo with a caption in this language (see MediaCatalog).
+				String captionName = MediaCatalog.captionName(photoName, captionLanguage);
+				StringBuilder reply = new StringBuilder();
+				for(String s : this.catalog.search(captionName, this.graph.getFollowing(clientID))) {
+					if(s.equals(clientID))
+						continue;
+					reply.append(s);
+					reply.append(" ");
+				}
 
-					Message searchReply = new Message("Search reply", reply, fileName);
-					this.out.writeObject(searchReply);
-					this.out.flush();
+				// the name of the caption is sent only if someone has it.
+				Message searchReply = new Message("Search reply", reply.toString(), reply.length() > 0 ? captionName : "");
+				this.send(searchReply);
 
+				break;
+			}
+			case ASK_COMMENT: {
+				String[] data = m.getData().split("\\|");
+				String photo = data[0];
+				String userToComment = data[1];
+				String comment = data[2];
+				if(this.users.contains(userToComment) && validateComment(photo,userToComment)) {
+					this.notifications.add(userToComment, Inbox.Kind.COMMENT_REQUEST, photo+"|"+comment+"|"+m.getSender());
 				}
-				else if(header.equals("Ask Comment")) {
-					String[] data = m.getData().split("\\|");
-					String photo = data[0];
-					String userToComment = data[1];
-					String comment = data[2];
-					if(validateComment(photo,userToComment))
-						this.commentRequests.get(userToComment).add(photo+"|"+comment+"|"+m.getSender());
-					else {
-						this.out.writeObject(new Message("Error Comment","",""));
-						this.out.flush();
-					}
+				else {
+					this.send(new Message("Error Comment","",""));
 				}
+				break;
+			}
 
-				else if(header.equals("Comment Notification")) {
-					ArrayList<String> CommentNotifications = this.commentRequests.get(this.clientID);
-					String reply = "";
-					if(CommentNotifications.size() > 0) {
-						for(String s: CommentNotifications)
-							reply += s+"`";
-						Message msg = new Message("Comment requests", reply, "");
-						this.out.writeObject(msg);
-						this.commentRequests.get(clientID).clear();
-					}
-				}
+			case COMMENT_NOTIFICATION: {
+				this.poll(m);
+				break;
+			}
 
-				else if(header.equals("Approve Comment")) {
-					String[] data = m.getData().split("\\|");
-					FileWriter fw 		= new FileWriter("ServerDirectory/"+data[2]+"/Profile_998"+data[2]+".txt",true);
+			case APPROVE_COMMENT: {
+				String[] data = m.getData().split("\\|");
+				if(this.unknownUser(data[2]))
+					break;
+				UserFiles.ensure(data[2]);
+				ReentrantLock profileLock = UserFiles.profileLock(data[2]);
+				profileLock.lock();
+				try {
+					FileWriter fw 		= new FileWriter(UserFiles.profile(data[2]),true);
 					BufferedWriter bw 	= new BufferedWriter(fw);
 					bw.append("\nComment: "+ data[1]);
 					bw.close();
-					this.commentAccepts.get(data[2]).add(data[0]+"|"+data[1]+"|"+this.clientID+"|"+"Approved");
-
 				}
-				else if(header.equals("Deny Comment")) {
-					String[] data = m.getData().split("\\|");
-					this.commentAccepts.get(data[2]).add(data[0]+"|"+data[1]+"|"+this.clientID+"|"+"Deny");
+				finally {
+					profileLock.unlock();
 				}
-				
-				/*
-				 * Here the client asks to download a photo that is stored in someone's directory.
-				 * Fist, we find the photo and the caption is exists. Then we have to generate the APDUs 
-				 * because photo can not be sent in a single message. Finally we send all the APDUs to the client.
-				 * See generateAPDUs and SendAPDUs above for more information. (See download operation in client).
-				 */
-				else if(header.equals("Download request")) {
-					try {
-						Message requestReply = new Message("Download accept", "", "");
-						this.out.writeObject(requestReply);
-						this.out.flush();
-
-						Message download = (Message) this.in.readObject(); // Header == download, receive info
-
-						String photoName = download.getData().split("_")[0];
-						String captionName = download.getData();
-						String clientWithPhoto = download.getSender();
-
-						File directory = new File("ServerDirectory/"+clientWithPhoto);
-						String[] fileNames = directory.list();
-						String fileName = "";
-						for(String s : fileNames) {
-							if(s.contains(photoName) && !s.endsWith("txt")) {
-								fileName = s; 
-								break;
-							}
+				this.profiles.invalidate(data[2]);
+				this.notifications.add(data[2], Inbox.Kind.COMMENT_OUTCOME, data[0]+"|"+data[1]+"|"+this.clientID+"|"+"Approved");
+
+				break;
+			}
+			case DENY_COMMENT: {
+				String[] data = m.getData().split("\\|");
+				if(this.unknownUser(data[2]))
+					break;
+				this.notifications.add(data[2], Inbox.Kind.COMMENT_OUTCOME, data[0]+"|"+data[1]+"|"+this.clientID+"|"+"Deny");
+				break;
+			}
+		
+			/*
+			 * Here the client asks to download a photo that is stored in someone's directory.
+			 * Fist, we find the photo and the caption is exists. Then we have to generate the APDUs 
+			 * because photo can not be sent in a single message. Finally we send all the APDUs to the client.
+			 * See generateAPDUs and sendAPDUs above for more information. (See download operation in client).
+			 * If the client asked for a "Download stream" the photo is streamed instead (see streamFile).
+			 */
+			case DOWNLOAD_REQUEST: {
+				try {
+					Message requestReply = new Message("Download accept", "", "");
+					this.send(requestReply);
 
+					Message download = this.channel.receive(); // Header == download, receive info
+
+					String photoName = download.getData().split("_")[0];
+					String captionName = download.getData();
+					String clientWithPhoto = download.getSender();
+
+					String fileName = this.catalog.getPhotoFile(clientWithPhoto, photoName);
+					boolean streamed = download.getOpcode() == Opcode.DOWNLOAD_STREAM;
+					NetLog.event(NetLog.Category.DOWNLOAD, NetLog.Level.INFO, "request").with("user", this.clientID).with("owner", clientWithPhoto)
+						.with("file", fileName).with("mode", streamed ? "stream" : "chunks").log();
+
+					/*
+					 * The photo is opened (or read, for the chunks) before anything is sent. If it does not exist or can not be
+					 * read the client gets a Download error with the reason instead of the photo and the caption, and stops waiting.
+					 */
+					String error = null;
+					FileChannel file = null;
+					Message[] APDUs = null;
+					String filePathName = "ServerDirectory/"+clientWithPhoto+"/"+fileName;
+					if(fileName == null) {
+						error = "The photo " + photoName + " of " + clientWithPhoto + " does not exist";
+					}
+					else if(streamed) {
+						try {
+							file = FileChannel.open(Paths.get(filePathName), StandardOpenOption.READ);
+						}
+						catch (IOException e) {
+							error = "The photo " + fileName + " could not be read";
 						}
-						String filePathName = "ServerDirectory/"+clientWithPhoto+"/"+fileName;
-						System.out.println(fileName);
-						Message[] APDUs = generateAPDUs(filePathName);
-						this.sendAPDUsGBN(APDUs);
-						
-						this.sendCaption(captionName,clientWithPhoto);
-						
-						this.synchClientDirectory(clientWithPhoto, fileName,captionName);
-						
-						
-					} catch (IOException  e) {
-						e.printStackTrace();
 					}
+					else if((APDUs = generateAPDUs(filePathName)) == null) {
+						error = "The photo " + fileName + " could not be read";
+					}
+					if(error != null) {
+						NetLog.event(NetLog.Category.DOWNLOAD, NetLog.Level.WARN, "failed").with("user", this.clientID).with("owner", clientWithPhoto)
+							.with("reason", error).log();
+						this.send(new Message("Download error", error, clientWithPhoto));
+						break;
+					}
+
+					if(streamed)
+						this.streamFile(file, fileName);
+					else
+						this.sendAPDUs(APDUs);
+				
+					this.sendCaption(captionName,clientWithPhoto);
+				
+					this.synchClientDirectory(clientWithPhoto, fileName,captionName);
+				
+				
+				} catch (ProtocolException e) {
+					throw e; // the connection is closed (see run).
+				} catch (IOException  e) {
+					e.printStackTrace();
 				}
-				/*
-				 * Client requested to log out and he has already closed the connection.
-				 * We close the connection too and the Thread is terminated.
-				 */
-				else if(header.equals("Log Out")) {
-					this.connection.close();
-					break;
-				}
-			} 
-			catch (ClassNotFoundException | IOException e) {
-				e.printStackTrace();
+				break;
 			}
-		}	
+			/*
+			 * Client requested to log out and he has already closed the connection.
+			 * We close the connection too and the Thread is terminated.
+			 */
+			case LOG_OUT: {
+				this.notifications.unsubscribe(this.clientID, this);
+				this.channel.close();
+				break;
+			}
+			default:
+				break;
+		}
 	}
 	
 	
@@ -829,51 +816,126 @@ public class ClientHandler implements Runnable {
 	
 	
 	/*
-	 * The method takes as input the names file, the bytes of the photo, the caption and the profile.
-	 * First it creates the photo file and it adds it to the client directory. Then, it checks if the client
-	 * has also posted a caption with the photo ( it's not necessary ) and if this is true then it creates the caption
-	 * file and adds it to the directory. Finally it updates it's profile with his new post.
+	 * The method takes as input the names of the photo and the captions, which are already written
+	 * to the client directory as they arrived (see UserFiles.receive), and the profile.
+	 * First it adds the photo to the catalog. Then, it checks if the client
+	 * has also posted a caption with the photo ( it's not necessary ) and if this is true then it adds the caption
+	 * too. Finally it updates it's profile with his new post, unless
+	 * the profile is null (the post was appended on its own, see appendPost).
 	 */
-	private void synchClientDirectory(String fileName, byte[] photoBytes,ArrayList<String> captionNames ,ArrayList<Byte[]> captionsBytes, byte[] profileBytes) {
+	private void synchClientDirectory(String fileName, ArrayList<String> captionNames, byte[] profileBytes) {
 		
 		try {
 			String dirPath = "ServerDirectory/"+this.clientID+"/"; // path of client's directory.
-			FileOutputStream photo = new FileOutputStream(dirPath+fileName); // new photo file.
-			photo.write(photoBytes); // write the file.
-			photo.close(); // store it and close the stream.
+			this.catalog.addFile(this.clientID, fileName);
 			
 			/*
 			 * If caption exists then do the same for 
 			 * caption.
 			 */
+			for(String captionName : captionNames)
+				this.catalog.addFile(this.clientID, captionName);
 
-
-			for(int i=0;i<captionsBytes.size();i++){
-				FileOutputStream caption = new FileOutputStream(dirPath+captionNames.get(i));
-				for(byte b: captionsBytes.get(i))
-					caption.write(b);
-				caption.close();
-			}
+			if(profileBytes == null)
+				return;
 
 			 //Update the profile for the user's new post.
 			FileOutputStream profile = new FileOutputStream(dirPath+"Profile_998"+this.clientID+".txt");
 			profile.write(profileBytes);
 			profile.close();
+			this.profiles.invalidate(this.clientID);
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	private boolean validateComment(String photo,String userToComment) {
-		File directory = new File("ServerDirectory/"+userToComment);
-		String[] fileNames = directory.list();
-		for(String file : fileNames) {
-			if(file.contains(photo) && !file.endsWith(".txt")) {
-				return true;
+	/*
+	 * Reads the captions of an upload (at most two, an empty name and a length of 0 for a missing one)
+	 * from the raw input into the client directory, and returns their names.
+	 */
+	private ArrayList<String> readCaptions(DataInputStream dis) throws IOException {
+		ArrayList<String> captionNames = new ArrayList<>();
+		for(int i=0;i<2;i++) {
+			String captionName = dis.readUTF();
+
+			int hasCaption = dis.readInt();
+			if (hasCaption != 0) {
+				captionNames.add(captionName);
+				UserFiles.receive(dis, this.clientID, captionName, UserFiles.partFile(this.clientID, captionName, hasCaption, 0), 0, hasCaption);
+			}
+		}
+		return captionNames;
+	}
+
+	/*
+	 * Appends a new post to the profile of the client. The version of a profile is its length in bytes, and
+	 * the client sends the version of its copy. If it is the version of our profile the client is up to date
+	 * and the reply is "OK <new version>". If it is older, approved comments were appended since the client
+	 * last synchronized: the reply is "Behind <new version>" and the bytes after the client's version. If it is
+	 * newer the client's copy differs from ours, so the reply is "Reset <new version>" and our whole profile.
+	 * In every case the post is appended, and the client appends it to what it received. The bytes are sent
+	 * as ISO-8859-1 characters, which keeps them unchanged whatever their encoding.
+	 */
+	private Message appendPost(long version, byte[] post) throws IOException {
+		String status;
+		byte[] missing;
+		long newVersion;
+		ReentrantLock profileLock = UserFiles.profileLock(this.clientID);
+		profileLock.lock();
+		try {
+			long length = UserFiles.profile(this.clientID).length();
+			if(version == length) {
+				status 	= "OK";
+				missing = new byte[0];
+			}
+			else if(version < length) {
+				status 	= "Behind";
+				missing = UserFiles.readProfile(this.clientID, version);
 			}
+			else {
+				status 	= "Reset";
+				missing = UserFiles.readProfile(this.clientID, 0);
+			}
+			UserFiles.appendProfile(this.clientID, post);
+			newVersion = length + post.length;
+		}
+		finally {
+			profileLock.unlock();
 		}
-		return false;
+		this.profiles.invalidate(this.clientID);
+		return new Message("Sync post reply", status + " " + newVersion + "\n" + new String(missing, StandardCharsets.ISO_8859_1), "");
+	}
+
+	/*
+	 * Reads the profile of a user as it is sent to the client: a new line and then
+	 * every line of the file followed by a new line.
+	 */
+	private static String readProfile(String user) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader("ServerDirectory/"+user+"/Profile_998"+user+".txt"));
+		StringBuilder profile = new StringBuilder("\n");
+		String line = reader.readLine();
+		while(line!=null) {
+			profile.append(line).append("\n");
+			line = reader.readLine();
+		}
+		reader.close();
+		return profile.toString();
+	}
+
+	/*
+	 * The names of the requests come from the client. A name that is not registered is answered with
+	 * a Request error and returns true, so nothing is numbered, queued or created for it.
+	 */
+	private boolean unknownUser(String user) throws IOException {
+		if(this.users.contains(user))
+			return false;
+		this.send(new Message("Request error", "There is no user " + user, ""));
+		return true;
+	}
+
+	private boolean validateComment(String photo,String userToComment) {
+		return this.catalog.getPhotoFile(userToComment, photo) != null;
 	}
 	
 
@@ -896,25 +958,17 @@ public class ClientHandler implements Runnable {
 			Path srcPath = Paths.get("ServerDirectory/"+client+"/"+fileName);
 			String destPath = "ServerDirectory/"+this.clientID+"/"+fileName;
 			Files.copy(srcPath,new File(destPath).toPath(),StandardCopyOption.REPLACE_EXISTING);
-			
+			this.catalog.addFile(this.clientID, fileName);
 			
 			// Do the same for the caption file if exists.
-			File directory = new File("ServerDirectory/"+client+"/");
-			String[] filesInDir = directory.list();
-			boolean flag = false; // flag for checking file's existence.
-			for(String s: filesInDir) {
-				if(s.equals(captionName)) {
-					flag = true;
-					break;
-				}
-			}
-			if(!flag) // caption does not exists just return no actions are required.
+			if(!this.catalog.hasCaption(client, captionName)) // caption does not exists just return no actions are required.
 				return;
 			
 			//copy the caption file
 			srcPath = Paths.get("ServerDirectory/"+client+"/"+captionName);
 			destPath = "ServerDirectory/"+this.clientID+"/"+captionName;
 			Files.copy(srcPath,new File(destPath).toPath(),StandardCopyOption.REPLACE_EXISTING);
+			this.catalog.addFile(this.clientID, captionName);
 		} 
 		catch (IOException e) {
 			e.printStackTrace();
@@ -927,54 +981,52 @@ public class ClientHandler implements Runnable {
 	 * This method is responsible for updating the graph according to the changes 
 	 * that are getting place in the social network. Possible modifications occur when 
 	 * a user follows another user, or a user unfollows another user. It is used in the
-	 * follow and unfollow operations.
+	 * follow and unfollow operations. The graph appends the change to its log (see GraphLog),
+	 * so the graph file is no longer rewritten here.
 	 */
 	private void updateGraph(boolean flag, String follower) {
 		// 0 for follow update, 1 for unfollow update
 		if(!flag) {
-			this.graph.get(clientID).add(follower);
+			this.graph.addFollower(clientID, follower);
 			// if someone followed the client we are handling the we get it's followers list and simple add him to them.
 		}
 		else {
-			this.graph.get(follower).remove(clientID);
+			this.graph.removeFollower(follower, clientID);
 			// if our user unfollowed a user U then we go to the U's followers and simply delete our client from them.
 		}
-
-		/*
-		 * After our graph structure is updated appropriately just loop through it's entries
-		 * ( graph is modeled as a HashMap ) and write the graph file. 
-		 */
-		try {
-			BufferedWriter writer = new BufferedWriter(new FileWriter("SocialGraph.txt", false));
-			writer.close();
-			writer = new BufferedWriter(new FileWriter("SocialGraph.txt", true));
-			
-			for(Map.Entry<String,ArrayList<String>> set : this.graph.entrySet()) {
-				writer.append(set.getKey());
-				for(String s : set.getValue()) {
-					writer.append(" " + s);
-				}
-				writer.append("\n");
+	}
+	
+	//the users that a client follows, separated by spaces. It is the data of the reply to Get following
+	static String following(SocialGraph graph, String clientID) {
+		StringBuilder following = new StringBuilder();
+		for(String s : graph.getFollowing(clientID)) {
+			if(!s.equals(clientID)) {
+				following.append(s);
+				following.append(" ");
 			}
-			writer.close();
-			
-		} catch (IOException e) {
-			
-			e.printStackTrace();
 		}
+		return following.toString();
+	}
 
+	//the users that a client does not follow, separated by spaces. It is the data of the reply to Pull Users
+	static String notFollowing(SocialGraph graph, String clientID) {
+		StringBuilder notFollowing = new StringBuilder();
+		Set<String> following = graph.getFollowing(clientID);
+		for(String s : graph.getUsers()) {
+			if(!s.equals(clientID) && !following.contains(s)) {
+				notFollowing.append(s);
+				notFollowing.append(" ");
+			}
+		}
+		return notFollowing.toString();
 	}
-	
+
 	/*
 	 * This method is responsible for checking if the name
 	 * requested by a user during the sign up is in usage. Used in the 
 	 * sing up functionality.
 	 */
 	private boolean checkNameAvailability(String name) {
-		for(Pair<String,String> pair : this.registeredUsers) { 
-			if(pair.getKey().equals(name))
-				return false;
-		}
-		return true;
+		return !this.users.isTaken(name);
 	}
 }
@@ -0,0 +1,272 @@
+package socialNetwork;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class delivers a new post to the feeds of the followers of its author. The handler of
+ * the upload only queues the post (see submit) and goes on with the next request of its client.
+ * The delivery runs in two stages:
+ *
+ *     dispatcher : takes the posts from the intake queue, reads the followers of the author and
+ *                  hands them in slices to the shard that owns each follower (by its number, see SymbolTable).
+ *     shards 	  : --fanout.workers threads. A follower always belongs to the same shard, so only one
+ *                  thread appends to its Others_998 file. A shard takes up to --fanout.batch slices at
+ *                  a time and gathers the posts of each follower, so a follower that gets many posts
+ *                  has its file opened once per batch. Then the posts are added to the inbox of the
+ *                  follower (see NotificationCenter).
+ *
+ * The followers travel as numbers, in int arrays, and are turned into names only to open their files.
+ *
+ * The queues are bounded (--fanout.queue). When the shards fall behind the dispatcher waits for them, and when
+ * the dispatcher falls behind the handlers wait in submit. The lag between the upload and the delivery is
+ * kept in getLastLagMillis and getMaxLagMillis.
+ *
+ * A post or a follower that fails is logged and counted (fanout.failed) and the thread goes on with the next
+ * one. A dispatcher or a shard that stopped would leave its queue full, and every upload after it would wait in submit.
+ */
+public class FeedFanout {
+
+	private static final int SLICE = 512; // followers of a post handed to a shard at once.
+	private static final Metrics.Timer BATCHES = Metrics.timer("fanout", "batch"); // a batch that failed to write a feed is an error.
+	private static final AtomicLong FAILED 	= Metrics.counter("fanout.failed"); // posts that a follower did not get.
+
+	private final SocialGraph graph;
+	private final SymbolTable symbols;
+	private final NotificationCenter notifications;
+	private final int batch = Math.max(1, Settings.getInt("fanout.batch", 256));
+	private final BlockingQueue<Post> intake;
+	private final ArrayList<BlockingQueue<Slice>> shards = new ArrayList<>();
+
+	private final AtomicLong submitted 	= new AtomicLong(); // posts queued by the handlers.
+	private final AtomicLong delivered 	= new AtomicLong(); // feed entries written.
+	private final AtomicLong fileWrites = new AtomicLong(); // times a feed file was opened for appending.
+	private volatile long lastLag 		= 0;
+	private volatile long maxLag 		= 0;
+
+	public FeedFanout(SocialGraph graph, SymbolTable symbols, NotificationCenter notifications) {
+		this.graph 				 = graph;
+		this.symbols 			 = symbols;
+		this.notifications 		 = notifications;
+		int capacity = Math.max(1, Settings.getInt("fanout.queue", 1024));
+		this.intake = new ArrayBlockingQueue<>(capacity);
+		int workers = Math.max(1, Settings.getInt("fanout.workers", Runtime.getRuntime().availableProcessors()));
+		for(int i = 0; i < workers; i++)
+			this.shards.add(new ArrayBlockingQueue<>(capacity));
+	}
+
+	//starts the dispatcher and the shards
+	public void start() {
+		daemon("fanout-dispatcher", this::dispatch);
+		for(int i = 0; i < this.shards.size(); i++) {
+			BlockingQueue<Slice> queue = this.shards.get(i);
+			daemon("fanout-" + i, () -> this.deliver(queue));
+		}
+	}
+
+	//queues a new post of an author for the feeds of its followers
+	public void submit(String author, String post) {
+		try {
+			this.intake.put(new Post(author, post, System.nanoTime()));
+			this.submitted.incrementAndGet();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	//posts and slices of followers that wait in the queues
+	public int getQueued() {
+		int queued = this.intake.size();
+		for(BlockingQueue<Slice> shard : this.shards)
+			queued += shard.size();
+		return queued;
+	}
+
+	public long getSubmitted() {
+		return this.submitted.get();
+	}
+
+	public long getDelivered() {
+		return this.delivered.get();
+	}
+
+	public long getFileWrites() {
+		return this.fileWrites.get();
+	}
+
+	//time between the upload and the delivery of the oldest post in the last batch
+	public long getLastLagMillis() {
+		return this.lastLag;
+	}
+
+	public long getMaxLagMillis() {
+		return this.maxLag;
+	}
+
+	/*
+	 * The dispatcher. The followers are copied in slices, so a user with many followers
+	 * is spread over the shards without building one big list per shard.
+	 */
+	private void dispatch() {
+		try {
+			while(true) {
+				Post post = this.intake.take();
+				try {
+					this.dispatch(post);
+				}
+				catch (RuntimeException e) {
+					failed(post.author, 1, e);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// the server is shutting down.
+		}
+	}
+
+	private void dispatch(Post post) throws InterruptedException {
+		int shards = this.shards.size();
+		int[][] slices = new int[shards][SLICE];
+		int[] sizes = new int[shards];
+		for(int follower : this.graph.getFollowerIds(this.symbols.idOf(post.author))) {
+			int shard = follower % shards;
+			slices[shard][sizes[shard]++] = follower;
+			if(sizes[shard] == SLICE) {
+				this.shards.get(shard).put(new Slice(post, slices[shard], SLICE));
+				slices[shard] = new int[SLICE];
+				sizes[shard] = 0;
+			}
+		}
+		for(int i = 0; i < shards; i++) {
+			if(sizes[i] > 0)
+				this.shards.get(i).put(new Slice(post, slices[i], sizes[i]));
+		}
+	}
+
+	/*
+	 * A shard: writes the posts of its followers in batches. The posts of a batch are numbered and every
+	 * (follower, post) pair is kept in a long, follower in the high half, so sorting the longs groups the
+	 * posts of each follower in the order they were uploaded.
+	 */
+	private void deliver(BlockingQueue<Slice> queue) {
+		ArrayList<Slice> slices = new ArrayList<>(this.batch);
+		while(true) {
+			try {
+				slices.add(queue.take());
+				queue.drainTo(slices, this.batch - 1);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			long begin = System.nanoTime();
+			boolean completed = true;
+			long oldest = Long.MAX_VALUE;
+			ArrayList<String> posts = new ArrayList<>(); // the posts of the batch, numbered in the order they were uploaded.
+			int count = 0;
+			for(Slice slice : slices)
+				count += slice.size;
+			long[] entries = new long[count];
+			count = 0;
+			Post last = null;
+			for(Slice slice : slices) {
+				oldest = Math.min(oldest, slice.post.submitted);
+				if(slice.post != last) // the slices of a post come one after the other.
+					posts.add(slice.post.text);
+				last = slice.post;
+				long post = posts.size() - 1;
+				for(int i = 0; i < slice.size; i++)
+					entries[count++] = ((long)slice.followers[i] << 32) | post;
+			}
+			slices.clear();
+			Arrays.sort(entries);
+
+			for(int start = 0; start < entries.length; ) {
+				int follower = (int)(entries[start] >>> 32);
+				ArrayList<String> feed = new ArrayList<>();
+				int end = start;
+				while(end < entries.length && (int)(entries[end] >>> 32) == follower)
+					feed.add(posts.get((int)entries[end++]));
+				start = end;
+
+				String name = this.symbols.nameOf(follower);
+				try {
+					this.appendFeed(name, feed);
+					this.delivered.addAndGet(feed.size());
+				}
+				catch (IOException | RuntimeException e) {
+					failed(name, feed.size(), e);
+					completed = false;
+				}
+				try {
+					this.notifications.addAll(name, Inbox.Kind.UPLOAD, feed);
+				}
+				catch (RuntimeException e) {
+					failed(name, feed.size(), e);
+					completed = false;
+				}
+			}
+
+			BATCHES.stop(begin, completed);
+			long lag = (System.nanoTime() - oldest) / 1000000;
+			this.lastLag = lag;
+			if(lag > this.maxLag)
+				this.maxLag = lag;
+		}
+	}
+
+	//appends the new posts to the feed that the server keeps for a follower
+	private void appendFeed(String follower, ArrayList<String> posts) throws IOException {
+		UserFiles.ensure(follower);
+		FileWriter fw 		= new FileWriter("ServerDirectory/"+follower+"/"+"Others_998"+follower+".txt",true);
+		BufferedWriter bw 	= new BufferedWriter(fw);
+		for(String post : posts)
+			bw.append(post);
+		bw.close();
+		this.fileWrites.incrementAndGet();
+	}
+
+	//a user whose posts could not be dispatched, or a follower that did not get them
+	private static void failed(String user, int posts, Exception e) {
+		FAILED.addAndGet(posts);
+		NetLog.event(NetLog.Category.FANOUT, NetLog.Level.WARN, "failed").with("user", user).with("posts", posts).with("error", e.toString()).log();
+	}
+
+	private static void daemon(String name, Runnable task) {
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static class Post {
+		final String author;
+		final String text;
+		final long submitted; // System.nanoTime() when the post was queued.
+
+		Post(String author, String text, long submitted) {
+			this.author 	= author;
+			this.text 		= text;
+			this.submitted 	= submitted;
+		}
+	}
+
+	//some followers of a post that belong to the same shard: the first size numbers of the array
+	private static class Slice {
+		final Post post;
+		final int[] followers;
+		final int size;
+
+		Slice(Post post, int[] followers, int size) {
+			this.post 		= post;
+			this.followers 	= followers;
+			this.size 		= size;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package socialNetwork;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The files of the client that the Listener writes while the menu may read or write them too: the feed
+ * (Others_998, the posts of the users we follow) and the profile (Profile_998, our posts and the comments
+ * on them).
+ *
+ * The feed stays open for the whole session in a buffered writer. The posts that arrive are appended to the
+ * buffer, and it is flushed --client.feedFlushMillis (100) ms after the first post that is not on the disk,
+ * so a burst of notifications costs one write and no open or close. The menu calls flush before it reads the feed.
+ * The profile changes rarely, so it is opened for every change, but the changes of the Listener and of the
+ * uploads are made one at a time, so a comment that is approved during an upload is not lost.
+ * An upload reads the version of the profile and sends it under the same lock (lockProfile), so the Listener
+ * cannot append a comment between the two, and applySync writes each approved comment once, whether its
+ * notification arrives before or after the reply of the upload.
+ * The locks are held while the files are written, so they are ReentrantLocks and not monitors, which would keep
+ * the carrier thread of a virtual Listener (--threads=virtual) while it waits for the disk.
+ */
+public class FeedWriter implements Closeable {
+
+	private static final long FLUSH_MILLIS = Settings.getLong("client.feedFlushMillis", 100);
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "feed-flusher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String feedFile;
+	private final String profileFile;
+	private final ReentrantLock feedLock = new ReentrantLock(); // protects the feed and flushScheduled.
+	private final ReentrantLock profileLock = new ReentrantLock(); // protects the profile and expected.
+	private final ArrayList<String> expected = new ArrayList<>(); // comments written by applySync, whose notification has not arrived.
+	private BufferedWriter feed; // opened with the first post.
+	private boolean flushScheduled = false;
+
+	public FeedWriter(String clientID) {
+		this.feedFile 		= "ClientDirectory/"+clientID+"/Others_998"+clientID+".txt";
+		this.profileFile 	= "ClientDirectory/"+clientID+"/Profile_998"+clientID+".txt";
+	}
+
+	//appends posts to the feed, one per line. They reach the file with the next flush
+	public void appendFeed(String[] posts) throws IOException {
+		this.feedLock.lock();
+		try {
+			if(this.feed == null)
+				this.feed = new BufferedWriter(new FileWriter(this.feedFile, true), 1 << 16);
+			for(String post : posts)
+				this.feed.append(post).append('\n');
+			if(!this.flushScheduled) {
+				this.flushScheduled = true;
+				FLUSHER.schedule(this::flushQuietly, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+		finally {
+			this.feedLock.unlock();
+		}
+	}
+
+	public void flush() throws IOException {
+		this.feedLock.lock();
+		try {
+			this.flushScheduled = false;
+			if(this.feed != null)
+				this.feed.flush();
+		}
+		finally {
+			this.feedLock.unlock();
+		}
+	}
+
+	//appends the parts to the profile, or replaces it with them if append is false
+	public void writeProfile(boolean append, byte[]... parts) throws IOException {
+		this.profileLock.lock();
+		try {
+			FileOutputStream out = new FileOutputStream(this.profileFile, append);
+			try {
+				for(byte[] part : parts)
+					out.write(part);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			this.profileLock.unlock();
+		}
+	}
+
+	//appends the comments of a notification, except those that a sync reply has already written
+	public void appendProfile(String text) throws IOException {
+		this.profileLock.lock();
+		try {
+			StringBuilder rest = new StringBuilder();
+			for(String comment : comments(new String(text.getBytes(), StandardCharsets.ISO_8859_1)))
+				if(!this.expected.remove(comment))
+					rest.append(comment);
+			if(rest.length() > 0)
+				this.writeProfile(true, rest.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+		finally {
+			this.profileLock.unlock();
+		}
+	}
+
+	//locks the profile and returns its length, the version that an upload sends. unlockProfile must follow
+	public long lockProfile() {
+		this.profileLock.lock();
+		return new File(this.profileFile).length();
+	}
+
+	public void unlockProfile() {
+		this.profileLock.unlock();
+	}
+
+	/*
+	 Writes the reply of an upload that was sent with the given version. For "Reset" the profile is replaced.
+	 Otherwise the comments that the Listener appended after the version are skipped if the reply has them too,
+	 and those the reply has first are remembered, so their notification does not append them again.
+	*/
+	public void applySync(long version, boolean reset, byte[] missing, byte[] record) throws IOException {
+		this.profileLock.lock();
+		try {
+			if(reset) {
+				this.writeProfile(false, missing, record);
+				return;
+			}
+			ArrayList<String> appended = comments(this.readFrom(version));
+			StringBuilder rest = new StringBuilder();
+			for(String comment : comments(new String(missing, StandardCharsets.ISO_8859_1))) {
+				if(!appended.remove(comment)) {
+					rest.append(comment);
+					this.expected.add(comment);
+				}
+			}
+			this.writeProfile(true, rest.toString().getBytes(StandardCharsets.ISO_8859_1), record);
+		}
+		finally {
+			this.profileLock.unlock();
+		}
+	}
+
+	//the bytes of the profile after position, as ISO_8859_1 so that they compare with those of the server
+	private String readFrom(long position) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(this.profileFile, "r");
+		try {
+			byte[] bytes = new byte[(int) Math.max(0, in.length() - position)];
+			in.seek(Math.min(position, in.length()));
+			in.readFully(bytes);
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	//splits text at the start of each "\nComment: ", so each part is one comment (the first may be something else)
+	private static ArrayList<String> comments(String text) {
+		ArrayList<String> parts = new ArrayList<>();
+		for(String part : text.split("(?=\nComment: )"))
+			if(!part.isEmpty())
+				parts.add(part);
+		return parts;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.feedLock.lock();
+		try {
+			this.flushScheduled = false;
+			if(this.feed != null)
+				this.feed.close();
+			this.feed = null;
+		}
+		finally {
+			this.feedLock.unlock();
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			this.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package socialNetwork;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * This class moves the bytes of a file between a FileChannel and a socket without
+ * copying them to byte arrays. When the socket has a channel (the server and the client
+ * open their sockets through SocketChannel) the kernel copies the file to the socket
+ * (sendfile) and the socket to the file, through a small direct buffer that the JDK reuses.
+ * Other sockets fall back to their streams.
+ */
+public class FileTransfer {
+
+	//writes count bytes of the file, starting at position, to the socket
+	public static void send(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+		long end = position + count;
+		while(position < end) {
+			long n = file.transferTo(position, end - position, target);
+			if(n <= 0 && position >= file.size())
+				throw new EOFException("The file is shorter than expected");
+			position += n;
+		}
+	}
+
+	//reads count bytes from the socket into the file, starting at position
+	public static void receive(ReadableByteChannel source, FileChannel file, long position, long count) throws IOException {
+		long end = position + count;
+		while(position < end) {
+			long n = file.transferFrom(source, position, end - position);
+			if(n <= 0)
+				throw new EOFException("Connection closed during a file transfer");
+			position += n;
+		}
+	}
+
+	//the channel to write to a socket
+	public static WritableByteChannel output(Socket socket) throws IOException {
+		return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+	}
+
+	//the channel to read from a socket, or from the stream if bytes may wait in it
+	public static ReadableByteChannel input(Socket socket, InputStream stream) {
+		return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(stream);
+	}
+}
@@ -0,0 +1,181 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class implements the binary protocol of the social network. The client starts
+ * a connection with the 4 bytes of PREAMBLE and the server answers with the same 4 bytes.
+ * A server that answers anything else only knows the object streams (see Client.connect).
+ * After that every unit that travels on the connection is prefixed with its length and its kind:
+ *
+ *     [int length][byte kind][length bytes of payload]
+ *
+ * A RAW frame holds bytes that follow a message (for example the files of the synchronization).
+ * A MESSAGE frame holds one Message without Java serialization:
+ *
+ *     [byte opcode][int request id][byte fields][the fields that are present, in this order]
+ *
+ *     header 	: [int length][UTF-8 bytes], only if the opcode is UNKNOWN (see Opcode)
+ *     data 	: [int length][UTF-8 bytes]
+ *     sender 	: [int length][UTF-8 bytes]
+ *     seq 		: [int]
+ *     chunk 	: [int length][bytes]
+ */
+public class FrameCodec {
+
+	public static final int PREAMBLE 	 = 0x534E4201; // "SNB" and the version of the protocol.
+	public static final byte MESSAGE 	 = 1;
+	public static final byte RAW 		 = 2;
+	public static final int HEADER_SIZE  = 5;
+	public static final int MAX_FRAME 	 = Settings.getInt("frame.max", 64 * 1024 * 1024); // frames bigger than this close the connection.
+	public static final int MAX_MESSAGE  = Settings.getInt("frame.maxMessage", 64 * 1024); // the biggest message a server accepts from a client.
+	public static final int FILE_FRAME 	 = 1024 * 1024; // payload of the RAW frames that carry a file (see MessageChannel.sendFile).
+
+	// bits of the fields byte
+	private static final int HAS_HEADER = 1;
+	private static final int HAS_DATA 	= 2;
+	private static final int HAS_SENDER = 4;
+	private static final int HAS_SEQ 	= 8;
+	private static final int HAS_CHUNK 	= 16;
+
+	//returns a buffer ready to be written that holds the preamble
+	public static ByteBuffer encodePreamble() {
+		ByteBuffer buffer = ByteBuffer.allocate(4);
+		buffer.putInt(PREAMBLE);
+		buffer.flip();
+		return buffer;
+	}
+
+	//returns a buffer ready to be written that holds a whole MESSAGE frame
+	public static ByteBuffer encodeMessage(Message m) {
+		Opcode opcode = m.getOpcode();
+		byte[] header = opcode == Opcode.UNKNOWN ? utf8(m.getHeader()) : null;
+		byte[] data   = utf8(m.getData());
+		byte[] sender = utf8(m.getSender());
+		byte[] chunk  = m.getChunk();
+
+		int fields = 0;
+		int length = 1 + 4 + 1;
+		if(header != null) {
+			fields |= HAS_HEADER;
+			length += 4 + header.length;
+		}
+		if(data != null) {
+			fields |= HAS_DATA;
+			length += 4 + data.length;
+		}
+		if(sender != null) {
+			fields |= HAS_SENDER;
+			length += 4 + sender.length;
+		}
+		if(m.getSequence() != 0) {
+			fields |= HAS_SEQ;
+			length += 4;
+		}
+		if(chunk != null) {
+			fields |= HAS_CHUNK;
+			length += 4 + chunk.length;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+		buffer.putInt(length);
+		buffer.put(MESSAGE);
+		buffer.put((byte)opcode.getCode());
+		buffer.putInt(m.getRequestId());
+		buffer.put((byte)fields);
+		putBytes(buffer, header);
+		putBytes(buffer, data);
+		putBytes(buffer, sender);
+		if((fields & HAS_SEQ) != 0)
+			buffer.putInt(m.getSequence());
+		putBytes(buffer, chunk);
+		buffer.flip();
+		return buffer;
+	}
+
+	/*
+	 * Decodes the payload of a MESSAGE frame that starts at the position of the buffer
+	 * and leaves the buffer right after it.
+	 */
+	public static Message decodeMessage(ByteBuffer source, int length) throws IOException {
+		int end = source.position() + length;
+		try {
+			Opcode opcode 	= Opcode.of(source.get() & 0xff);
+			int requestId 	= source.getInt();
+			int fields 		= source.get();
+			String header 	= (fields & HAS_HEADER) != 0 ? string(source, end) : opcode.getHeader();
+			String data 	= (fields & HAS_DATA) != 0 ? string(source, end) : null;
+			String sender 	= (fields & HAS_SENDER) != 0 ? string(source, end) : null;
+			int seq 		= (fields & HAS_SEQ) != 0 ? source.getInt() : 0;
+			byte[] chunk 	= (fields & HAS_CHUNK) != 0 ? bytes(source, end) : null;
+			if(source.position() != end)
+				throw new ProtocolException("Invalid message frame");
+			return new Message(opcode, header, data, sender, chunk, seq, requestId);
+		}
+		catch (BufferUnderflowException e) {
+			throw new ProtocolException("Invalid message frame");
+		}
+	}
+
+	//returns a buffer ready to be written that holds a whole RAW frame
+	public static ByteBuffer encodeRaw(byte[] data, int offset, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+		buffer.putInt(length);
+		buffer.put(RAW);
+		buffer.put(data, offset, length);
+		buffer.flip();
+		return buffer;
+	}
+
+	//returns the header of a RAW frame whose payload is written separately (a part of a file)
+	public static ByteBuffer encodeRawHeader(int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+		buffer.putInt(length);
+		buffer.put(RAW);
+		buffer.flip();
+		return buffer;
+	}
+
+	//checks the length of an incoming frame before any buffer is allocated for it
+	public static void checkLength(int length) throws IOException {
+		if(length < 0 || length > MAX_FRAME)
+			throw new ProtocolException("Invalid frame length " + length);
+	}
+
+	/*
+	 * Checks the length of a message that a server received. The server reads a message whole before it decodes it,
+	 * so a client must not make it allocate more than MAX_MESSAGE. The raw bytes are read as they arrive and are not limited.
+	 */
+	public static void checkMessageLength(int length) throws IOException {
+		if(length > MAX_MESSAGE)
+			throw new ProtocolException("Message frame too long " + length);
+	}
+
+	private static byte[] utf8(String s) {
+		return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		if(bytes != null) {
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer source, int end) throws ProtocolException {
+		int length = source.getInt();
+		if(length < 0 || length > end - source.position())
+			throw new ProtocolException("Invalid message frame");
+		byte[] bytes = new byte[length];
+		source.get(bytes);
+		return bytes;
+	}
+
+	private static String string(ByteBuffer source, int end) throws ProtocolException {
+		return new String(bytes(source, end), StandardCharsets.UTF_8);
+	}
+}
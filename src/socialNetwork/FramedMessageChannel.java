@@ -0,0 +1,431 @@
+package socialNetwork;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This is the blocking side of the binary protocol (see FrameCodec). The client uses
+ * it by default, and the classic server uses it for the clients that sent the preamble.
+ *
+ * On the server the messages are not written by the thread that sends them: they are queued
+ * (see OutboundQueue) and a writer task writes all the waiting frames with one flush. The raw
+ * bytes and the files are still written by the thread that sends them, after the queue.
+ */
+public class FramedMessageChannel implements MessageChannel {
+
+	private final Socket socket;
+	private final FrameInputStream buffered;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private static final int OUT_BUFFER = 64 * 1024; // the most bytes of waiting frames written with one flush.
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final ArrayDeque<Message> deferred = new ArrayDeque<>(); // messages that arrived while raw bytes were being read.
+	private int rawRemaining = 0; // bytes of the current RAW frame that are not read yet.
+	private DataOutputStream raw; // stream returned by beginRaw.
+	private final OutboundQueue outbound; // frames waiting for the writer task, null on the client.
+
+	/*
+	 * The client side. Sends the preamble and fails with an IOException if the
+	 * server does not answer with the same preamble.
+	 */
+	public FramedMessageChannel(Socket socket) throws IOException {
+		this(socket, socket.getInputStream(), false);
+		if(this.in.readInt() != FrameCodec.PREAMBLE)
+			throw new ProtocolException("The server does not support the binary protocol");
+	}
+
+	//the server side, after the preamble of the client has been read from the input stream
+	FramedMessageChannel(Socket socket, InputStream input) throws IOException {
+		this(socket, input, true);
+	}
+
+	private FramedMessageChannel(Socket socket, InputStream input, boolean server) throws IOException {
+		this.socket = socket;
+		this.socket.setTcpNoDelay(true);
+		this.outbound = server ? new OutboundQueue(this) : null;
+		this.buffered = new FrameInputStream(input);
+		this.in 	= new DataInputStream(this.buffered);
+		this.out 	= new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUT_BUFFER));
+		this.out.writeInt(FrameCodec.PREAMBLE);
+		this.out.flush();
+	}
+
+	/*
+	 * Returns the next MESSAGE frame. Raw bytes that nobody asked for
+	 * are skipped.
+	 */
+	@Override
+	public Message receive() throws IOException, ClassNotFoundException {
+		synchronized(this.deferred) {
+			if(!this.deferred.isEmpty())
+				return this.deferred.poll();
+		}
+		while(true) {
+			if(this.rawRemaining > 0) {
+				this.in.skipNBytes(this.rawRemaining);
+				this.rawRemaining = 0;
+			}
+			int length = this.in.readInt();
+			FrameCodec.checkLength(length);
+			byte kind = this.in.readByte();
+			if(kind == FrameCodec.MESSAGE)
+				return this.readMessage(length);
+			this.rawRemaining = length; // skipped as it is read, nothing is allocated for it.
+		}
+	}
+
+	@Override
+	public void send(Message m) throws IOException {
+		ByteBuffer frame = FrameCodec.encodeMessage(m);
+		if(this.outbound != null) {
+			this.enqueue(frame);
+			return;
+		}
+		this.writeLock.lock();
+		try {
+			this.out.write(frame.array(), 0, frame.limit());
+			this.out.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	//queues a frame and starts a writer task if none is running. A client that is too slow is disconnected
+	private void enqueue(ByteBuffer frame) throws IOException {
+		if(this.socket.isClosed())
+			throw new EOFException("Connection closed");
+		try {
+			this.outbound.add(frame);
+		}
+		catch (IOException e) {
+			this.close();
+			throw e;
+		}
+		if(this.outbound.claim())
+			OutboundQueue.WRITERS.execute(this::drain);
+	}
+
+	//the writer task. It stops when the queue is empty, and closes the connection if writing fails
+	private void drain() {
+		do {
+			this.writeLock.lock();
+			try {
+				this.writeQueued();
+			}
+			catch (IOException e) {
+				try {
+					this.close();
+				}
+				catch (IOException e1) {
+					e1.printStackTrace();
+				}
+				return;
+			}
+			finally {
+				this.writeLock.unlock();
+			}
+		} while(this.outbound.release());
+	}
+
+	/*
+	 * Writes the waiting frames, up to the size of the buffer, and flushes them once.
+	 * Must be called with the write lock held.
+	 */
+	private void writeQueued() throws IOException {
+		if(this.outbound == null)
+			return;
+		int written = 0;
+		Object frame;
+		while(written < OUT_BUFFER && (frame = this.outbound.poll()) != null) {
+			ByteBuffer bytes = (ByteBuffer)frame;
+			this.out.write(bytes.array(), 0, bytes.limit());
+			written += bytes.limit();
+		}
+		this.out.flush();
+		this.outbound.progress();
+	}
+
+	@Override
+	public DataOutputStream beginRaw(Message header) throws IOException {
+		this.writeLock.lock();
+		try {
+			while(this.outbound != null && !this.outbound.isEmpty())
+				this.writeQueued();
+			ByteBuffer frame = FrameCodec.encodeMessage(header);
+			this.out.write(frame.array(), 0, frame.limit());
+			this.raw = new DataOutputStream(new BufferedOutputStream(new RawFrameOutputStream(), 8192));
+			return this.raw;
+		}
+		catch (IOException e) {
+			this.writeLock.unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public void endRaw() throws IOException {
+		try {
+			this.raw.flush();
+			this.out.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public DataInputStream rawInput() throws IOException {
+		return new DataInputStream(new RawFrameInputStream());
+	}
+
+	/*
+	 * The file is sent in RAW frames of FrameCodec.FILE_FRAME bytes. The header of each frame
+	 * goes through the buffered stream, its payload goes from the file to the socket directly.
+	 */
+	@Override
+	public void sendFile(Message header, FileChannel file, long count) throws IOException {
+		this.writeLock.lock();
+		try {
+			while(this.outbound != null && !this.outbound.isEmpty())
+				this.writeQueued();
+			ByteBuffer frame = FrameCodec.encodeMessage(header);
+			this.out.write(frame.array(), 0, frame.limit());
+			if(this.outbound != null)
+				this.outbound.progress(true); // a client that stops reading the file is as slow as one that stops reading messages.
+			WritableByteChannel target = FileTransfer.output(this.socket);
+			long position = 0;
+			while(position < count) {
+				int n = (int)Math.min(FrameCodec.FILE_FRAME, count - position);
+				this.out.writeInt(n);
+				this.out.writeByte(FrameCodec.RAW);
+				this.out.flush();
+				FileTransfer.send(file, position, n, target);
+				position += n;
+				if(this.outbound != null)
+					this.outbound.progress(position < count); // the client is reading, the messages that wait for the file are not late.
+			}
+			this.out.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+			file.close();
+		}
+	}
+
+	/*
+	 * Reads the payload of the next RAW frames into the file. The bytes that the buffered
+	 * stream has already read are written first, the rest goes from the socket to the file.
+	 */
+	@Override
+	public void receiveFile(FileChannel file, long count) throws IOException {
+		long position = 0;
+		while(position < count) {
+			while(this.rawRemaining == 0)
+				this.nextFrame();
+			int n = (int)Math.min(this.rawRemaining, count - position);
+			int buffered = this.buffered.drainTo(file, position, n);
+			if(buffered < n)
+				FileTransfer.receive(FileTransfer.input(this.socket, this.buffered), file, position + buffered, n - buffered);
+			position += n;
+			this.rawRemaining -= n;
+		}
+	}
+
+	/*
+	 * Reads the header of the next frame. A RAW frame is left to be read by the caller,
+	 * a message is kept and returned later by receive.
+	 */
+	private void nextFrame() throws IOException {
+		int length = this.in.readInt();
+		FrameCodec.checkLength(length);
+		byte kind = this.in.readByte();
+		if(kind == FrameCodec.RAW) {
+			this.rawRemaining = length;
+		}
+		else {
+			Message m = this.readMessage(length);
+			synchronized(this.deferred) {
+				this.deferred.add(m);
+			}
+		}
+	}
+
+	//reads the payload of a MESSAGE frame. On the server a client can not make it bigger than FrameCodec.MAX_MESSAGE
+	private Message readMessage(int length) throws IOException {
+		if(this.outbound != null)
+			FrameCodec.checkMessageLength(length);
+		byte[] payload = new byte[length];
+		this.in.readFully(payload);
+		return FrameCodec.decodeMessage(ByteBuffer.wrap(payload), length);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !this.socket.isClosed();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return this.socket.getInetAddress().getHostAddress();
+	}
+
+	@Override
+	public int getRemotePort() {
+		return this.socket.getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.socket.close();
+	}
+
+	/*
+	 * Every block written to this stream becomes a RAW frame. It is wrapped
+	 * in a buffered stream so that small writes are gathered in one frame.
+	 */
+	private class RawFrameOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			this.write(new byte[] {(byte)b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return;
+			out.writeInt(len);
+			out.writeByte(FrameCodec.RAW);
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.flush();
+		}
+	}
+
+	/*
+	 * Reads the payload of consecutive RAW frames as one stream. Messages
+	 * found in between are kept and returned later by receive.
+	 */
+	private class RawFrameInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return this.read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			while(rawRemaining == 0)
+				nextFrame();
+			int n = in.read(b, off, Math.min(len, rawRemaining));
+			if(n > 0)
+				rawRemaining -= n;
+			return n;
+		}
+	}
+
+	/*
+	 * A buffered stream that can hand the bytes it has read ahead to a file,
+	 * so the rest of a file can be read from the socket channel directly.
+	 * It is read only by the thread that receives from the channel, so it takes no lock. A subclass of
+	 * BufferedInputStream would lock a monitor for every read, and a virtual thread that blocks on the
+	 * socket inside a monitor keeps its carrier thread.
+	 */
+	private static class FrameInputStream extends InputStream {
+		private final InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos = 0; // the next byte of buf to read.
+		private int count = 0; // the end of the bytes read ahead.
+
+		FrameInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		//reads ahead into the empty buffer and returns false at the end of the stream
+		private boolean fill() throws IOException {
+			int n = this.in.read(this.buf, 0, this.buf.length);
+			this.pos = 0;
+			this.count = Math.max(n, 0);
+			return n > 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(this.pos == this.count && !this.fill())
+				return -1;
+			return this.buf[this.pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			if(this.pos == this.count) {
+				if(len >= this.buf.length)
+					return this.in.read(b, off, len); // nothing to gain from copying it through the buffer.
+				if(!this.fill())
+					return -1;
+			}
+			int n = Math.min(len, this.count - this.pos);
+			System.arraycopy(this.buf, this.pos, b, off, n);
+			this.pos += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if(n <= 0)
+				return 0;
+			if(this.pos == this.count)
+				return this.in.skip(n);
+			int k = (int)Math.min(n, this.count - this.pos);
+			this.pos += k;
+			return k;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (this.count - this.pos) + this.in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+
+		//writes up to max buffered bytes to the file and returns how many were written
+		int drainTo(FileChannel file, long position, int max) throws IOException {
+			int n = Math.min(max, this.count - this.pos);
+			if(n <= 0)
+				return 0;
+			ByteBuffer bytes = ByteBuffer.wrap(this.buf, this.pos, n);
+			while(bytes.hasRemaining())
+				position += file.write(bytes, position);
+			this.pos += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package socialNetwork;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class makes the changes of the social graph durable. Instead of rewriting the
+ * whole SocialGraph.txt for every follow and unfollow, each change is appended as a small line
+ * to SocialGraph.log:
+ *
+ *     F <user> <follower>		the follower started following the user
+ *     U <user> <follower>		the follower stopped following the user
+ *     N <user>					a new user joined the graph
+ *
+ * How often the log is forced to the disk is chosen with --graph.fsync:
+ *     always : every change is forced before the handler continues.
+ *     group  : (default) a committer forces all the waiting changes together every
+ *              --graph.groupMillis ms and then releases the handlers that wait for them.
+ *     none   : the changes are handed to the operating system but never forced.
+ *
+ * Every --graph.compactMillis ms a compaction writes a fresh SocialGraph.txt (to a temporary file that
+ * replaces the old one atomically) and deletes the log. While it runs the changes go to a new log, and the old
+ * one is kept as SocialGraph.log.1 until the snapshot is in place. Replaying a change that is already in the
+ * snapshot does nothing, so the server recovers by loading the snapshot and replaying both logs.
+ *
+ * With --graph.snapshot=binary (default) the compaction also writes the binary snapshot, SocialGraph.bin
+ * (see GraphSnapshot), after the text one. If it cannot be written the text file is the newer of the two,
+ * and the server converts it again when it starts.
+ */
+public class GraphLog {
+
+	private static final Metrics.Timer FLUSHES 		= Metrics.timer("graph", "flush"); // a write of the buffer, and its force if there is one.
+	private static final Metrics.Timer WAITS 		= Metrics.timer("graph", "awaitDurable"); // what a change costs the handler that made it.
+	private static final Metrics.Timer COMPACTIONS 	= Metrics.timer("graph", "compact");
+
+	private final SocialGraph graph;
+	private final Path snapshotFile;
+	private final Path logFile;
+	private final Path oldLogFile;
+	private final Path binaryFile; // null with --graph.snapshot=text.
+	private final String policy = Settings.get("graph.fsync", "group");
+	private final ReentrantLock lock = new ReentrantLock(); // protects the buffer, the counters and the log file.
+	private final Condition forced = this.lock.newCondition();
+	private final StringBuilder buffer = new StringBuilder(); // changes appended but not written yet.
+	private final ReentrantLock compactionLock = new ReentrantLock();
+	private FileChannel log;
+	private long appended = 0; // number of the last change appended.
+	private long durable  = 0; // number of the last change written (and forced, if the policy asks for it).
+	private long changesSinceSnapshot = 0;
+
+	public GraphLog(SocialGraph graph, String snapshotFile) throws IOException {
+		this.graph 		  = graph;
+		this.snapshotFile = Paths.get(snapshotFile);
+		this.logFile 	  = Paths.get(snapshotFile.replaceFirst("\\.txt$", "") + ".log");
+		this.oldLogFile   = Paths.get(this.logFile + ".1");
+		this.binaryFile   = Settings.get("graph.snapshot", "binary").equals("binary") ? GraphSnapshot.binaryFile(snapshotFile) : null;
+	}
+
+	/*
+	 * Replays the changes of the logs on a graph that has already been loaded from the snapshot.
+	 * If there was anything to replay a new snapshot is written at once, so both logs are gone
+	 * before the server accepts the first client.
+	 */
+	public void recover() throws IOException {
+		int replayed = this.replay(this.oldLogFile) + this.replay(this.logFile);
+		this.log = FileChannel.open(this.logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		if(replayed > 0) {
+			System.out.println("Replayed " + replayed + " graph changes from the log");
+			this.compact();
+		}
+	}
+
+	//starts the committer (group policy) and the periodic compaction
+	public void start() {
+		ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "graph-log");
+			t.setDaemon(true);
+			return t;
+		});
+		if(this.policy.equals("group")) {
+			long groupMillis = Settings.getLong("graph.groupMillis", 10);
+			background.scheduleWithFixedDelay(this::commit, groupMillis, groupMillis, TimeUnit.MILLISECONDS);
+		}
+		long compactMillis = Settings.getLong("graph.compactMillis", 60000);
+		background.scheduleWithFixedDelay(() -> {
+			try {
+				if(this.changesSinceSnapshot > 0)
+					this.compact();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Adds a change to the log and returns its number. SocialGraph calls it while it holds the lock
+	 * of the edge, so the changes of one edge are logged in the order they were applied. It only copies
+	 * the line to memory. The caller waits for the disk later with awaitDurable, after releasing the edge.
+	 */
+	public long append(char type, String user, String follower) {
+		this.lock.lock();
+		try {
+			this.buffer.append(type).append(' ').append(user);
+			if(follower != null)
+				this.buffer.append(' ').append(follower);
+			this.buffer.append('\n');
+			this.changesSinceSnapshot++;
+			return ++this.appended;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//blocks until the change with this number is as durable as the policy requires
+	public void awaitDurable(long change) {
+		long start = System.nanoTime();
+		boolean completed = false;
+		this.lock.lock();
+		try {
+			if(this.policy.equals("group")) {
+				while(this.durable < change)
+					this.forced.awaitUninterruptibly();
+			}
+			else if(this.durable < change) {
+				this.flush(this.policy.equals("always"));
+			}
+			completed = true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			this.lock.unlock();
+			WAITS.stop(start, completed);
+		}
+	}
+
+	//the committer of the group policy: one write and one force for all the changes that wait
+	private void commit() {
+		this.lock.lock();
+		try {
+			if(this.durable < this.appended)
+				this.flush(true);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	/*
+	 * Writes the buffer to the log and forces it if asked. Must be called with the lock held.
+	 * The handlers that wait for a change are released even if writing failed (the error is
+	 * printed by the caller), so they do not hang.
+	 */
+	private void flush(boolean force) throws IOException {
+		long start = System.nanoTime();
+		boolean completed = false;
+		try {
+			if(this.buffer.length() > 0) {
+				ByteBuffer bytes = StandardCharsets.UTF_8.encode(this.buffer.toString());
+				while(bytes.hasRemaining())
+					this.log.write(bytes);
+			}
+			if(force)
+				this.log.force(false);
+			completed = true;
+		}
+		finally {
+			FLUSHES.stop(start, completed);
+			this.buffer.setLength(0);
+			this.durable = this.appended;
+			this.forced.signalAll();
+		}
+	}
+
+	/*
+	 * Writes a fresh snapshot of the graph and deletes the log. The log is switched while the lock
+	 * is held, so each change is either in the old log (and already applied to the graph that is
+	 * written) or in the new one.
+	 */
+	public void compact() throws IOException {
+		long start = System.nanoTime();
+		boolean completed = false;
+		this.compactionLock.lock();
+		try {
+			this.lock.lock();
+			try {
+				this.flush(true);
+				this.log.close();
+				Files.move(this.logFile, this.oldLogFile, StandardCopyOption.REPLACE_EXISTING);
+				this.log = FileChannel.open(this.logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				this.changesSinceSnapshot = 0;
+			}
+			finally {
+				this.lock.unlock();
+			}
+
+			Path temporary = Paths.get(this.snapshotFile + ".tmp");
+			FileOutputStream out = new FileOutputStream(temporary.toFile());
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+			GraphSnapshot.Builder binary = this.binaryFile == null ? null : new GraphSnapshot.Builder();
+			for(String user : this.graph.getUsers()) {
+				writer.append(user);
+				if(binary != null)
+					binary.addUser(user);
+				for(String s : this.graph.getFollowers(user)) {
+					writer.append(' ').append(s);
+					if(binary != null)
+						binary.addFollower(user, s);
+				}
+				writer.append('\n');
+			}
+			writer.flush();
+			out.getFD().sync();
+			writer.close();
+			Files.move(temporary, this.snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if(binary != null) {
+				try {
+					binary.write(this.binaryFile);
+				}
+				catch (IOException e) {
+					e.printStackTrace(); // the text snapshot is in place, so the log can still go.
+				}
+			}
+			Files.deleteIfExists(this.oldLogFile);
+			NetLog.event(NetLog.Category.GRAPH, NetLog.Level.INFO, "compacted").with("millis", (System.nanoTime() - start) / 1000000).log();
+			completed = true;
+		}
+		finally {
+			this.compactionLock.unlock();
+			COMPACTIONS.stop(start, completed);
+		}
+	}
+
+	/*
+	 * Applies the changes of a log file to the graph. The graph is not connected to the log yet,
+	 * so they are not logged again. A last line that was cut by a crash (no new line at its end)
+	 * is ignored.
+	 */
+	private int replay(Path file) throws IOException {
+		if(!Files.exists(file))
+			return 0;
+		String data = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+		int end = data.lastIndexOf('\n');
+		if(end < 0)
+			return 0;
+		int replayed = 0;
+		for(String line : data.substring(0, end).split("\n")) {
+			String[] s = line.split(" ");
+			if(s[0].equals("N") && s.length == 2)
+				this.graph.addUser(s[1]);
+			else if(s[0].equals("F") && s.length == 3)
+				this.graph.addFollower(s[1], s[2]);
+			else if(s[0].equals("U") && s.length == 3)
+				this.graph.removeFollower(s[1], s[2]);
+			else
+				continue;
+			replayed++;
+		}
+		return replayed;
+	}
+}
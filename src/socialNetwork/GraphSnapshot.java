@@ -0,0 +1,447 @@
+package socialNetwork;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/*
+ * This class is a read only snapshot of the social graph in a compact binary file (SocialGraph.bin).
+ * The user names are sorted and numbered, and each direction of the edges is kept as compressed sparse
+ * rows: an array of offsets (the row of user i is offsets[i] .. offsets[i+1]-1) and one array with the
+ * rows of all the users, every row sorted. The file is:
+ *
+ *     [int magic][int version][int users][int edges]
+ *     [int nameOffsets[users+1]]								where the name of each user starts in the name bytes
+ *     [int followerOffsets[users+1]][int followers[edges]]		who follows each user
+ *     [int followingOffsets[users+1]][int following[edges]]	who each user follows
+ *     [name bytes]												the names in UTF-8, sorted by their bytes
+ *
+ * The server maps the file to memory instead of reading it, so it opens in the same time for any size
+ * of graph and the graph stays outside the heap (the operating system reads the pages that are used).
+ * A name is found by binary search on the name bytes, and the sets that it returns are views that decode
+ * the names while they are walked. The changes made after the snapshot are kept by SocialGraph.
+ *
+ * The file is written from SocialGraph.txt by the server when the text file is newer, by every compaction
+ * of the graph log (see GraphLog) and by hand with: java socialNetwork.GraphSnapshot SocialGraph.txt SocialGraph.bin
+ */
+public class GraphSnapshot {
+
+	private static final int MAGIC 	 = 0x534E4753; // "SNGS"
+	private static final int VERSION = 1;
+	private static final int HEADER  = 16;
+
+	private final int users;
+	private final int edges;
+	private final IntBuffer nameOffsets;
+	private final IntBuffer followerOffsets;
+	private final IntBuffer followers;
+	private final IntBuffer followingOffsets;
+	private final IntBuffer following;
+	private final ByteBuffer names;
+
+	private GraphSnapshot(ByteBuffer file) throws IOException {
+		if(file.capacity() < HEADER || file.getInt(0) != MAGIC || file.getInt(4) != VERSION)
+			throw new IOException("Not a graph snapshot of version " + VERSION);
+		this.users = file.getInt(8);
+		this.edges = file.getInt(12);
+		int position = HEADER;
+		this.nameOffsets 		= ints(file, position, this.users + 1);
+		position += (this.users + 1) * 4;
+		this.followerOffsets 	= ints(file, position, this.users + 1);
+		position += (this.users + 1) * 4;
+		this.followers 			= ints(file, position, this.edges);
+		position += this.edges * 4;
+		this.followingOffsets 	= ints(file, position, this.users + 1);
+		position += (this.users + 1) * 4;
+		this.following 			= ints(file, position, this.edges);
+		position += this.edges * 4;
+		int length = this.nameOffsets.get(this.users);
+		if(position + length != file.capacity())
+			throw new IOException("The graph snapshot is cut or damaged");
+		this.names = slice(file, position, length);
+	}
+
+	//maps a snapshot file to memory
+	public static GraphSnapshot open(Path file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException(file + " is larger than 2 GB");
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after the channel is closed.
+			return new GraphSnapshot(map);
+		}
+	}
+
+	//the binary snapshot that goes with a text snapshot (SocialGraph.txt -> SocialGraph.bin)
+	public static Path binaryFile(String textFile) {
+		return Paths.get(textFile.replaceFirst("\\.txt$", "") + ".bin");
+	}
+
+	//writes the binary snapshot of a SocialGraph.txt
+	public static void convert(Path textFile, Path binaryFile) throws IOException {
+		Builder builder = new Builder();
+		try(BufferedReader reader = Files.newBufferedReader(textFile, StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				StringTokenizer s = new StringTokenizer(line);
+				if(!s.hasMoreTokens()) // skip empty lines.
+					continue;
+				String name = s.nextToken();
+				builder.addUser(name);
+				while(s.hasMoreTokens())
+					builder.addFollower(name, s.nextToken());
+			}
+		}
+		builder.write(binaryFile);
+	}
+
+	public int getUserCount() {
+		return this.users;
+	}
+
+	public int getEdgeCount() {
+		return this.edges;
+	}
+
+	public boolean contains(String user) {
+		return this.idOf(user) >= 0;
+	}
+
+	//returns true if the follower follows the user
+	public boolean isFollower(String user, String follower) {
+		return this.isFollower(this.idOf(user), this.idOf(follower));
+	}
+
+	public boolean isFollower(int user, int follower) {
+		return user >= 0 && this.getFollowers(user).containsId(follower);
+	}
+
+	//the numbers of the followers of a user, sorted (a copy)
+	public int[] getFollowerIds(int user) {
+		return copy(this.followers, this.followerOffsets.get(user), this.followerOffsets.get(user + 1));
+	}
+
+	//the numbers of the users that a user follows, sorted (a copy)
+	public int[] getFollowingIds(int user) {
+		return copy(this.following, this.followingOffsets.get(user), this.followingOffsets.get(user + 1));
+	}
+
+	//returns the followers of a user (a read only view)
+	public Set<String> getFollowers(String user) {
+		int id = this.idOf(user);
+		return id < 0 ? Row.EMPTY : this.getFollowers(id);
+	}
+
+	//returns the users that a user follows (a read only view)
+	public Set<String> getFollowing(String user) {
+		int id = this.idOf(user);
+		return id < 0 ? Row.EMPTY : new Row(this, this.following, this.followingOffsets.get(id), this.followingOffsets.get(id + 1));
+	}
+
+	//returns all the users of the snapshot (a read only view)
+	public Set<String> getUsers() {
+		return new Row(this, null, 0, this.users);
+	}
+
+	private Row getFollowers(int id) {
+		return new Row(this, this.followers, this.followerOffsets.get(id), this.followerOffsets.get(id + 1));
+	}
+
+	//the number of a user, or -1 if he is not in the snapshot
+	public int idOf(String user) {
+		byte[] key = user.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = this.users - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			int c = this.compareName(middle, key);
+			if(c < 0)
+				low = middle + 1;
+			else if(c > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	//compares the name of a user with a name in UTF-8, byte by byte and without the sign, like they were sorted
+	private int compareName(int id, byte[] key) {
+		int start = this.nameOffsets.get(id);
+		int length = this.nameOffsets.get(id + 1) - start;
+		int common = Math.min(length, key.length);
+		for(int i = 0; i < common; i++) {
+			int c = (this.names.get(start + i) & 0xff) - (key[i] & 0xff);
+			if(c != 0)
+				return c;
+		}
+		return length - key.length;
+	}
+
+	public String nameOf(int id) {
+		int start = this.nameOffsets.get(id);
+		byte[] name = new byte[this.nameOffsets.get(id + 1) - start];
+		ByteBuffer b = this.names.duplicate(); // the position of the shared buffer is not touched, so any thread can read it.
+		b.position(start);
+		b.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	private static int[] copy(IntBuffer row, int start, int end) {
+		int[] ids = new int[end - start];
+		for(int i = 0; i < ids.length; i++)
+			ids[i] = row.get(start + i);
+		return ids;
+	}
+
+	private static IntBuffer ints(ByteBuffer file, int position, int count) throws IOException {
+		return slice(file, position, count * 4).asIntBuffer();
+	}
+
+	private static ByteBuffer slice(ByteBuffer file, int position, int length) throws IOException {
+		if(position < 0 || length < 0 || position + length > file.capacity())
+			throw new IOException("The graph snapshot is cut or damaged");
+		ByteBuffer b = file.duplicate();
+		b.position(position);
+		b.limit(position + length);
+		return b.slice();
+	}
+
+	/*
+	 * A row of the snapshot as a set of names: the followers or the following of a user, or all the
+	 * users when there are no targets (then the numbers start .. end-1 are the users themselves).
+	 * contains is a binary search, because every row is sorted.
+	 */
+	private static class Row extends AbstractSet<String> {
+		static final Row EMPTY = new Row(null, null, 0, 0);
+
+		final GraphSnapshot snapshot;
+		final IntBuffer targets;
+		final int start;
+		final int end;
+
+		Row(GraphSnapshot snapshot, IntBuffer targets, int start, int end) {
+			this.snapshot 	= snapshot;
+			this.targets 	= targets;
+			this.start 		= start;
+			this.end 		= end;
+		}
+
+		@Override
+		public int size() {
+			return this.end - this.start;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return this.snapshot != null && o instanceof String && this.containsId(this.snapshot.idOf((String)o));
+		}
+
+		boolean containsId(int id) {
+			if(id < 0)
+				return false;
+			if(this.targets == null)
+				return id >= this.start && id < this.end;
+			int low = this.start;
+			int high = this.end - 1;
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				int target = this.targets.get(middle);
+				if(target < id)
+					low = middle + 1;
+				else if(target > id)
+					high = middle - 1;
+				else
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				int next = start;
+
+				@Override
+				public boolean hasNext() {
+					return this.next < end;
+				}
+
+				@Override
+				public String next() {
+					if(this.next >= end)
+						throw new NoSuchElementException();
+					int i = this.next++;
+					return snapshot.nameOf(targets == null ? i : targets.get(i));
+				}
+			};
+		}
+	}
+
+	/*
+	 * Collects a graph and writes its snapshot. The names are numbered in the order they are met,
+	 * so the graph is read once, and sorted only when the file is written. The edges are then placed
+	 * in the rows of their users by counting them, and each row is sorted (a repeated edge is kept once).
+	 *
+	 * The users are the names that start a line of SocialGraph.txt (addUser) and the users that are followed,
+	 * as when the server reads the text file (see SocialGraph.getUsers). A follower that is none of them is not
+	 * written, and neither are its edges, so the snapshot has the same users as the text file.
+	 */
+	public static class Builder {
+
+		private final HashMap<String, Integer> ids = new HashMap<>();
+		private final ArrayList<String> names = new ArrayList<>();
+		private int[] users 	= new int[1024]; // the edges: users[i] is followed by followers[i].
+		private int[] followers = new int[1024];
+		private int edges = 0;
+		private final BitSet registered = new BitSet(); // the numbers of the names that are users.
+
+		public void addUser(String user) {
+			this.registered.set(this.idOf(user));
+		}
+
+		public void addFollower(String user, String follower) {
+			if(this.edges == this.users.length) {
+				this.users 		= Arrays.copyOf(this.users, this.edges * 2);
+				this.followers 	= Arrays.copyOf(this.followers, this.edges * 2);
+			}
+			int id = this.idOf(user);
+			this.registered.set(id);
+			this.users[this.edges] 	   = id;
+			this.followers[this.edges] = this.idOf(follower);
+			this.edges++;
+		}
+
+		//writes the snapshot to a temporary file that replaces the old one atomically
+		public void write(Path file) throws IOException {
+			int n = this.registered.cardinality();
+			byte[][] bytes = new byte[this.names.size()][];
+			Integer[] order = new Integer[n];
+			for(int i = this.registered.nextSetBit(0), j = 0; i >= 0; i = this.registered.nextSetBit(i + 1), j++) {
+				bytes[i] = this.names.get(i).getBytes(StandardCharsets.UTF_8);
+				order[j] = i;
+			}
+			Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(bytes[a], bytes[b]));
+			int[] rank = new int[this.names.size()]; // number in the order they were met -> number in the file, -1 for a name that is not a user.
+			Arrays.fill(rank, -1);
+			int[] nameOffsets = new int[n + 1];
+			for(int i = 0; i < n; i++) {
+				rank[order[i]] = i;
+				nameOffsets[i + 1] = nameOffsets[i] + bytes[order[i]].length;
+			}
+
+			// followers: count the edges of every user, place them and sort every row.
+			int[] followerOffsets = new int[n + 1];
+			for(int i = 0; i < this.edges; i++) {
+				if(rank[this.followers[i]] >= 0)
+					followerOffsets[rank[this.users[i]] + 1]++;
+			}
+			for(int i = 0; i < n; i++)
+				followerOffsets[i + 1] += followerOffsets[i];
+			int[] rows = new int[this.edges];
+			int[] next = Arrays.copyOf(followerOffsets, n);
+			for(int i = 0; i < this.edges; i++) {
+				if(rank[this.followers[i]] >= 0)
+					rows[next[rank[this.users[i]]]++] = rank[this.followers[i]];
+			}
+			int edges = 0;
+			for(int u = 0; u < n; u++) {
+				int start = followerOffsets[u];
+				int end = followerOffsets[u + 1];
+				Arrays.sort(rows, start, end);
+				followerOffsets[u] = edges;
+				for(int i = start; i < end; i++) {
+					if(i == start || rows[i] != rows[i - 1])
+						rows[edges++] = rows[i];
+				}
+			}
+			followerOffsets[n] = edges;
+
+			// following: the same edges the other way. Walking the users in order fills every row sorted.
+			int[] followingOffsets = new int[n + 1];
+			for(int i = 0; i < edges; i++)
+				followingOffsets[rows[i] + 1]++;
+			for(int i = 0; i < n; i++)
+				followingOffsets[i + 1] += followingOffsets[i];
+			int[] following = new int[edges];
+			next = Arrays.copyOf(followingOffsets, n);
+			for(int u = 0; u < n; u++) {
+				for(int i = followerOffsets[u]; i < followerOffsets[u + 1]; i++)
+					following[next[rows[i]]++] = u;
+			}
+
+			Path temporary = Paths.get(file + ".tmp");
+			try(FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(edges);
+				writeInts(out, buffer, nameOffsets, n + 1);
+				writeInts(out, buffer, followerOffsets, n + 1);
+				writeInts(out, buffer, rows, edges);
+				writeInts(out, buffer, followingOffsets, n + 1);
+				writeInts(out, buffer, following, edges);
+				for(int i = 0; i < n; i++) {
+					byte[] name = bytes[order[i]];
+					if(buffer.remaining() < name.length)
+						flush(out, buffer);
+					buffer.put(name);
+				}
+				flush(out, buffer);
+				out.force(false);
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		private int idOf(String name) {
+			Integer id = this.ids.get(name);
+			if(id == null) {
+				id = this.names.size();
+				this.ids.put(name, id);
+				this.names.add(name);
+			}
+			return id;
+		}
+
+		private static void writeInts(FileChannel out, ByteBuffer buffer, int[] values, int count) throws IOException {
+			for(int i = 0; i < count; i++) {
+				if(buffer.remaining() < 4)
+					flush(out, buffer);
+				buffer.putInt(values[i]);
+			}
+		}
+
+		private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				out.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	//the converter: java socialNetwork.GraphSnapshot [SocialGraph.txt] [SocialGraph.bin]
+	public static void main(String[] args) throws IOException {
+		Path text = Paths.get(args.length > 0 ? args[0] : "SocialGraph.txt");
+		Path binary = args.length > 1 ? Paths.get(args[1]) : binaryFile(text.toString());
+		long start = System.nanoTime();
+		convert(text, binary);
+		GraphSnapshot snapshot = open(binary);
+		System.out.println("Wrote " + binary + ": " + snapshot.getUserCount() + " users, " + snapshot.getEdgeCount() + " edges, "
+				+ Files.size(binary) + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
@@ -0,0 +1,160 @@
+package socialNetwork;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/*
+ * A client of the social network without the menus. Every method sends the same messages as the
+ * matching operation of Client, waits for the reply and returns what it carries, so the server can be
+ * driven from a program (see LoadGenerator). The replies are read on the calling thread, so a
+ * HeadlessClient must be used by one thread at a time. It does not subscribe to the notifications:
+ * they wait in the inbox of the user on the server (see Inbox), and the ones that arrive are skipped.
+ */
+public class HeadlessClient implements Closeable {
+
+	private final MessageChannel channel;
+	private final FileChannel downloads; // where the downloaded photos are written. They all start at 0 and are not kept.
+	private final Random random = new Random();
+	private String clientID;
+	private long profileVersion = 0; // the length of the profile on the server after our last upload.
+
+	//connects to a server with the binary protocol, or with object streams if binary is false
+	public HeadlessClient(String host, int port, boolean binary, FileChannel downloads) throws IOException {
+		Socket socket = new Socket(host, port);
+		this.channel = binary ? new FramedMessageChannel(socket) : new StreamMessageChannel(socket);
+		this.downloads = downloads;
+	}
+
+	public String getClientID() {
+		return this.clientID;
+	}
+
+	//returns true if the server accepted the name and the password
+	public boolean login(String user, String password) throws IOException {
+		this.channel.send(new Message("Login", password, user));
+		Message reply = this.await("Login success", "Login failed");
+		if(!reply.getHeader().equals("Login success"))
+			return false;
+		this.clientID = user;
+		return true;
+	}
+
+	public String[] getFollowers() throws IOException {
+		this.channel.send(new Message("Get followers", "", this.clientID));
+		return names(this.await("Followers reply").getData());
+	}
+
+	public String[] getFollowing() throws IOException {
+		this.channel.send(new Message("Get following", "", this.clientID));
+		return names(this.await("Following reply").getData());
+	}
+
+	//asks to follow a user. The server does not reply, the user sees the request in his notifications
+	public void followRequest(String user) throws IOException {
+		this.channel.send(new Message("Follow request", user, this.clientID));
+	}
+
+	//returns the profile of a user, or null if we do not follow him or he does not exist
+	public String accessProfile(String user) throws IOException {
+		this.channel.send(new Message("Access Profile", user, this.clientID));
+		Message reply = this.await("Accept Profile", "Deny Profile");
+		return reply.getHeader().equals("Accept Profile") ? reply.getData() : null;
+	}
+
+	//returns the users we follow that have a photo with a caption in a language
+	public String[] search(String photo, String language) throws IOException {
+		this.channel.send(new Message("Search", photo + "," + language, this.clientID));
+		return names(this.await("Search reply").getData());
+	}
+
+	/*
+	 * Downloads a photo of a user and its caption in a language, as a streamed download of Client does.
+	 * Returns the bytes of the photo that were received, 0 if the server answered with a Download error.
+	 */
+	public long download(String owner, String photo, String language) throws IOException {
+		this.channel.send(new Message("Download request", "", ""));
+		this.await("Download accept");
+		this.channel.send(new Message("Download stream", MediaCatalog.captionName(photo, language), owner));
+		Message stream = this.await("File Stream", "Download error");
+		if(stream.getOpcode() == Opcode.DOWNLOAD_ERROR)
+			return 0;
+		long size = Long.parseLong(stream.getData().split(" ", 2)[0]);
+		this.channel.receiveFile(this.downloads, size); // the bytes follow the message, they are read before anything else.
+		this.await("Caption Download");
+		return size;
+	}
+
+	/*
+	 * Uploads a photo with a caption in English and a post for it, as the delta synchronization of Client does
+	 * (see Client.syncPost), and returns the status of the reply (OK, Behind or Reset). We keep no copy of our
+	 * profile, only its length, so the server sends us what we are missing and we only count it.
+	 */
+	public String upload(String fileName, byte[] photo, String caption) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(photo);
+		String photoName = fileName.substring(0, fileName.lastIndexOf('.'));
+		String captionName = MediaCatalog.captionName(photoName, "ENG");
+		byte[] captionBytes = caption.getBytes(StandardCharsets.UTF_8);
+		byte[] record = new Post("ID" + this.random.nextInt(1000000), this.clientID, photoName, new Date()).toString().getBytes();
+
+		DataOutputStream dos = this.channel.beginRaw(new Message("Sync post", fileName, this.clientID));
+		dos.writeLong(photo.length);
+		dos.writeInt((int)crc.getValue());
+		dos.writeLong(0);
+		dos.write(photo);
+		dos.writeUTF(captionName);
+		dos.writeInt(captionBytes.length);
+		dos.write(captionBytes);
+		dos.writeUTF("");
+		dos.writeInt(0);
+		dos.writeLong(this.profileVersion);
+		dos.writeInt(record.length);
+		dos.write(record);
+		this.channel.endRaw();
+
+		String data = this.await("Sync post reply").getData();
+		String[] status = data.substring(0, data.indexOf('\n')).split(" ");
+		this.profileVersion = Long.parseLong(status[1]);
+		return status[0];
+	}
+
+	//logs out and closes the connection
+	@Override
+	public void close() throws IOException {
+		try {
+			if(this.channel.isOpen())
+				this.channel.send(new Message("Log Out", "", ""));
+		}
+		finally {
+			this.channel.close();
+		}
+	}
+
+	//waits for a reply with one of the headers. The messages with other headers are skipped
+	private Message await(String... headers) throws IOException {
+		try {
+			while(true) {
+				Message m = this.channel.receive();
+				if(Arrays.asList(headers).contains(m.getHeader()))
+					return m;
+			}
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	//the names of a reply, which are separated by spaces
+	private static String[] names(String data) {
+		data = data.trim();
+		return data.isEmpty() ? new String[0] : data.split("\\s+");
+	}
+}
@@ -0,0 +1,338 @@
+package socialNetwork;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The notifications of one user (follow requests and accepts, unfollows, new posts, comment requests and
+ * their outcome), in the order they were produced. The handlers of other users add to it without locking:
+ * an event is linked to the tail of a queue with one atomic swap. Only one thread at a time takes the events
+ * out (the consumer lock), and any thread that adds an event or an acknowledgement tries to become it.
+ *
+ * The events are sent in messages of one kind, with the headers that the clients know, and every message
+ * carries the next sequence number of the inbox. A message stays in the inbox until the client acknowledges
+ * its number (or a later one), so a notification is not lost when a connection breaks after it was sent:
+ * the messages are sent again to the next connection of the user. A client that polls sends the last number
+ * it received with every poll, and its first poll on a connection is sent what was not acknowledged before.
+ * A client from before the inbox knows no numbers and acknowledges by polling again.
+ *
+ * At most --inbox.memoryEvents (256) events are kept in memory: the events that were sent and not acknowledged
+ * stop the sending when they reach it, and the waiting events are then moved to Inbox_998<user>.log in the folder
+ * of the user. The events of the file are older than the ones in memory, so they are sent first.
+ */
+public class Inbox {
+
+	private static final int MEMORY_EVENTS = Settings.getInt("inbox.memoryEvents", 256);
+	private static final AtomicLong SPILLED = new AtomicLong(); // events written to the files of all the inboxes.
+	public static final long ALL_SENT = -1; // the acknowledgement of a poll without a number: everything sent before it.
+
+	//a kind of event, with the header and the separator of the message that carries it
+	public enum Kind {
+		FOLLOW_REQUEST("Follow Request", " "),
+		FOLLOW_ACCEPT("Follow Accept", " "),
+		UPLOAD("Upload Notification", " "),
+		COMMENT_OUTCOME("Comment Request Handled", "`"),
+		UNFOLLOW("Unfollow commit", " "),
+		COMMENT_REQUEST("Comment requests", "`");
+
+		private final String header;
+		private final String separator;
+
+		Kind(String header, String separator) {
+			this.header = header;
+			this.separator = separator;
+		}
+	}
+
+	//where the messages of an inbox are sent: the connection of the user
+	public interface Sink {
+		//returns false if the message could not be sent
+		boolean deliver(Message m);
+	}
+
+	private final String user;
+	private final AtomicReference<Event> tail;
+	private final AtomicInteger queued = new AtomicInteger(); // events linked and not taken yet.
+	private final AtomicInteger signals = new AtomicInteger(); // counts up for every event and acknowledgement.
+	private final AtomicLong acknowledged = new AtomicLong(); // highest number acknowledged by the client.
+	private final ReentrantLock consumer = new ReentrantLock(); // protects everything below.
+	private volatile Sink sink; // the connection that the messages are pushed to, or null.
+	private volatile boolean resend; // set when a new connection subscribes or polls, to send it the unacknowledged messages.
+	private volatile Sink polled; // the connection that polled last, or null.
+	private Event head; // the last event taken. The next one is the oldest waiting event.
+	private final ArrayDeque<Sent> unacknowledged = new ArrayDeque<>();
+	private int unacknowledgedEvents = 0;
+	private int nextSeq = 1;
+	private long spilled = 0; // events in the file that were not sent yet.
+	private long spillPosition = 0; // where the first of them starts.
+
+	public Inbox(String user) {
+		this.user = user;
+		this.head = new Event(null, null);
+		this.tail = new AtomicReference<>(this.head);
+	}
+
+	//adds an event and sends it if the user is connected. It is called by the handlers of other users
+	public void add(Kind kind, String text) {
+		this.link(new Event(kind, text));
+		this.signals.incrementAndGet();
+		this.drain();
+	}
+
+	//adds events of one kind, which are sent together
+	public void addAll(Kind kind, Iterable<String> texts) {
+		for(String text : texts)
+			this.link(new Event(kind, text));
+		this.signals.incrementAndGet();
+		this.drain();
+	}
+
+	//the client received every message up to a number
+	public void acknowledge(long seq) {
+		this.acknowledged.accumulateAndGet(seq, Math::max);
+		this.signals.incrementAndGet();
+		this.drain();
+	}
+
+	/*
+	 * Pushes the messages to a connection from now on. The messages that were sent to a previous
+	 * connection and not acknowledged are sent again first. Returns the previous connection.
+	 */
+	public Sink attach(Sink sink) {
+		Sink previous = this.sink;
+		this.sink = sink;
+		this.resend = true;
+		this.signals.incrementAndGet();
+		this.drain();
+		return previous;
+	}
+
+	//stops pushing to a connection, unless another one is attached already. Returns true if it was attached
+	public boolean detach(Sink sink) {
+		if(this.polled == sink)
+			this.polled = null;
+		if(this.sink != sink)
+			return false;
+		this.sink = null;
+		return true;
+	}
+
+	/*
+	 * The answer to a poll. The messages up to seq, the last one the client received, are acknowledged.
+	 * A connection that had not polled yet is sent again the messages that are not acknowledged, and then
+	 * the waiting events are sent to the connection that polled. Waits for the consumer lock.
+	 */
+	public void poll(Sink sink, long seq) {
+		this.consumer.lock();
+		try {
+			this.acknowledged.accumulateAndGet(seq == ALL_SENT ? this.nextSeq - 1 : seq, Math::max);
+			if(this.polled != sink) {
+				this.polled = sink;
+				this.resend = true;
+			}
+			this.deliver(sink);
+		}
+		finally {
+			this.consumer.unlock();
+		}
+		this.drain(); // for the events added while the lock was held.
+	}
+
+	//events that were moved to the files of all the inboxes
+	public static long getSpilled() {
+		return SPILLED.get();
+	}
+
+	/*
+	 * Takes the consumer lock if no other thread holds it and sends what can be sent. A thread that
+	 * adds an event while another one holds the lock changes the signals, so the holder looks again.
+	 */
+	private void drain() {
+		while(true) {
+			int seen = this.signals.get();
+			if(!this.consumer.tryLock())
+				return;
+			try {
+				this.deliver(this.sink);
+			}
+			finally {
+				this.consumer.unlock();
+			}
+			if(this.signals.get() == seen)
+				return;
+		}
+	}
+
+	/*
+	 * Forgets the acknowledged messages, sends the waiting events to the sink (the ones in the file first)
+	 * while less than MEMORY_EVENTS are unacknowledged, and moves the rest to the file if there are too many.
+	 * Must be called with the consumer lock held.
+	 */
+	private void deliver(Sink sink) {
+		long acknowledged = this.acknowledged.get();
+		while(!this.unacknowledged.isEmpty() && this.unacknowledged.peek().message.getSequence() <= acknowledged)
+			this.unacknowledgedEvents -= this.unacknowledged.poll().events;
+
+		if(sink != null && (sink == this.sink || sink == this.polled) && this.resend) {
+			this.resend = false;
+			for(Sent sent : this.unacknowledged) {
+				if(!this.send(sink, sent.message))
+					return;
+			}
+		}
+
+		try {
+			while(sink != null && this.unacknowledgedEvents < MEMORY_EVENTS) {
+				ArrayList<Event> batch = this.spilled > 0 ? this.readSpilled(MEMORY_EVENTS - this.unacknowledgedEvents) : this.take(MEMORY_EVENTS - this.unacknowledgedEvents);
+				if(batch.isEmpty())
+					break;
+				if(!this.sendBatch(sink, batch))
+					break;
+			}
+			if(this.queued.get() > MEMORY_EVENTS)
+				this.spill();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Sends a batch of events in one message per kind. The messages keep the batch's order of the kinds
+	 * and every one of them gets the next number. Returns false if the sink failed; the messages stay
+	 * unacknowledged and are sent again to the next connection.
+	 */
+	private boolean sendBatch(Sink sink, ArrayList<Event> batch) {
+		EnumMap<Kind, StringBuilder> texts = new EnumMap<>(Kind.class);
+		EnumMap<Kind, Integer> counts = new EnumMap<>(Kind.class);
+		ArrayList<Kind> order = new ArrayList<>();
+		for(Event event : batch) {
+			StringBuilder text = texts.get(event.kind);
+			if(text == null) {
+				text = new StringBuilder();
+				texts.put(event.kind, text);
+				counts.put(event.kind, 0);
+				order.add(event.kind);
+			}
+			text.append(event.text).append(event.kind.separator);
+			counts.merge(event.kind, 1, Integer::sum);
+		}
+		boolean delivered = true;
+		for(Kind kind : order) {
+			Message m = new Message(kind.header, texts.get(kind).toString(), null, this.nextSeq++);
+			this.unacknowledged.add(new Sent(m, counts.get(kind)));
+			this.unacknowledgedEvents += counts.get(kind);
+			delivered = delivered && this.send(sink, m);
+		}
+		return delivered;
+	}
+
+	private boolean send(Sink sink, Message m) {
+		if(sink.deliver(m))
+			return true;
+		this.detach(sink);
+		this.resend = true;
+		return false;
+	}
+
+	private void link(Event event) {
+		Event previous = this.tail.getAndSet(event);
+		previous.next = event;
+		this.queued.incrementAndGet();
+	}
+
+	//takes up to max waiting events from the queue
+	private ArrayList<Event> take(int max) {
+		ArrayList<Event> batch = new ArrayList<>();
+		while(batch.size() < max) {
+			Event next = this.head.next;
+			if(next == null)
+				break; // empty, or an event is being linked and its producer will drain after it.
+			this.head = next;
+			this.queued.decrementAndGet();
+			batch.add(next);
+		}
+		return batch;
+	}
+
+	//moves all the waiting events of the queue to the end of the file
+	private void spill() throws IOException {
+		UserFiles.ensure(this.user);
+		File file = UserFiles.inbox(this.user);
+		// a file whose events were all sent is started again.
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, this.spilled > 0)));
+		try {
+			if(this.spilled == 0)
+				this.spillPosition = 0;
+			for(Event event : this.take(Integer.MAX_VALUE)) {
+				byte[] text = event.text.getBytes(StandardCharsets.UTF_8);
+				out.writeByte(event.kind.ordinal());
+				out.writeInt(text.length);
+				out.write(text);
+				this.spilled++;
+				SPILLED.incrementAndGet();
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	//reads up to max events from the file
+	private ArrayList<Event> readSpilled(int max) throws IOException {
+		ArrayList<Event> batch = new ArrayList<>();
+		FileInputStream file = new FileInputStream(UserFiles.inbox(this.user));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+		try {
+			file.getChannel().position(this.spillPosition);
+			while(batch.size() < max && this.spilled > 0) {
+				Kind kind = Kind.values()[in.readByte()];
+				byte[] text = new byte[in.readInt()];
+				in.readFully(text);
+				batch.add(new Event(kind, new String(text, StandardCharsets.UTF_8)));
+				this.spillPosition += 5 + text.length;
+				this.spilled--;
+			}
+		}
+		finally {
+			in.close();
+		}
+		return batch;
+	}
+
+	private static class Event {
+		final Kind kind;
+		final String text;
+		volatile Event next;
+
+		Event(Kind kind, String text) {
+			this.kind = kind;
+			this.text = text;
+		}
+	}
+
+	//a message that was sent and not acknowledged, with the number of events it carries
+	private static class Sent {
+		final Message message;
+		final int events;
+
+		Sent(Message message, int events) {
+			this.message = message;
+			this.events = events;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package socialNetwork;
+
+import java.util.Arrays;
+
+/*
+ * A set of ints (user numbers, see SymbolTable) without boxing. The numbers are kept in an open
+ * addressing array with linear probing that is never more than half full, and a removal moves the
+ * numbers after it back, so there are no deleted markers. A set of a few followers takes a few dozen
+ * bytes instead of a node and an Integer per follower. It is not thread safe: the users of a set lock it.
+ */
+public class IntHashSet {
+
+	private static final int FREE = -1; // the numbers are never negative.
+
+	private int[] slots;
+	private int size = 0;
+
+	public IntHashSet() {
+		this(4);
+	}
+
+	public IntHashSet(int expected) {
+		int capacity = 8;
+		while(capacity < expected * 2)
+			capacity <<= 1;
+		this.slots = new int[capacity];
+		Arrays.fill(this.slots, FREE);
+	}
+
+	//returns false if the number was already in the set
+	public boolean add(int value) {
+		int i = this.indexOf(value);
+		if(this.slots[i] == value)
+			return false;
+		this.slots[i] = value;
+		if(++this.size * 2 > this.slots.length)
+			this.resize(this.slots.length * 2);
+		return true;
+	}
+
+	public void addAll(int[] values) {
+		for(int value : values)
+			this.add(value);
+	}
+
+	public boolean contains(int value) {
+		return this.slots[this.indexOf(value)] == value;
+	}
+
+	//returns false if the number was not in the set
+	public boolean remove(int value) {
+		int mask = this.slots.length - 1;
+		int i = this.indexOf(value);
+		if(this.slots[i] != value)
+			return false;
+		// move back the numbers after the free slot that would not be found past it.
+		int free = i;
+		for(int j = (i + 1) & mask; this.slots[j] != FREE; j = (j + 1) & mask) {
+			int home = hash(this.slots[j]) & mask;
+			if(((j - home) & mask) >= ((j - free) & mask)) {
+				this.slots[free] = this.slots[j];
+				free = j;
+			}
+		}
+		this.slots[free] = FREE;
+		this.size--;
+		return true;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	//the numbers of the set in no particular order (a copy)
+	public int[] toArray() {
+		int[] values = new int[this.size];
+		int n = 0;
+		for(int value : this.slots) {
+			if(value != FREE)
+				values[n++] = value;
+		}
+		return values;
+	}
+
+	//the slot of a number, or the free slot where it would go
+	private int indexOf(int value) {
+		int mask = this.slots.length - 1;
+		int i = hash(value) & mask;
+		while(this.slots[i] != FREE && this.slots[i] != value)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void resize(int capacity) {
+		int[] old = this.slots;
+		this.slots = new int[capacity];
+		Arrays.fill(this.slots, FREE);
+		for(int value : old) {
+			if(value != FREE)
+				this.slots[this.indexOf(value)] = value;
+		}
+	}
+
+	private static int hash(int value) {
+		int h = value * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
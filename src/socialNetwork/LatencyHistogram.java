@@ -0,0 +1,82 @@
+package socialNetwork;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts latencies in buckets whose width grows with the value, like HdrHistogram: the values below
+ * 256 have a bucket each, and above that every power of two is cut into 128 buckets, so a value is
+ * kept with an error below 1% whatever its size, in a fixed array of about 60 KB. Many threads can
+ * record at once without locking. The values are nanoseconds when the histogram is used by
+ * LoadGenerator, but it does not care about the unit.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 8;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS; // buckets of the values below 256. Each power of two above has half of them.
+	private static final int HALF = SUB_BUCKETS / 2;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		this.counts.incrementAndGet(index(value));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(value);
+		this.max.accumulateAndGet(value, Math::max);
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double)this.sum.get() / count;
+	}
+
+	/*
+	 * Returns the value that percent of the recorded values do not exceed (percentile(99) is
+	 * the 99th percentile). It is the highest value of its bucket, so it is never lower than the real one.
+	 */
+	public long percentile(double percent) {
+		long count = this.count.get();
+		if(count == 0)
+			return 0;
+		long rank = Math.max(1, (long)Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if(seen >= rank)
+				return Math.min(highest(i), this.max.get());
+		}
+		return this.max.get();
+	}
+
+	/*
+	 * The values with the same highest SUB_BITS bits share a bucket. shift is the number of
+	 * low bits that are dropped, 0 for the values below SUB_BUCKETS.
+	 */
+	private static int index(long value) {
+		int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return shift * HALF + (int)(value >>> shift);
+	}
+
+	//the highest value that falls in a bucket
+	private static long highest(int index) {
+		if(index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / HALF + 1;
+		long lowest = (long)(index - shift * HALF) << shift;
+		long highest = lowest + (1L << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest; // the last buckets go past the largest long.
+	}
+}
@@ -1,122 +1,188 @@
 package socialNetwork;
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 
+/*
+ The thread of the client that reads every message of the server. The notifications are handled here, by the
+ handler that the dispatch table keeps for their opcode, the messages of a download go to the transfers queue, and every
+ other message is stored in incMessages for the menu.
+ The lists are shared with the menu thread, so the Client gives us thread safe ones (see Client), and the feed and
+ the profile are written through the FeedWriter of the client.
+*/
 public class Listener implements Runnable {
 
-	private ObjectInputStream in;
+	//the handling of one kind of message
+	private interface Handler {
+		void handle(Message m) throws IOException, InterruptedException;
+	}
+
+	private MessageChannel in;
 	private final ArrayBlockingQueue<Message> incMessages;//list to store all incoming messages of the client
-	private final ArrayList<String> followRequestsForClient;//list to store all the incoming follow requests of the client
-	private final ArrayList<String> CommentRequestsForClient;
-	private final ArrayList<String> following;//list to store the user's the client is following
-	private final ArrayList<String> followers;//list to store the user's that follow the client
+	private final ArrayBlockingQueue<Message> transfers;//the messages of a download (see Client.download)
+	private final List<String> followRequestsForClient;//list to store all the incoming follow requests of the client
+	private final List<String> CommentRequestsForClient;
+	private final List<String> following;//list to store the user's the client is following
+	private final List<String> followers;//list to store the user's that follow the client
+	private final EnumMap<Opcode, Handler> handlers = new EnumMap<>(Opcode.class); // the messages that are not stored for the menu.
 
-	private String clientID;
-	public Listener(ObjectInputStream in,ArrayBlockingQueue<Message> incMessages,ArrayList<String> followRequestsForClient,ArrayList<String> following,ArrayList<String> followers,ArrayList<String> CommentRequestsForClient ) {
+	private volatile String clientID;
+	private volatile FeedWriter feed;
+	private volatile long lastSequence = 0; // the number of the last notification handled, which the Notifier sends with every poll.
+	public Listener(MessageChannel in,ArrayBlockingQueue<Message> incMessages,ArrayBlockingQueue<Message> transfers,List<String> followRequestsForClient,List<String> following,List<String> followers,List<String> CommentRequestsForClient ) {
 		this.following = following;
 		this.in = in;
 		this.incMessages = incMessages;
+		this.transfers = transfers;
 		this.followRequestsForClient = followRequestsForClient;
 		this.followers = followers;
 		this.CommentRequestsForClient = CommentRequestsForClient;
+
+		this.handlers.put(Opcode.FOLLOW_REQUESTS, this::followRequests);
+		this.handlers.put(Opcode.FOLLOW_ACCEPT, this::followAccept);
+		this.handlers.put(Opcode.UNFOLLOW_COMMIT, this::unfollowCommit);
+		this.handlers.put(Opcode.UPLOAD_NOTIFICATION, this::uploadNotification);
+		this.handlers.put(Opcode.COMMENT_REQUEST_HANDLED, this::commentRequestHandled);
+		this.handlers.put(Opcode.COMMENT_REQUESTS, this::commentRequests);
+		this.handlers.put(Opcode.ERROR_COMMENT, m -> System.out.println("The photo you wanted to comment does not exist"));
+		this.handlers.put(Opcode.REQUEST_ERROR, m -> System.out.println(m.getData()));
+		this.handlers.put(Opcode.FILE_STREAM, this::fileStream);
+		this.handlers.put(Opcode.DOWNLOAD_ACCEPT, this.transfers::put);
+		this.handlers.put(Opcode.CAPTION_DOWNLOAD, this.transfers::put);
+		this.handlers.put(Opcode.DOWNLOAD_ERROR, this.transfers::put);
+		this.handlers.put(Opcode.FILE_CHUNK, this.transfers::offer); // a chunk that finds the queue full is sent again by the server.
 	}
 
-	public void setClientID(String clientID){
+	//called after the login, before the notifications start to arrive
+	public void setClientID(String clientID, FeedWriter feed){
 		this.clientID = clientID;
+		this.feed = feed;
+	}
+
+	/*
+	 Tells the server that a notification has been handled, so it is not sent again to our next connection. The notifications
+	 of a server that keeps them in an inbox carry a sequence number, the ones of an old server carry 0 and are not acknowledged
+	*/
+	private void acknowledge(Message m) throws IOException {
+		if(m.getSequence() > 0) {
+			this.lastSequence = Math.max(this.lastSequence, m.getSequence());
+			this.in.send(new Message("Ack notifications", String.valueOf(m.getSequence()), this.clientID));
+		}
+	}
+
+	public long getLastSequence() {
+		return this.lastSequence;
 	}
-	
+
 	@Override
 	public void run() {
-		
+
 		while(true) {
 			try {
-				Message m = (Message)in.readObject();
-				/*
-				 If the incoming message is a follow request we print a notification to the user and then add the following requests to the
-				 followRequestsForClient arraylist.
-				*/
-				if(m.getHeader().equals("Follow Request")) {//
-					System.out.println("You have new follow requests");
-					String[] requests = m.getData().split("\\s+");
-					for(String s:requests)
-						this.followRequestsForClient.add(s);
-				}
-				/*
-				 If the incoming message is a follow accept we print the name of the user that accepted our request in a prompt and we add his name
-				 in our following list
-				*/
-				else if(m.getHeader().equals("Follow Accept")) {
-					String[] accepts = m.getData().split("\\s+");
-					for(String s:accepts) {
-						System.out.println(s+" accepted your follow request");
-						this.following.add(s);
-					}
-				}
-				/*
-				 If the message is an Unfollow commit we print the name of the user that unfollowed us in a prompt and the we remove him from our
-				 followers list
-				*/
-				else if(m.getHeader().equals("Unfollow commit")) {
-					String[] unfollows = m.getData().split("\\s+");
-					for(String s : unfollows) {
-						System.out.println(s + " unfollowed you!");
-						this.followers.remove(s);
-					}
-				}
-				/*
-				 If the message is an Upload Notification it means that a user we follow just uploaded a new post
-				*/
-				else if(m.getHeader().equals("Upload Notification")) {
-					String[] notifications = m.getData().split("\\n+");
-					FileWriter fw 		= new FileWriter("ClientDirectory/"+this.clientID+"/"+"Others_998"+this.clientID+".txt",true);
-					BufferedWriter bw 	= new BufferedWriter(fw);
-					for(String s: notifications)
-						bw.append(s+"\n");
-					bw.close();
-					System.out.println("New post in your feed");
-				}
-				else if(m.getHeader().equals("Comment Request Handled")) {
-					String[] s = m.getData().split("`");
-					for(String tmp : s) {
-						String[] str = tmp.split("\\|");
-						if(str[3].equals("Approved")) {
-							try {
-								FileWriter fw 		= new FileWriter("ClientDirectory/"+this.clientID+"/Profile_998"+this.clientID+".txt",true);
-								BufferedWriter bw 	= new BufferedWriter(fw);
-								bw.append("\nComment: "+ str[1]);
-								bw.close();
-								System.out.println("Your comment at " + str[0] + " from user " + str[2] + " has been approved");
-							} catch (IOException e) {
-								throw new RuntimeException(e);
-							}
-						}
-						else {
-							System.out.println("Your comment at " + str[0] + " from user " + str[2] + " has been denied");
-						}
-					}
-
-				}
-				else if(m.getHeader().equals("Comment requests")) {
-					System.out.println("You have new comment requests");
-					this.CommentRequestsForClient.add(m.getData());
-				}
-				else if(m.getHeader().equals("Error Comment")) {
-					System.out.println("The photo you wanted to comment does not exist");
-				}
-				/*
-				 Every other message just gets stored in the IncMessages in order to get handled from the Client 
-				*/
-				else {
-					this.incMessages.add(m);
-				}
-				
-				
-			} 
-			catch (ClassNotFoundException | IOException e) {
+				Message m = in.receive();
+				Handler handler = this.handlers.get(m.getOpcode());
+				if(handler != null)
+					handler.handle(m);
+				else
+					this.incMessages.put(m); // waits for the client if it is behind, instead of losing the message.
+			}
+			catch (ClassNotFoundException | IOException | InterruptedException e) {
 				break;
 			}
 
-		}	
+		}
+	}
+
+	/*
+	 If the incoming message is a follow request we print a notification to the user and then add the following requests to the
+	 followRequestsForClient list.
+	*/
+	private void followRequests(Message m) throws IOException {
+		System.out.println("You have new follow requests");
+		String[] requests = m.getData().split("\\s+");
+		for(String s:requests)
+			this.followRequestsForClient.add(s);
+		this.acknowledge(m);
+	}
+
+	/*
+	 If the incoming message is a follow accept we print the name of the user that accepted our request in a prompt and we add his name
+	 in our following list
+	*/
+	private void followAccept(Message m) throws IOException {
+		String[] accepts = m.getData().split("\\s+");
+		for(String s:accepts) {
+			System.out.println(s+" accepted your follow request");
+			this.following.add(s);
+		}
+		this.acknowledge(m);
+	}
+
+	/*
+	 If the message is an Unfollow commit we print the name of the user that unfollowed us in a prompt and the we remove him from our
+	 followers list
+	*/
+	private void unfollowCommit(Message m) throws IOException {
+		String[] unfollows = m.getData().split("\\s+");
+		for(String s : unfollows) {
+			System.out.println(s + " unfollowed you!");
+			this.followers.remove(s);
+		}
+		this.acknowledge(m);
+	}
+
+	/*
+	 If the message is an Upload Notification it means that a user we follow just uploaded a new post. The posts go to the
+	 buffer of our feed, which is written to the disk shortly after (see FeedWriter)
+	*/
+	private void uploadNotification(Message m) throws IOException {
+		this.feed.appendFeed(m.getData().split("\\n+"));
+		System.out.println("New post in your feed");
+		this.acknowledge(m);
+	}
+
+	//the approved comments are added to our profile, all the comments of the message with one write
+	private void commentRequestHandled(Message m) throws IOException {
+		StringBuilder approved = new StringBuilder();
+		for(String tmp : m.getData().split("`")) {
+			String[] str = tmp.split("\\|");
+			if(str[3].equals("Approved")) {
+				approved.append("\nComment: ").append(str[1]);
+				System.out.println("Your comment at " + str[0] + " from user " + str[2] + " has been approved");
+			}
+			else {
+				System.out.println("Your comment at " + str[0] + " from user " + str[2] + " has been denied");
+			}
+		}
+		if(approved.length() > 0)
+			this.feed.appendProfile(approved.toString());
+		this.acknowledge(m);
+	}
+
+	private void commentRequests(Message m) throws IOException {
+		System.out.println("You have new comment requests");
+		this.CommentRequestsForClient.add(m.getData());
+		this.acknowledge(m);
+	}
+
+	/*
+	 If the message is a File Stream the bytes of a downloaded photo follow it. They must be read before the next message,
+	 so we write them here straight from the connection to our directory and then let the download method know
+	*/
+	private void fileStream(Message m) throws IOException, InterruptedException {
+		String[] info = m.getData().split(" ", 2); // size and name of the file.
+		FileChannel file = FileChannel.open(Paths.get("ClientDirectory/"+this.clientID+"/"+info[1]),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			this.in.receiveFile(file, Long.parseLong(info[0]));
+		}
+		finally {
+			file.close();
+		}
+		this.transfers.put(m);
 	}
 }
@@ -0,0 +1,384 @@
+package socialNetwork;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This program plays many users of the social network at once against a running server, to see how it
+ * behaves under load. First it writes a synthetic dataset, in which the server is then started:
+ *
+ *   java socialNetwork.LoadGenerator --load.prepare=loadtest --load.users=1000
+ *   cd loadtest; java socialNetwork.Server --users.iterations=1000
+ *   java socialNetwork.LoadGenerator --load.users=1000 --load.sessions=500 --load.durationMillis=60000
+ *
+ * The dataset has --load.users users (load0 .. with the passwords pass0 ..), each followed by --load.degree
+ * random users, and every user has --load.photos photos of --load.photoBytes bytes with an English caption.
+ * The passwords are written in plain text and hashed by the server the first time it starts, which is
+ * faster with fewer --users.iterations. The run must use the same users, degree and --load.seed as the
+ * dataset, because it builds the same graph to know whom every user follows.
+ *
+ * Every session is a HeadlessClient on a thread of its own (see Threads), logged in as one of the users.
+ * The sessions are started evenly over --load.rampMillis, and then for --load.durationMillis each of
+ * them repeats: wait a random think time (--load.thinkMillis on average), pick an operation by the weights
+ * of --load.mix and run it. The latency of every operation is recorded in a histogram (see LatencyHistogram),
+ * and at the end the throughput and the percentiles of every operation are printed. Follow request has no
+ * reply, so its latency includes a Get following that is sent right after it and answered after it.
+ */
+public class LoadGenerator {
+
+	//the operations of a session, which are the flows of Client
+	enum Operation {
+		LOGIN("login"),
+		FOLLOWERS("followers"),
+		FOLLOW("follow"),
+		SYNC("sync"),
+		SEARCH("search"),
+		DOWNLOAD("download"),
+		PROFILE("profile");
+
+		private final String key;
+
+		Operation(String key) {
+			this.key = key;
+		}
+	}
+
+	private final String host 	 = Settings.get("load.host", "localhost");
+	private final int port 		 = Settings.getInt("load.port", 5000);
+	private final boolean binary = Settings.get("client.transport", "binary").equals("binary");
+	private final int sessions 	 = Settings.getInt("load.sessions", 100);
+	private final long rampMillis 	  = Settings.getLong("load.rampMillis", 5000);
+	private final long durationMillis = Settings.getLong("load.durationMillis", 30000);
+	private final long thinkMillis 	  = Settings.getLong("load.thinkMillis", 100);
+	private final int users 	 = Settings.getInt("load.users", 1000);
+	private final int degree 	 = Math.min(Settings.getInt("load.degree", 20), this.users - 1);
+	private final int photos 	 = Math.max(1, Settings.getInt("load.photos", 2));
+	private final int photoBytes = Settings.getInt("load.photoBytes", 50000);
+	private final long seed 	 = Settings.getLong("load.seed", 1);
+
+	private final EnumMap<Operation, Integer> weights = new EnumMap<>(Operation.class);
+	private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+	private final EnumMap<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+	private int totalWeight = 0;
+	private int[][] following; // the users that every user follows, in the synthetic graph.
+	private volatile boolean measuring = false;
+	private volatile boolean stopped = false;
+
+	public static void main(String[] args) throws Exception {
+		Settings.parseArgs(args);
+		LoadGenerator generator = new LoadGenerator();
+		String prepare = Settings.get("load.prepare", "");
+		if(!prepare.equals(""))
+			generator.prepare(Paths.get(prepare));
+		else
+			generator.run();
+	}
+
+	LoadGenerator() {
+		for(Operation operation : Operation.values()) {
+			this.latencies.put(operation, new LatencyHistogram());
+			this.errors.put(operation, new AtomicLong());
+			this.weights.put(operation, 0);
+		}
+		for(String entry : Settings.get("load.mix", "login=1,followers=25,follow=5,sync=5,search=20,download=9,profile=35").split(",")) {
+			String[] pair = entry.split("=");
+			for(Operation operation : Operation.values()) {
+				if(operation.key.equals(pair[0].trim())) {
+					this.weights.put(operation, Integer.parseInt(pair[1].trim()));
+					this.totalWeight += Integer.parseInt(pair[1].trim());
+				}
+			}
+		}
+	}
+
+	/*
+	 * Every user is followed by degree other users, picked at random with the seed. The
+	 * followers of each user are kept by the dataset, the users that each user follows by the run.
+	 */
+	private int[][] buildGraph() {
+		Random random = new Random(this.seed);
+		int[][] followers = new int[this.users][];
+		int[] counts = new int[this.users];
+		for(int user = 0; user < this.users; user++) {
+			followers[user] = new int[this.degree];
+			for(int i = 0; i < this.degree; i++) {
+				int follower;
+				do {
+					follower = random.nextInt(this.users);
+				} while(follower == user || contains(followers[user], i, follower));
+				followers[user][i] = follower;
+				counts[follower]++;
+			}
+		}
+		this.following = new int[this.users][];
+		for(int user = 0; user < this.users; user++)
+			this.following[user] = new int[counts[user]];
+		for(int user = 0; user < this.users; user++) {
+			for(int follower : followers[user])
+				this.following[follower][--counts[follower]] = user;
+		}
+		return followers;
+	}
+
+	//writes the users, the graph and the folders of the users in a directory, where the server is started
+	private void prepare(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		int[][] followers = this.buildGraph();
+		BufferedWriter registered = new BufferedWriter(new FileWriter(dir.resolve("registeredUsers.txt").toFile()));
+		BufferedWriter graph = new BufferedWriter(new FileWriter(dir.resolve("SocialGraph.txt").toFile()));
+		try {
+			for(int user = 0; user < this.users; user++) {
+				registered.write(name(user) + " " + password(user));
+				registered.newLine();
+				graph.write(name(user));
+				for(int follower : followers[user])
+					graph.write(" " + name(follower));
+				graph.newLine();
+			}
+		}
+		finally {
+			registered.close();
+			graph.close();
+		}
+		Files.write(dir.resolve("IPs_Ports.txt"), new byte[0]);
+
+		Random random = new Random(this.seed);
+		byte[] photo = new byte[this.photoBytes];
+		for(int user = 0; user < this.users; user++) {
+			Path folder = Files.createDirectories(dir.resolve("ServerDirectory").resolve(name(user)));
+			for(int i = 0; i < this.photos; i++) {
+				random.nextBytes(photo);
+				Files.write(folder.resolve("photo" + i + ".jpg"), photo);
+				Files.write(folder.resolve(MediaCatalog.captionName("photo" + i, "ENG")), ("photo " + i + " of " + name(user)).getBytes());
+			}
+		}
+		System.out.println("Wrote " + this.users + " users, " + (this.users * this.degree) + " follows and " + (this.users * this.photos) + " photos to " + dir.toAbsolutePath());
+	}
+
+	//starts the sessions, measures them for the duration and prints the results
+	private void run() throws Exception {
+		this.buildGraph();
+		File scratch = File.createTempFile("load", ".download");
+		scratch.deleteOnExit();
+		FileChannel downloads = FileChannel.open(scratch.toPath(), StandardOpenOption.WRITE);
+		CountDownLatch finished = new CountDownLatch(this.sessions);
+		AtomicLong connected = new AtomicLong();
+
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < this.sessions; i++) {
+			int user = i % this.users;
+			Threads.start("load-" + i, () -> {
+				try {
+					this.session(user, downloads, connected);
+				}
+				finally {
+					finished.countDown();
+				}
+			});
+			long next = start + this.rampMillis * (i + 1) / this.sessions;
+			long wait = next - System.currentTimeMillis();
+			if(wait > 0)
+				Thread.sleep(wait);
+		}
+		System.out.println(connected.get() + " of " + this.sessions + " sessions logged in after the ramp up of " + this.rampMillis + " ms");
+
+		long measureStart = System.nanoTime();
+		this.measuring = true;
+		Thread.sleep(this.durationMillis);
+		this.measuring = false;
+		long measured = System.nanoTime() - measureStart;
+		this.stopped = true;
+		finished.await();
+		downloads.close();
+		this.report(measured);
+	}
+
+	/*
+	 * One simulated user: logs in and runs operations until the end of the run. When the connection
+	 * fails (the failed operation counted an error) the session connects again after a second.
+	 */
+	private void session(int user, FileChannel downloads, AtomicLong connected) {
+		Random random = new Random(this.seed + user);
+		boolean counted = false;
+		int uploads = 0;
+		while(!this.stopped) {
+			HeadlessClient client = null;
+			try {
+				try {
+					client = new HeadlessClient(this.host, this.port, this.binary, downloads);
+				}
+				catch (IOException e) {
+					if(this.measuring)
+						this.errors.get(Operation.LOGIN).incrementAndGet();
+					throw e;
+				}
+				HeadlessClient connection = client;
+				if(!this.timed(Operation.LOGIN, () -> connection.login(name(user), password(user)) ? 1 : 0)) {
+					System.out.println("The server does not know " + name(user) + ", was the dataset prepared with the same options?");
+					return;
+				}
+				if(!counted) {
+					connected.incrementAndGet();
+					counted = true;
+				}
+				while(!this.stopped) {
+					Thread.sleep(this.thinkTime(random));
+					if(this.stopped)
+						break;
+					Operation operation = this.pick(random);
+					if(operation == Operation.SYNC)
+						uploads++;
+					this.execute(client, operation, user, uploads, random);
+				}
+			}
+			catch (IOException e) {
+				try {
+					Thread.sleep(1000);
+				}
+				catch (InterruptedException e1) {
+					return;
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			finally {
+				if(client != null) {
+					try {
+						client.close();
+					}
+					catch (IOException e) {
+						// the connection is already closed.
+					}
+				}
+			}
+		}
+	}
+
+	private void execute(HeadlessClient client, Operation operation, int user, int uploads, Random random) throws IOException {
+		int[] follows = this.following[user];
+		String followed = follows.length > 0 ? name(follows[random.nextInt(follows.length)]) : name(user);
+		String photo = "photo" + random.nextInt(this.photos);
+		switch(operation) {
+			case LOGIN:
+				this.timed(operation, () -> client.login(name(user), password(user)) ? 1 : 0);
+				break;
+			case FOLLOWERS:
+				this.timed(operation, () -> client.getFollowers().length);
+				break;
+			case FOLLOW: {
+				String other = name(random.nextInt(this.users));
+				this.timed(operation, () -> {
+					client.followRequest(other);
+					return client.getFollowing().length;
+				});
+				break;
+			}
+			case SYNC: {
+				byte[] bytes = new byte[this.photoBytes];
+				random.nextBytes(bytes);
+				String fileName = "upload" + (uploads % this.photos) + ".jpg"; // the uploads replace each other, so the disk does not fill up.
+				this.timed(operation, () -> client.upload(fileName, bytes, "an upload of " + client.getClientID()).length());
+				break;
+			}
+			case SEARCH:
+				this.timed(operation, () -> client.search(photo, "ENG").length);
+				break;
+			case DOWNLOAD:
+				this.timed(operation, () -> {
+					String[] owners = client.search(photo, "ENG");
+					return owners.length == 0 ? 0 : (int)client.download(owners[random.nextInt(owners.length)], photo, "ENG");
+				});
+				break;
+			case PROFILE:
+				this.timed(operation, () -> client.accessProfile(followed) == null ? 0 : 1);
+				break;
+		}
+	}
+
+	//a request of a session, which returns something from its reply
+	private interface Request {
+		int run() throws IOException;
+	}
+
+	/*
+	 * Runs a request and records its latency while the run is measured. A request that fails counts
+	 * an error and the exception goes on to the session. Returns true if the request returned more than 0.
+	 */
+	private boolean timed(Operation operation, Request request) throws IOException {
+		long start = System.nanoTime();
+		int result;
+		try {
+			result = request.run();
+		}
+		catch (IOException e) {
+			if(this.measuring)
+				this.errors.get(operation).incrementAndGet();
+			throw e;
+		}
+		if(this.measuring)
+			this.latencies.get(operation).record(System.nanoTime() - start);
+		return result > 0;
+	}
+
+	private Operation pick(Random random) {
+		int n = random.nextInt(Math.max(1, this.totalWeight));
+		for(Operation operation : Operation.values()) {
+			n -= this.weights.get(operation);
+			if(n < 0)
+				return operation;
+		}
+		return Operation.FOLLOWERS;
+	}
+
+	//an exponential think time, so the requests of the sessions arrive like the requests of independent users
+	private long thinkTime(Random random) {
+		if(this.thinkMillis <= 0)
+			return 0;
+		return (long)(-this.thinkMillis * Math.log(1 - random.nextDouble()));
+	}
+
+	private void report(long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf(Locale.ROOT, "%-10s %9s %9s %9s %9s %9s %9s %9s %9s %7s%n", "operation", "count", "ops/s", "mean ms", "p50", "p90", "p99", "p99.9", "max", "errors");
+		long total = 0;
+		for(Operation operation : Operation.values()) {
+			LatencyHistogram h = this.latencies.get(operation);
+			long errors = this.errors.get(operation).get();
+			if(h.getCount() == 0 && errors == 0)
+				continue;
+			total += h.getCount();
+			System.out.printf(Locale.ROOT, "%-10s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f %7d%n", operation.key, h.getCount(), h.getCount() / seconds,
+					h.getMean() / 1e6, h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.getMax() / 1e6, errors);
+		}
+		System.out.printf(Locale.ROOT, "%-10s %9d %9.1f%n", "total", total, total / seconds);
+	}
+
+	private static boolean contains(int[] values, int length, int value) {
+		for(int i = 0; i < length; i++) {
+			if(values[i] == value)
+				return true;
+		}
+		return false;
+	}
+
+	private static String name(int user) {
+		return "load" + user;
+	}
+
+	private static String password(int user) {
+		return "pass" + user;
+	}
+}
@@ -0,0 +1,129 @@
+package socialNetwork;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class keeps in memory the photos and the captions that every user has in its
+ * ServerDirectory folder, so the search, the download and the comments do not list
+ * directories. It is filled once from the disk when the server starts and then updated
+ * by the handlers whenever they write a photo or a caption (upload and download synchronization).
+ *
+ * The server starts listening before the catalog is read (see loadInBackground), and the lookups
+ * wait until it is complete, so a search never misses the photos that are still being read.
+ *
+ * A photo is known by its name without the extension ("cat" for cat.jpg) and a caption
+ * by the name of the photo and its language (cat_ENG.txt). The profile, feed and inbox files
+ * (Profile_998, Others_998, Inbox_998) are not media and are skipped, and so are the uploads that are
+ * not complete yet (.part, see UserFiles).
+ */
+public class MediaCatalog {
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> photos = new ConcurrentHashMap<>(); // owner -> photo name -> file name.
+	private final ConcurrentHashMap<String, Set<String>> captions = new ConcurrentHashMap<>(); // caption file name -> owners that have it.
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	//reads the folders of all the users once, on a thread of its own
+	public void loadInBackground(String root) {
+		Thread t = new Thread(() -> this.load(root), "media-catalog");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	//reads the folders of all the users once, on all the cores
+	public void load(String root) {
+		try {
+			File[] users = new File(root).listFiles(File::isDirectory);
+			if(users == null)
+				return;
+			AtomicInteger files = new AtomicInteger();
+			Arrays.stream(users).parallel().forEach(user -> {
+				String[] names = user.list();
+				if(names == null)
+					return;
+				for(String name : names)
+					this.addFile(user.getName(), name);
+				files.addAndGet(names.length);
+			});
+			System.out.println("Media catalog: " + files + " files of " + users.length + " users");
+		}
+		finally {
+			this.loaded.countDown();
+		}
+	}
+
+	//records a file that has been written to the folder of a user
+	public void addFile(String owner, String fileName) {
+		if(fileName.startsWith("Profile_998") || fileName.startsWith("Others_998") || fileName.startsWith("Inbox_998") || fileName.endsWith(".part"))
+			return;
+		if(fileName.endsWith(".txt"))
+			this.captions.computeIfAbsent(fileName, f -> ConcurrentHashMap.newKeySet()).add(owner);
+		else
+			this.photos.computeIfAbsent(owner, o -> new ConcurrentHashMap<>()).put(photoName(fileName), fileName);
+	}
+
+	//returns the file of a photo of a user ("cat" or "cat.jpg" give cat.jpg), or null if the user does not have it
+	public String getPhotoFile(String owner, String photo) {
+		this.awaitLoaded();
+		ConcurrentHashMap<String, String> userPhotos = this.photos.get(owner);
+		return userPhotos == null ? null : userPhotos.get(photoName(photo));
+	}
+
+	public boolean hasCaption(String owner, String captionName) {
+		this.awaitLoaded();
+		return this.getOwners(captionName).contains(owner);
+	}
+
+	/*
+	 * Returns the users among the followed ones that have the caption of a photo in a language.
+	 * The smaller of the two sets is walked and the other one is only looked up.
+	 */
+	public ArrayList<String> search(String captionName, Set<String> following) {
+		this.awaitLoaded();
+		Set<String> owners = this.getOwners(captionName);
+		ArrayList<String> result = new ArrayList<>();
+		if(owners.size() <= following.size()) {
+			for(String owner : owners) {
+				if(following.contains(owner))
+					result.add(owner);
+			}
+		}
+		else {
+			for(String user : following) {
+				if(owners.contains(user))
+					result.add(user);
+			}
+		}
+		return result;
+	}
+
+	//the name of the caption file of a photo in a language
+	public static String captionName(String photo, String language) {
+		return photoName(photo) + "_" + language + ".txt";
+	}
+
+	private void awaitLoaded() {
+		try {
+			this.loaded.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Set<String> getOwners(String captionName) {
+		Set<String> owners = this.captions.get(captionName);
+		return owners == null ? Collections.emptySet() : owners;
+	}
+
+	private static String photoName(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot > 0 ? fileName.substring(0, dot) : fileName;
+	}
+}
@@ -1,63 +1,151 @@
 package socialNetwork;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /*
- * This class contains all the necessary informations for the messages sent 
+ * This class contains all the necessary informations for the messages sent
  * by the client to the server and vice versa.
  */
 
 public class Message implements Serializable {
 
+	/*
+	 * Clients that only know the object streams still send and expect the first version of
+	 * this class, so its serial number and its serialized fields are kept as they were (the chunk
+	 * is written as a Byte array). The binary protocol does not use Java serialization at all.
+	 */
+	private static final long serialVersionUID = -6692636750254109935L;
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("header", String.class),
+		new ObjectStreamField("data", String.class),
+		new ObjectStreamField("sender", String.class),
+		new ObjectStreamField("chunk", Byte[].class),
+		new ObjectStreamField("seq", int.class)
+	};
+
 	private String header;
 	private String data;
 	private String sender;
-	private Byte[] chunk;		//this variable contains the data in chunks of a photo requested by a client
+	private byte[] chunk;		//this variable contains the data in chunks of a photo requested by a client
 	private int seq;			//sequence variable indicates the number of a packet. This variable is used by the Stop-and-Wait protocol
-	
+	private int requestId;		//the number of the request this message belongs to, 0 if none. Only the binary protocol carries it
+	private transient Opcode opcode;
+
 	//the regular constructor for messages that contain a header, data and a sender field
 	public Message(String header, String data, String sender) {
 		this.header = header;
 		this.data 	= data;
-		this.sender = sender;		
+		this.sender = sender;
 	}
 
 	//Constructor for messages that contain chunks of data
-	public Message(String header, Byte[] chunk, int seq) {
+	public Message(String header, byte[] chunk, int seq) {
 		this.header = header;
 		this.chunk = chunk;
 		this.seq   = seq;
 	}
-	
+
+	/*
+	 * Constructor for the packets and the acknowledgements of the sliding window download. The data holds
+	 * the number of packets of the download, or in an acknowledgement the packets received in order.
+	 */
+	public Message(String header, String data, byte[] chunk, int seq) {
+		this.header = header;
+		this.data 	= data;
+		this.chunk 	= chunk;
+		this.seq 	= seq;
+	}
+
 	//Constructor for Acknowledgement messages, that contains the sequence number for checking
 	public Message(String header, int seq) {
 		this.header = header;
 		this.seq = seq;
 	}
-	
+
+	//Constructor used by the binary protocol when it decodes a message
+	Message(Opcode opcode, String header, String data, String sender, byte[] chunk, int seq, int requestId) {
+		this.opcode 	= opcode;
+		this.header 	= header;
+		this.data 		= data;
+		this.sender 	= sender;
+		this.chunk 		= chunk;
+		this.seq 		= seq;
+		this.requestId 	= requestId;
+	}
+
 	//returns the field header of a message
 	public String getHeader() {
 		return this.header;
 	}
-	
+
+	//returns the code of the header (see Opcode)
+	public Opcode getOpcode() {
+		if(this.opcode == null)
+			this.opcode = Opcode.of(this.header);
+		return this.opcode;
+	}
+
 	//return the field data of a message
 	public String getData() {
 		return this.data;
 	}
-	
+
 	//returns the field sender of a message
 	public String getSender() {
 		return this.sender;
 	}
 
-	//returns a Byte array with the chunked data
-	public Byte[] getChunk() {
+	//returns a byte array with the chunked data
+	public byte[] getChunk() {
 		return this.chunk;
 	}
-	
+
 	//returns the sequence number of a specific chunk
 	public int getSequence() {
 		return this.seq;
 	}
-	
+
+	public int getRequestId() {
+		return this.requestId;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	//writes the fields of the first version of the class
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		Byte[] boxed = null;
+		if(this.chunk != null) {
+			boxed = new Byte[this.chunk.length];
+			for(int i = 0; i < boxed.length; i++)
+				boxed[i] = this.chunk[i];
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("header", this.header);
+		fields.put("data", this.data);
+		fields.put("sender", this.sender);
+		fields.put("chunk", boxed);
+		fields.put("seq", this.seq);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		this.header = (String)fields.get("header", null);
+		this.data 	= (String)fields.get("data", null);
+		this.sender = (String)fields.get("sender", null);
+		this.seq 	= fields.get("seq", 0);
+		Byte[] boxed = (Byte[])fields.get("chunk", null);
+		if(boxed != null) {
+			this.chunk = new byte[boxed.length];
+			for(int i = 0; i < boxed.length; i++)
+				this.chunk[i] = boxed[i];
+		}
+	}
+
 }
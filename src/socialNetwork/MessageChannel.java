@@ -0,0 +1,54 @@
+package socialNetwork;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/*
+ * This interface describes a connection between the client and the server
+ * from the point of view of the messages that travel through it. The client handler,
+ * the client and the download sender (SlidingWindowSender) only talk to a MessageChannel,
+ * so the same logic runs over the classic object streams and over the binary protocol
+ * that is used by the non-blocking server.
+ */
+public interface MessageChannel extends Closeable {
+
+	//blocks until the next message arrives and returns it
+	Message receive() throws IOException, ClassNotFoundException;
+
+	//writes a message and flushes it. It is safe to call it from several threads
+	void send(Message m) throws IOException;
+
+	/*
+	 * Sends the header message and returns a stream for the raw bytes that follow it
+	 * (used by the synchronization). No other message can be written on the channel
+	 * until endRaw is called by the same thread.
+	 */
+	DataOutputStream beginRaw(Message header) throws IOException;
+
+	//flushes the raw bytes written after beginRaw and releases the channel
+	void endRaw() throws IOException;
+
+	//returns a stream for reading the raw bytes sent by the other side after a message
+	DataInputStream rawInput() throws IOException;
+
+	/*
+	 * Sends the header message and then the first count bytes of the file as raw bytes.
+	 * The bytes go from the file to the socket without being copied to the heap where the
+	 * transport allows it (see FileTransfer). The channel closes the file when it has been sent.
+	 */
+	void sendFile(Message header, FileChannel file, long count) throws IOException;
+
+	//writes the count raw bytes that follow the last message received into the file
+	void receiveFile(FileChannel file, long count) throws IOException;
+
+	boolean isOpen();
+
+	//the IP address of the other side
+	String getRemoteAddress();
+
+	//the port of the other side
+	int getRemotePort();
+}
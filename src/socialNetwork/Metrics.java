@@ -0,0 +1,279 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * The measurements of the server. There are two kinds:
+ *
+ *     timers : an operation that is timed, named by what it is (request, download, fanout, graph) and by
+ *              which one it is (the header of a request, stream or chunks for a download...). A timer counts
+ *              the operations, the ones that failed and their total time since the start, and keeps their
+ *              latencies in a LatencyHistogram. The percentiles are those of the last --metrics.windowMillis
+ *              (60 s), so they show how the server does now and not since it started.
+ *     counters : a total that only grows (the bytes of the downloads, their retransmissions...).
+ *     gauges : a number that another class already keeps (the posts waiting for the fan-out, the hits
+ *              of the profile cache...), read when it is asked for.
+ *
+ * Recording costs two calls of System.nanoTime and a few atomic additions, with no lock.
+ * Every timer, counter and gauge is an MBean (socialNetwork:type=Request,name=Login, socialNetwork:type=Gauge,name=fanout.queued...),
+ * so jconsole and the JMX tools can read them, and start serves them all as text in the format of Prometheus on
+ * http://127.0.0.1:--metrics.port/metrics (9464, 0 turns it off).
+ */
+public class Metrics {
+
+	private static final ConcurrentSkipListMap<String, Timer> TIMERS = new ConcurrentSkipListMap<>(); // by name and label, so the text is sorted.
+	private static final ConcurrentSkipListMap<String, AtomicLong> COUNTERS = new ConcurrentSkipListMap<>();
+	private static final ConcurrentSkipListMap<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+	private static final long WINDOW_MILLIS = Math.max(1000, Settings.getLong("metrics.windowMillis", 60000));
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	//the attributes of a timer in JMX. The times are in milliseconds
+	public interface TimerMBean {
+		long getCount();
+		long getErrors();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP90Millis();
+		double getP99Millis();
+		double getP999Millis();
+		double getMaxMillis();
+	}
+
+	public interface CounterMBean {
+		long getValue();
+	}
+
+	public interface GaugeMBean {
+		long getValue();
+	}
+
+	/*
+	 * Returns the timer of an operation, which is created the first time. The callers on a hot path
+	 * keep it, so the map is not looked up for every operation.
+	 */
+	public static Timer timer(String name, String label) {
+		String key = name + "/" + label;
+		Timer timer = TIMERS.get(key);
+		if(timer != null)
+			return timer;
+		timer = new Timer(name, label);
+		Timer existing = TIMERS.putIfAbsent(key, timer);
+		if(existing != null)
+			return existing;
+		register(timer, "type=" + capitalize(name) + ",name=" + ObjectName.quote(label), TimerMBean.class);
+		return timer;
+	}
+
+	//returns the counter with this name, which is created the first time
+	public static AtomicLong counter(String name) {
+		AtomicLong counter = COUNTERS.get(name);
+		if(counter != null)
+			return counter;
+		counter = new AtomicLong();
+		AtomicLong existing = COUNTERS.putIfAbsent(name, counter);
+		if(existing != null)
+			return existing;
+		AtomicLong registered = counter;
+		register((CounterMBean)registered::get, "type=Counter,name=" + name, CounterMBean.class);
+		return counter;
+	}
+
+	//adds a gauge. A gauge that is added again replaces the old one
+	public static void gauge(String name, LongSupplier value) {
+		if(GAUGES.put(name, value) == null)
+			register((GaugeMBean)() -> GAUGES.get(name).getAsLong(), "type=Gauge,name=" + name, GaugeMBean.class);
+	}
+
+	//starts the endpoint of the text on the loopback interface, unless --metrics.port is 0
+	public static void start() {
+		int port = Settings.getInt("metrics.port", 9464);
+		if(port == 0)
+			return;
+		try {
+			HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			http.createContext("/metrics", exchange -> {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			});
+			http.setExecutor(null); // the requests are served one at a time by the thread of the HttpServer.
+			http.start();
+			System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
+		}
+		catch (IOException e) {
+			System.out.println("Metrics endpoint not started: " + e.getMessage());
+		}
+	}
+
+	/*
+	 * The text of all the timers, counters and gauges. A timer is a summary in seconds with a count of errors:
+	 *
+	 *     social_request_seconds{op="Login",quantile="0.99"} 0.000412
+	 *     social_request_seconds_sum{op="Login"} 1.52
+	 *     social_request_seconds_count{op="Login"} 3021
+	 *     social_request_errors_total{op="Login"} 0
+	 */
+	public static String scrape() {
+		StringBuilder text = new StringBuilder(1 << 14);
+		String name = null;
+		for(Timer timer : TIMERS.values()) {
+			String metric = "social_" + timer.name;
+			if(!metric.equals(name)) {
+				text.append("# TYPE ").append(metric).append("_seconds summary\n");
+				text.append("# TYPE ").append(metric).append("_errors_total counter\n");
+				name = metric;
+			}
+			String label = "op=\"" + timer.label.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+			LatencyHistogram window = timer.window();
+			for(double q : QUANTILES)
+				line(text, metric + "_seconds{" + label + ",quantile=\"" + q + "\"}", window.percentile(q * 100) / 1e9);
+			line(text, metric + "_seconds_sum{" + label + "}", timer.totalNanos.get() / 1e9);
+			text.append(metric).append("_seconds_count{").append(label).append("} ").append(timer.count.get()).append('\n');
+			text.append(metric).append("_errors_total{").append(label).append("} ").append(timer.errors.get()).append('\n');
+		}
+		for(Map.Entry<String, AtomicLong> counter : COUNTERS.entrySet()) {
+			String metric = "social_" + counter.getKey().replace('.', '_') + "_total";
+			text.append("# TYPE ").append(metric).append(" counter\n");
+			text.append(metric).append(' ').append(counter.getValue().get()).append('\n');
+		}
+		for(Map.Entry<String, LongSupplier> gauge : GAUGES.entrySet()) {
+			String metric = "social_" + gauge.getKey().replace('.', '_');
+			text.append("# TYPE ").append(metric).append(" gauge\n");
+			text.append(metric).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void line(StringBuilder text, String metric, double value) {
+		text.append(metric).append(' ').append(String.format(Locale.ROOT, "%.6f", value)).append('\n');
+	}
+
+	//registers an MBean on the platform server. A server that runs twice in a JVM keeps the first
+	private static <T> void register(T bean, String name, Class<T> type) {
+		try {
+			ObjectName objectName = new ObjectName("socialNetwork:" + name);
+			if(!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean, type), objectName);
+		}
+		catch (JMException e) {
+			System.out.println("MBean " + name + " not registered: " + e.getMessage());
+		}
+	}
+
+	private static String capitalize(String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/*
+	 * The measurements of one operation. The histogram of the current window is replaced when the window ends,
+	 * and the one of the last window that ended is the one that is read. A window without operations is read as empty.
+	 */
+	public static class Timer implements TimerMBean {
+
+		private final String name;
+		private final String label;
+		private final AtomicLong count 		= new AtomicLong();
+		private final AtomicLong errors 	= new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private volatile LatencyHistogram current = new LatencyHistogram();
+		private volatile LatencyHistogram previous = null; // null until the first window ends.
+		private volatile long windowEnd = System.currentTimeMillis() + WINDOW_MILLIS;
+
+		private Timer(String name, String label) {
+			this.name 	= name;
+			this.label 	= label;
+		}
+
+		//records an operation that started at start (System.nanoTime()). completed is false if it failed
+		public void stop(long start, boolean completed) {
+			this.record(System.nanoTime() - start, completed);
+		}
+
+		public void record(long nanos, boolean completed) {
+			this.rotate();
+			this.current.record(nanos);
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			if(!completed)
+				this.errors.incrementAndGet();
+		}
+
+		//the latencies of the last window that ended, or of the current one before the first ends
+		LatencyHistogram window() {
+			this.rotate();
+			LatencyHistogram previous = this.previous;
+			return previous != null ? previous : this.current;
+		}
+
+		private void rotate() {
+			long now = System.currentTimeMillis();
+			if(now < this.windowEnd)
+				return;
+			synchronized(this) {
+				if(now < this.windowEnd)
+					return;
+				// if a whole window passed without a call, nothing happened in the last one.
+				this.previous = now < this.windowEnd + WINDOW_MILLIS ? this.current : new LatencyHistogram();
+				this.current = new LatencyHistogram();
+				this.windowEnd = now + WINDOW_MILLIS;
+			}
+		}
+
+		@Override
+		public long getCount() {
+			return this.count.get();
+		}
+
+		@Override
+		public long getErrors() {
+			return this.errors.get();
+		}
+
+		@Override
+		public double getMeanMillis() {
+			return this.window().getMean() / 1e6;
+		}
+
+		@Override
+		public double getP50Millis() {
+			return this.window().percentile(50) / 1e6;
+		}
+
+		@Override
+		public double getP90Millis() {
+			return this.window().percentile(90) / 1e6;
+		}
+
+		@Override
+		public double getP99Millis() {
+			return this.window().percentile(99) / 1e6;
+		}
+
+		@Override
+		public double getP999Millis() {
+			return this.window().percentile(99.9) / 1e6;
+		}
+
+		@Override
+		public double getMaxMillis() {
+			return this.window().getMax() / 1e6;
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The log of the server and the client, written to netLog.log (--log.file). An event is a name and a few
+ * fields, and is written as one line:
+ *
+ *     2026-10-18T09:12:45.120Z INFO download sent pid=4120 thread=client-handler user=tolhs packets=10 retransmitted=7
+ *
+ *     NetLog.event(NetLog.Category.DOWNLOAD, NetLog.Level.INFO, "sent").with("user", user).with("packets", n).log();
+ *
+ * The thread that logs does not format or write anything. It copies the fields into a slot of a ring of
+ * --log.bufferEvents (8192) events that was allocated at the start and goes on; if the ring is full the event
+ * is dropped and counted (getDropped), the thread never waits for the disk. The writer thread takes what is in
+ * the ring every few ms and appends it to the file with one write. When the file passes --log.maxBytes (10 MB)
+ * it is renamed to netLog.log.1, the older ones move up, and --log.files (5) files are kept.
+ *
+ * Every category has a level: --log.level (info) for all, or --log.<category> (--log.arq=debug, --log.session=off).
+ * An event above the level of its category gets a shared event that ignores its fields, so it costs a comparison
+ * and allocates nothing. The fields are longs or objects (strings mostly), so numbers are not boxed either.
+ * The objects are turned into text by the writer, so they must not change after they are logged.
+ */
+public class NetLog {
+
+	public enum Level { ERROR, WARN, INFO, DEBUG }
+
+	public enum Category {
+		SERVER, 	// the start and the state of the server.
+		SESSION, 	// logins and the connections that are closed.
+		DOWNLOAD, 	// the transfers of the photos.
+		ARQ, 		// every packet and acknowledgement of a download in chunks.
+		FANOUT, 	// the posts that could not be delivered to the feeds of the followers.
+		GRAPH 		// the changes of the social graph and their log.
+	}
+
+	private static final int MAX_FIELDS = 8;
+	private static final int BATCH = 1024; // events formatted for one write.
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT).withZone(ZoneOffset.UTC);
+	private static final long PID = ProcessHandle.current().pid(); // the server and the clients may share a file.
+
+	private static final int[] LEVELS = new int[Category.values().length]; // the highest level that is logged, -1 for off.
+	private static final Event DISABLED = new Event();
+	private static final ThreadLocal<Event> EVENTS = ThreadLocal.withInitial(Event::new); // the event that a thread is building.
+	private static final NetLog WRITER;
+
+	static {
+		String all = Settings.get("log.level", "info");
+		for(Category category : Category.values())
+			LEVELS[category.ordinal()] = level(Settings.get("log." + category.name().toLowerCase(Locale.ROOT), all));
+		WRITER = new NetLog(Paths.get(Settings.get("log.file", "netLog.log")));
+	}
+
+	//returns true if the events of this category and level are written
+	public static boolean isEnabled(Category category, Level level) {
+		return level.ordinal() <= LEVELS[category.ordinal()];
+	}
+
+	//starts an event. Its fields are added with with(), and log() sends it to the writer
+	public static Event event(Category category, Level level, String name) {
+		if(level.ordinal() > LEVELS[category.ordinal()])
+			return DISABLED;
+		Event event = EVENTS.get();
+		event.category 	= category;
+		event.level 	= level;
+		event.name 		= name;
+		event.fields 	= 0;
+		return event;
+	}
+
+	//events that were dropped because the ring was full
+	public static long getDropped() {
+		return WRITER.dropped.get();
+	}
+
+	private static int level(String name) {
+		return name.equalsIgnoreCase("off") ? -1 : Level.valueOf(name.toUpperCase(Locale.ROOT)).ordinal();
+	}
+
+	/*
+	 * An event. The one that a thread builds is reused for all its events, and the slots of the ring
+	 * are events too: log copies the fields into a slot and publishes it by setting its sequence.
+	 */
+	public static class Event {
+
+		private Category category;
+		private Level level;
+		private String name;
+		private final String[] keys 	= new String[MAX_FIELDS];
+		private final Object[] objects 	= new Object[MAX_FIELDS]; // null for the fields that are longs.
+		private final long[] longs 		= new long[MAX_FIELDS];
+		private int fields;
+		private long time;
+		private String thread;
+		private volatile long sequence = -1; // for a slot: the number of the event it holds, once it is complete.
+
+		//adds a field. The fields after the eighth are ignored
+		public Event with(String key, long value) {
+			if(this != DISABLED && this.fields < MAX_FIELDS) {
+				this.keys[this.fields] 		= key;
+				this.objects[this.fields] 	= null;
+				this.longs[this.fields++] 	= value;
+			}
+			return this;
+		}
+
+		public Event with(String key, Object value) {
+			if(this != DISABLED && this.fields < MAX_FIELDS) {
+				this.keys[this.fields] 		= key;
+				this.objects[this.fields++] = value == null ? "null" : value;
+			}
+			return this;
+		}
+
+		public void log() {
+			if(this != DISABLED)
+				WRITER.publish(this);
+		}
+	}
+
+	private final Event[] ring;
+	private final int mask;
+	private final AtomicLong claimed = new AtomicLong(); // the number of the next event.
+	private volatile long written = 0; // the number of the first event that the writer has not taken.
+	private final AtomicLong dropped = new AtomicLong();
+	private final Path file;
+	private final long maxBytes = Settings.getLong("log.maxBytes", 10 << 20);
+	private final int files = Math.max(1, Settings.getInt("log.files", 5));
+	private final StringBuilder text = new StringBuilder(1 << 16);
+	private FileChannel channel;
+	private long reported = 0; // the dropped events that were already written in the log.
+
+	private NetLog(Path file) {
+		int size = Integer.highestOneBit(Math.max(64, Settings.getInt("log.bufferEvents", 8192) - 1) << 1); // a power of two.
+		this.ring = new Event[size];
+		for(int i = 0; i < size; i++)
+			this.ring[i] = new Event();
+		this.mask = size - 1;
+		this.file = file;
+
+		Thread writer = new Thread(() -> {
+			while(true) {
+				try {
+					if(!this.drain())
+						Thread.sleep(10);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "net-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "net-log-flush")); // the events of the last ms.
+	}
+
+	/*
+	 * Claims the next slot, unless the writer has not taken the event that is in it, and copies the event
+	 * into it. The slot is claimed and filled in this method, so a slot that was claimed is always published.
+	 */
+	private void publish(Event event) {
+		long sequence;
+		do {
+			sequence = this.claimed.get();
+			if(sequence - this.written >= this.ring.length) {
+				this.dropped.incrementAndGet();
+				return;
+			}
+		} while(!this.claimed.compareAndSet(sequence, sequence + 1));
+
+		Event slot = this.ring[(int)sequence & this.mask];
+		slot.category 	= event.category;
+		slot.level 		= event.level;
+		slot.name 		= event.name;
+		slot.fields 	= event.fields;
+		System.arraycopy(event.keys, 0, slot.keys, 0, event.fields);
+		System.arraycopy(event.objects, 0, slot.objects, 0, event.fields);
+		System.arraycopy(event.longs, 0, slot.longs, 0, event.fields);
+		slot.time 		= System.currentTimeMillis();
+		slot.thread 	= Thread.currentThread().getName();
+		slot.sequence 	= sequence;
+	}
+
+	/*
+	 * Writes the events that are complete, in batches of BATCH, and returns false if there was none.
+	 * Called by the writer every few ms and once more when the JVM exits.
+	 */
+	private synchronized boolean drain() {
+		boolean any = false;
+		while(true) {
+			long next = this.written;
+			int n = 0;
+			while(n < BATCH) {
+				Event slot = this.ring[(int)next & this.mask];
+				if(slot.sequence != next)
+					break; // not claimed yet, or claimed but not filled.
+				this.format(slot);
+				for(int i = 0; i < slot.fields; i++)
+					slot.objects[i] = null; // so the ring does not keep them alive.
+				next++;
+				n++;
+			}
+			this.written = next;
+			long dropped = this.dropped.get();
+			if(dropped > this.reported) {
+				this.text.append(TIME.format(Instant.now())).append(" WARN server log_dropped pid=").append(PID);
+				this.text.append(" events=").append(dropped - this.reported).append('\n');
+				this.reported = dropped;
+			}
+			if(this.text.length() == 0)
+				return any;
+			this.write();
+			any = true;
+		}
+	}
+
+	private void format(Event event) {
+		StringBuilder text = this.text;
+		text.append(TIME.format(Instant.ofEpochMilli(event.time))).append(' ');
+		text.append(event.level.name()).append(' ');
+		text.append(event.category.name().toLowerCase(Locale.ROOT)).append(' ');
+		text.append(event.name);
+		text.append(" pid=").append(PID);
+		text.append(" thread=");
+		value(text, event.thread);
+		for(int i = 0; i < event.fields; i++) {
+			text.append(' ').append(event.keys[i]).append('=');
+			if(event.objects[i] == null)
+				text.append(event.longs[i]);
+			else
+				value(text, String.valueOf(event.objects[i]));
+		}
+		text.append('\n');
+	}
+
+	//a value with a space, a quote or an equals sign is quoted, so the line can still be split into fields
+	private static void value(StringBuilder text, String value) {
+		boolean quote = value.isEmpty();
+		for(int i = 0; i < value.length() && !quote; i++) {
+			char c = value.charAt(i);
+			quote = c <= ' ' || c == '"' || c == '=';
+		}
+		if(!quote) {
+			text.append(value);
+			return;
+		}
+		text.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\')
+				text.append('\\').append(c);
+			else if(c == '\n')
+				text.append("\\n");
+			else
+				text.append(c);
+		}
+		text.append('"');
+	}
+
+	//appends the text to the file, and rolls the files first if it would pass the limit
+	private void write() {
+		ByteBuffer bytes = StandardCharsets.UTF_8.encode(this.text.toString());
+		this.text.setLength(0);
+		try {
+			if(this.channel == null)
+				this.open();
+			if(this.channel.size() > 0 && this.channel.size() + bytes.remaining() > this.maxBytes) {
+				this.roll();
+				this.open();
+			}
+			while(bytes.hasRemaining())
+				this.channel.write(bytes);
+		}
+		catch (IOException e) {
+			System.err.println("Could not write " + this.file + ": " + e.getMessage()); // the batch is lost.
+			this.channel = null;
+		}
+	}
+
+	private void open() throws IOException {
+		Path parent = this.file.toAbsolutePath().getParent();
+		if(parent != null)
+			Files.createDirectories(parent);
+		this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	//netLog.log becomes netLog.log.1, netLog.log.1 becomes netLog.log.2... and the oldest is deleted
+	private void roll() throws IOException {
+		this.channel.close();
+		this.channel = null;
+		Files.deleteIfExists(Paths.get(this.file + "." + (this.files - 1)));
+		for(int i = this.files - 2; i >= 1; i--) {
+			Path older = Paths.get(this.file + "." + i);
+			if(Files.exists(older))
+				Files.move(older, Paths.get(this.file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+		}
+		if(this.files > 1)
+			Files.move(this.file, Paths.get(this.file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		else
+			Files.delete(this.file);
+	}
+}
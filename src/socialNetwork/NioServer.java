@@ -0,0 +1,313 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/*
+ * This is the non-blocking front end of the server (server.mode=nio).
+ * Instead of one thread per connection, a small fixed number of event loops
+ * own all the sockets through a Selector. Each loop reads the bytes that arrive,
+ * cuts them into frames (see FrameCodec), decodes the messages and hands them to the
+ * ClientHandler of the connection, which runs on a fixed pool of worker threads only
+ * while it has something to do. Thousands of idle sessions cost a socket and a few
+ * small objects each, not a thread with its stack. Only clients of the binary protocol
+ * are accepted, old clients that send object streams need the classic mode.
+ */
+public class NioServer {
+
+	private final int port;
+	private final Function<MessageChannel, ClientHandler> handlerFactory; // creates the handler of a new connection.
+	private final EventLoop[] loops;
+	private final ExecutorService workers;
+	private ServerSocketChannel server;
+
+	public NioServer(int port, int loops, int workers, Function<MessageChannel, ClientHandler> handlerFactory) throws IOException {
+		this.port = port;
+		this.handlerFactory = handlerFactory;
+		this.workers = Threads.newWorkerPool("nio-worker", workers);
+		this.loops = new EventLoop[loops];
+		for(int i = 0; i < loops; i++)
+			this.loops[i] = new EventLoop();
+	}
+
+	/*
+	 * Starts the event loops and then accepts connections on the calling thread.
+	 * Every new connection is given to the next loop (round robin).
+	 */
+	public void acceptConnections() throws IOException {
+		for(int i = 0; i < this.loops.length; i++) {
+			Thread t = new Thread(this.loops[i], "nio-loop-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		this.server = ServerSocketChannel.open();
+		this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		this.server.bind(new InetSocketAddress(this.port), 1024);
+		int next = 0;
+		while(this.server.isOpen()) {
+			try {
+				SocketChannel connection = this.server.accept();
+				connection.configureBlocking(false);
+				connection.socket().setTcpNoDelay(true);
+				this.loops[next].register(connection);
+				next = (next + 1) % this.loops.length;
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * An event loop owns a Selector and every socket registered with it.
+	 * Other threads talk to it only through the two queues below and wake it up.
+	 */
+	class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<NioSession> writes = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<NioSession> resumes = new ConcurrentLinkedQueue<>(); // sessions whose worker took enough raw bytes.
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024); // shared by all the sessions of the loop.
+		private final ByteBuffer[] gather = new ByteBuffer[64]; // frames written with one system call.
+
+		EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		void register(SocketChannel connection) {
+			this.registrations.add(connection);
+			this.selector.wakeup();
+		}
+
+		//called by any thread that queued frames on a session
+		void scheduleWrite(NioSession session) {
+			if(session.outbound.claim()) {
+				this.writes.add(session);
+				this.selector.wakeup();
+			}
+		}
+
+		//called by the worker of a session that the loop stopped reading
+		void resumeRead(NioSession session) {
+			this.resumes.add(session);
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					this.selector.select();
+					this.registerPending();
+					NioSession session;
+					while((session = this.resumes.poll()) != null)
+						this.resume(session);
+					while((session = this.writes.poll()) != null)
+						this.write(session);
+
+					Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						session = (NioSession)key.attachment();
+						if(!key.isValid())
+							continue;
+						if(key.isReadable())
+							this.read(session);
+						if(key.isValid() && key.isWritable())
+							this.write(session);
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void registerPending() {
+			SocketChannel connection;
+			while((connection = this.registrations.poll()) != null) {
+				try {
+					NioSession session = new NioSession(connection, this, workers);
+					session.setHandler(handlerFactory.apply(session));
+					connection.register(this.selector, SelectionKey.OP_READ, session);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/*
+		 * Reads what is available on the socket and decodes every complete frame.
+		 * A frame that is not complete yet is kept in the session until the rest arrives.
+		 */
+		private void read(NioSession session) {
+			try {
+				this.readBuffer.clear();
+				int n = session.getSocket().read(this.readBuffer);
+				if(n < 0) {
+					session.closeQuietly();
+					return;
+				}
+				this.readBuffer.flip();
+				ByteBuffer source = this.readBuffer;
+				if(session.partial != null) {
+					if(session.partial.remaining() < this.readBuffer.remaining()) {
+						ByteBuffer bigger = ByteBuffer.allocate(session.partial.position() + this.readBuffer.remaining());
+						session.partial.flip();
+						bigger.put(session.partial);
+						session.partial = bigger;
+					}
+					session.partial.put(this.readBuffer);
+					session.partial.flip();
+					source = session.partial;
+				}
+				this.decode(session, source);
+				if(session.inboxFull())
+					this.pause(session);
+			}
+			catch (ProtocolException e) {
+				NetLog.event(NetLog.Category.SESSION, NetLog.Level.WARN, "closed").with("address", session.getRemoteAddress()).with("reason", e.getMessage()).log();
+				session.closeQuietly();
+			}
+			catch (IOException e) {
+				session.closeQuietly();
+			}
+		}
+
+		/*
+		 * Stops reading a session whose inbox is full. The worker may have taken the bytes just before
+		 * it could see that the session is paused, so the inbox is looked at again after pausing.
+		 */
+		private void pause(NioSession session) {
+			SelectionKey key = session.getSocket().keyFor(this.selector);
+			if(key == null || !key.isValid())
+				return;
+			session.readPaused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			if(session.inboxDrained())
+				this.resume(session);
+		}
+
+		private void resume(NioSession session) {
+			SelectionKey key = session.getSocket().keyFor(this.selector);
+			if(!session.readPaused || key == null || !key.isValid())
+				return;
+			session.readPaused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		private void decode(NioSession session, ByteBuffer source) throws IOException {
+			if(!session.negotiated && source.remaining() >= 4) {
+				if(source.getInt() != FrameCodec.PREAMBLE)
+					throw new ProtocolException("not a client of the binary protocol");
+				session.negotiated = true;
+				session.acceptPreamble();
+			}
+			while(session.negotiated) {
+				if(session.rawRemaining > 0) {
+					// the payload of a RAW frame is passed on as it arrives, it is never kept whole.
+					int n = Math.min(session.rawRemaining, source.remaining());
+					if(n == 0)
+						break;
+					byte[] payload = new byte[n];
+					source.get(payload);
+					session.rawRemaining -= n;
+					session.deliver(payload);
+					continue;
+				}
+				if(source.remaining() < FrameCodec.HEADER_SIZE)
+					break;
+				int length = source.getInt(source.position());
+				FrameCodec.checkLength(length);
+				if(source.get(source.position() + 4) != FrameCodec.MESSAGE) {
+					source.position(source.position() + FrameCodec.HEADER_SIZE);
+					session.rawRemaining = length;
+					continue;
+				}
+				FrameCodec.checkMessageLength(length);
+				if(source.remaining() < FrameCodec.HEADER_SIZE + length)
+					break;
+				source.position(source.position() + FrameCodec.HEADER_SIZE);
+				session.deliver(FrameCodec.decodeMessage(source, length));
+			}
+
+			if(!source.hasRemaining()) {
+				session.partial = null;
+			}
+			else if(source == session.partial) {
+				source.compact();
+			}
+			else {
+				// keep the beginning of a message, which grows in read as the rest arrives.
+				session.partial = ByteBuffer.allocate(Math.max(source.remaining(), 1024));
+				session.partial.put(source);
+			}
+		}
+
+		/*
+		 * Writes the queued frames of a session. The frames that wait one after the other are written
+		 * together with one gathering write. If the socket can not take them all, the loop waits
+		 * until the socket becomes writable again.
+		 */
+		private void write(NioSession session) {
+			SelectionKey key = session.getSocket().keyFor(this.selector);
+			if(key == null || !key.isValid()) {
+				session.outbound.release();
+				return;
+			}
+			try {
+				do {
+					Object item;
+					while((item = session.outbound.peek()) != null) {
+						boolean written;
+						if(item instanceof ByteBuffer) {
+							int n = session.outbound.peekFrames(this.gather);
+							long bytes = session.getSocket().write(this.gather, 0, n);
+							int done = 0;
+							while(done < n && !this.gather[done].hasRemaining())
+								done++;
+							Arrays.fill(this.gather, 0, n, null);
+							for(int i = 0; i < done; i++)
+								session.outbound.poll();
+							written = done == n;
+							if(bytes > 0)
+								session.outbound.progress();
+						}
+						else {
+							NioSession.FileRegion region = (NioSession.FileRegion)item;
+							long remaining = region.remaining();
+							written = region.transferTo(session.getSocket());
+							if(written)
+								session.outbound.poll();
+							if(region.remaining() < remaining)
+								session.outbound.progress();
+						}
+						if(!written) {
+							key.interestOps(session.readPaused ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+							return;
+						}
+					}
+					key.interestOps(session.readPaused ? 0 : SelectionKey.OP_READ);
+				} while(session.outbound.release());
+			}
+			catch (IOException e) {
+				session.closeQuietly();
+			}
+		}
+	}
+}
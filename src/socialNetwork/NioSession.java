@@ -0,0 +1,422 @@
+package socialNetwork;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class is a single connection of the non-blocking server. The event loop
+ * that owns the socket decodes the incoming frames and puts them in the inbox of the session.
+ * When a message arrives and nobody is servicing the session, the session is handed to
+ * a worker thread that passes the messages to the ClientHandler one by one. An idle
+ * session holds no thread at all. Outgoing frames are queued and written by the event loop
+ * (see OutboundQueue), which closes the session if the client stays too far behind.
+ *
+ * The event loop reads faster than a worker writes an upload to the disk, so it stops reading a session
+ * whose inbox holds more than --nio.inboxBytes (1 MB) of raw bytes, and the worker asks it to read again
+ * when less than half of them are left. The sender then waits on the full socket, as it would with a thread.
+ */
+public class NioSession implements MessageChannel {
+
+	private static final Object CLOSED = new Object(); // marker put in the inbox when the connection is closed.
+	private static final long INBOX_BYTES = Settings.getLong("nio.inboxBytes", 1 << 20);
+
+	private final SocketChannel socket;
+	private final NioServer.EventLoop loop;
+	private final Executor workers;
+	private final String remoteAddress;
+	private final int remotePort;
+	private final LinkedBlockingQueue<Object> inbox = new LinkedBlockingQueue<>(); // decoded messages (Message) and raw bytes (byte[]).
+	private final ConcurrentLinkedDeque<Message> deferred = new ConcurrentLinkedDeque<>(); // messages found while reading raw bytes.
+	private final AtomicBoolean dispatching = new AtomicBoolean(false); // true while a worker is servicing the session.
+	private final AtomicLong inboxBytes = new AtomicLong(); // raw bytes in the inbox.
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private volatile boolean open = true;
+	private ClientHandler handler;
+	private DataOutputStream raw; // stream returned by beginRaw.
+	private byte[] rawCurrent;
+	private int rawPosition;
+
+	final OutboundQueue outbound = new OutboundQueue(this); // frames (ByteBuffer) and parts of files (FileRegion) waiting for the event loop.
+	ByteBuffer partial; // bytes of a message that has not fully arrived yet. Used only by the event loop.
+	int rawRemaining; // bytes of the current RAW frame that have not arrived yet. Used only by the event loop.
+	boolean negotiated; // true after the preamble of the client has arrived. Used only by the event loop.
+	volatile boolean readPaused; // true while the event loop does not read the socket. Written only by the event loop.
+
+	public NioSession(SocketChannel socket, NioServer.EventLoop loop, Executor workers) throws IOException {
+		this.socket  = socket;
+		this.loop 	 = loop;
+		this.workers = workers;
+		this.remoteAddress = socket.socket().getInetAddress().getHostAddress();
+		this.remotePort    = socket.socket().getPort();
+	}
+
+	public void setHandler(ClientHandler handler) {
+		this.handler = handler;
+	}
+
+	SocketChannel getSocket() {
+		return this.socket;
+	}
+
+	/*
+	 * Called by the event loop for every message that is decoded and every part of a RAW frame that arrives.
+	 * If the item is a message and the session is not serviced at the moment, a worker is started for it.
+	 */
+	void deliver(Object item) {
+		if(item instanceof byte[]) {
+			if(!this.dispatching.get())
+				return; // no request is being handled, so nobody asked for these bytes. They are skipped as in FramedMessageChannel.receive.
+			this.inboxBytes.addAndGet(((byte[])item).length);
+		}
+		this.inbox.add(item);
+		if(item instanceof Message && this.dispatching.compareAndSet(false, true))
+			this.workers.execute(this::drain);
+	}
+
+	/*
+	 * Runs on a worker thread. Passes the waiting messages to the handler until the
+	 * inbox is empty. The handler may read more messages itself (download, synchronization)
+	 * through receive and rawInput.
+	 */
+	private void drain() {
+		try {
+			while(true) {
+				Message m = this.poll();
+				if(m == null) {
+					if(!this.open)
+						return;
+					this.dispatching.set(false);
+					if((this.inbox.isEmpty() && this.deferred.isEmpty()) || !this.dispatching.compareAndSet(false, true))
+						return;
+					continue;
+				}
+				this.handler.handle(m);
+			}
+		}
+		catch (ProtocolException e) {
+			// a request that broke the protocol in the middle (a malformed Ack of a download), as in ClientHandler.run.
+			NetLog.event(NetLog.Category.SESSION, NetLog.Level.WARN, "closed").with("address", this.getRemoteAddress()).with("reason", e.getMessage()).log();
+			this.closeQuietly();
+		}
+		catch (ClassNotFoundException | IOException e) {
+			if(this.open)
+				e.printStackTrace();
+			this.closeQuietly();
+		}
+	}
+
+	//true if the event loop should stop reading until the worker takes some raw bytes
+	boolean inboxFull() {
+		return this.inboxBytes.get() > INBOX_BYTES;
+	}
+
+	//true if the event loop can read again after it stopped
+	boolean inboxDrained() {
+		return this.inboxBytes.get() <= INBOX_BYTES / 2;
+	}
+
+	//called when raw bytes leave the inbox. Asks the event loop to read again if it stopped and enough was taken
+	private void taken(byte[] raw) {
+		if(this.inboxBytes.addAndGet(-raw.length) <= INBOX_BYTES / 2 && this.readPaused)
+			this.loop.resumeRead(this);
+	}
+
+	//returns the next waiting message without blocking, or null if there is none
+	private Message poll() {
+		Message m = this.deferred.poll();
+		if(m != null)
+			return m;
+		Object item;
+		while((item = this.inbox.poll()) != null) {
+			if(item == CLOSED) {
+				this.inbox.add(CLOSED);
+				return null;
+			}
+			if(item instanceof Message)
+				return (Message)item;
+			this.taken((byte[])item);
+		}
+		return null;
+	}
+
+	@Override
+	public Message receive() throws IOException, ClassNotFoundException {
+		Message m = this.deferred.poll();
+		if(m != null)
+			return m;
+		try {
+			while(true) {
+				Object item = this.inbox.take();
+				if(item == CLOSED) {
+					this.inbox.add(CLOSED); // let every other reader see it too.
+					throw new EOFException("Connection closed");
+				}
+				if(item instanceof Message)
+					return (Message)item;
+				this.taken((byte[])item);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void send(Message m) throws IOException {
+		ByteBuffer frame = FrameCodec.encodeMessage(m);
+		this.writeLock.lock();
+		try {
+			this.enqueue(frame);
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	//answers the preamble of the client, before any message can be sent to it
+	void acceptPreamble() throws IOException {
+		this.enqueue(FrameCodec.encodePreamble());
+	}
+
+	private void enqueue(Object item) throws IOException {
+		if(!this.open)
+			throw new EOFException("Connection closed");
+		try {
+			this.outbound.add(item);
+		}
+		catch (IOException e) {
+			this.closeQuietly();
+			throw e;
+		}
+		this.loop.scheduleWrite(this);
+	}
+
+	@Override
+	public DataOutputStream beginRaw(Message header) throws IOException {
+		this.writeLock.lock();
+		try {
+			this.enqueue(FrameCodec.encodeMessage(header));
+		}
+		catch (IOException e) {
+			this.writeLock.unlock();
+			throw e;
+		}
+		this.raw = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				this.write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if(len > 0)
+					enqueue(FrameCodec.encodeRaw(b, off, len));
+			}
+		}, 8192));
+		return this.raw;
+	}
+
+	@Override
+	public void endRaw() throws IOException {
+		try {
+			this.raw.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/*
+	 * Queues the header message and then the file in RAW frames. The payload of each frame
+	 * is a FileRegion that the event loop writes with transferTo when the socket can take it,
+	 * so the worker does not wait for a slow client and the file is never read into the heap.
+	 */
+	@Override
+	public void sendFile(Message header, FileChannel file, long count) throws IOException {
+		this.writeLock.lock();
+		try {
+			this.enqueue(FrameCodec.encodeMessage(header));
+			long position = 0;
+			do {
+				int n = (int)Math.min(FrameCodec.FILE_FRAME, count - position);
+				this.enqueue(FrameCodec.encodeRawHeader(n));
+				this.enqueue(new FileRegion(file, position, n, position + n == count));
+				position += n;
+			} while(position < count);
+		}
+		catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	//the raw frames of this session are already in the heap, so they are simply written to the file
+	@Override
+	public void receiveFile(FileChannel file, long count) throws IOException {
+		DataInputStream in = this.rawInput();
+		byte[] buffer = new byte[8192];
+		long position = 0;
+		while(position < count) {
+			int n = in.read(buffer, 0, (int)Math.min(buffer.length, count - position));
+			if(n < 0)
+				throw new EOFException("Connection closed during a file transfer");
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+			while(bytes.hasRemaining())
+				position += file.write(bytes, position);
+		}
+	}
+
+	/*
+	 * Reads the raw frames of the inbox as one stream. Messages that
+	 * arrive in between are kept for receive.
+	 */
+	@Override
+	public DataInputStream rawInput() throws IOException {
+		return new DataInputStream(new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return this.read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if(len == 0)
+					return 0;
+				while(rawCurrent == null || rawPosition == rawCurrent.length) {
+					Object item;
+					try {
+						item = inbox.take();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					}
+					if(item == CLOSED) {
+						inbox.add(CLOSED);
+						return -1;
+					}
+					if(item instanceof Message) {
+						deferred.add((Message)item);
+					}
+					else {
+						rawCurrent = (byte[])item;
+						rawPosition = 0;
+						taken(rawCurrent);
+					}
+				}
+				int n = Math.min(len, rawCurrent.length - rawPosition);
+				System.arraycopy(rawCurrent, rawPosition, b, off, n);
+				rawPosition += n;
+				return n;
+			}
+		});
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	@Override
+	public int getRemotePort() {
+		return this.remotePort;
+	}
+
+	/*
+	 * Closes the socket and wakes up every thread that waits for a message
+	 * of this session.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(!this.open)
+			return;
+		this.open = false;
+		this.inbox.add(CLOSED);
+		Object item;
+		while((item = this.outbound.poll()) != null) {
+			if(item instanceof FileRegion)
+				((FileRegion)item).close();
+		}
+		this.socket.close();
+	}
+
+	void closeQuietly() {
+		try {
+			this.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * A part of a file that is queued to be written to the socket. The last part
+	 * of a file closes it.
+	 */
+	static class FileRegion {
+		private final FileChannel file;
+		private final long end;
+		private final boolean last;
+		private long position;
+
+		FileRegion(FileChannel file, long position, long count, boolean last) {
+			this.file 	  = file;
+			this.position = position;
+			this.end 	  = position + count;
+			this.last 	  = last;
+		}
+
+		//writes as much as the socket takes and returns true when the whole part has been written
+		boolean transferTo(SocketChannel socket) throws IOException {
+			while(this.position < this.end) {
+				long n = this.file.transferTo(this.position, this.end - this.position, socket);
+				if(n <= 0)
+					return false;
+				this.position += n;
+			}
+			this.close();
+			return true;
+		}
+
+		//bytes of the part that are not written yet
+		long remaining() {
+			return this.end - this.position;
+		}
+
+		void close() {
+			if(!this.last)
+				return;
+			try {
+				this.file.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
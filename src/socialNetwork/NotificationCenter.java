@@ -0,0 +1,82 @@
+package socialNetwork;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class delivers the notifications of the social network (follow requests and accepts,
+ * unfollows, new posts and comments) as soon as they are produced. Every user has an Inbox, created
+ * with the first notification, that the handlers add to (see add). A client that sent a "Subscribe"
+ * message is attached to its inbox with the handler of its connection, and the notifications are pushed
+ * to it at once. Users that are not connected keep their notifications in the inbox until they subscribe.
+ * Clients that do not subscribe still poll for their notifications (see Notifier).
+ * The names come from the clients, so they are only looked up and never numbered here: a notification
+ * for a name that is not a user of the graph is dropped, and no inbox or file is created for it.
+ */
+public class NotificationCenter {
+
+	private final SymbolTable symbols;
+	private final UserTable<Inbox> inboxes = new UserTable<>(); // at the number of the user (see SymbolTable).
+	private final AtomicInteger subscribers = new AtomicInteger();
+
+	public NotificationCenter(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	//adds a notification to the inbox of a user, which pushes it if the user subscribed
+	public void add(String user, Inbox.Kind kind, String text) {
+		Inbox inbox = this.inbox(user);
+		if(inbox != null)
+			inbox.add(kind, text);
+	}
+
+	//adds notifications of one kind to the inbox of a user, which pushes them together
+	public void addAll(String user, Inbox.Kind kind, Iterable<String> texts) {
+		Inbox inbox = this.inbox(user);
+		if(inbox != null)
+			inbox.addAll(kind, texts);
+	}
+
+	//registers the connection of a user and sends it the notifications that are already waiting
+	public void subscribe(String user, Inbox.Sink handler) {
+		Inbox inbox = this.inbox(user);
+		if(inbox != null && inbox.attach(handler) == null)
+			this.subscribers.incrementAndGet();
+	}
+
+	//removes the connection of a user, unless the user has already connected again
+	public void unsubscribe(String user, Inbox.Sink handler) {
+		Inbox inbox = this.existing(user);
+		if(inbox != null && inbox.detach(handler))
+			this.subscribers.decrementAndGet();
+	}
+
+	//the client received the notifications up to a sequence number
+	public void acknowledge(String user, long seq) {
+		Inbox inbox = this.existing(user);
+		if(inbox != null)
+			inbox.acknowledge(seq);
+	}
+
+	//sends the waiting notifications of a user that polled to its connection, after the ones up to seq are acknowledged
+	public void poll(String user, Inbox.Sink handler, long seq) {
+		Inbox inbox = this.existing(user);
+		if(inbox != null)
+			inbox.poll(handler, seq);
+	}
+
+	//number of connections that receive their notifications without polling
+	public int getSubscribers() {
+		return this.subscribers.get();
+	}
+
+	//the inbox of a user, which is created the first time, or null if the name is not a user
+	private Inbox inbox(String user) {
+		int id = this.symbols.idOf(user);
+		return id < 0 ? null : this.inboxes.computeIfAbsent(id, i -> new Inbox(user));
+	}
+
+	private Inbox existing(String user) {
+		int id = this.symbols.idOf(user);
+		return id < 0 ? null : this.inboxes.get(id);
+	}
+}
@@ -1,42 +1,53 @@
 package socialNetwork;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 
 
+/*
+ * This thread asks the server for the notifications of the client every 2 seconds.
+ * It is only used with --client.notify=poll, otherwise the server pushes the
+ * notifications (see NotificationCenter).
+ * Every poll carries the number of the last notification the Listener received, so the server
+ * forgets only what we have (see Inbox.poll).
+ */
 public class Notifier implements Runnable{
 
-	private ObjectOutputStream out;
+	private MessageChannel out;
 	private final String clientID;
+	private final Listener listener;
 	
-	public Notifier(ObjectOutputStream out, String clientID) {
+	public Notifier(MessageChannel out, String clientID, Listener listener) {
 		this.out = out;
 		this.clientID = clientID;
+		this.listener = listener;
 	}
 	
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
 		long start = System.currentTimeMillis();
-		Message notifyFollow = null;
-		Message notifyUnfollow = null;
-		Message notifyNewComment = null;
+		// a server of the binary protocol answers one poll with all the notifications. A server that only speaks object
+		// streams may be an old one, which answers each kind of poll with its own notifications.
+		boolean all = !(this.out instanceof FramedMessageChannel);
 		while(true) {
 			/*
-			 Every 2 seconds we send a Followers requests notification and Unfollow notification to the Client in order for him to check if
-			 he has a Follow request or an Unfollow notification. 
+			 Every 2 seconds we send a Followers requests notification (and to an old server an Unfollow notification and a Comment
+			 Notification) in order to check if we have a Follow request or an Unfollow notification. The thread sleeps between
+			 the checks instead of reading the clock in a loop, which kept a whole processor busy.
 			*/
+			try {
+				Thread.sleep(Math.max(0, 2000 - (System.currentTimeMillis() - start)));
+			}
+			catch (InterruptedException e) {
+				break;
+			}
 			if(System.currentTimeMillis() - start >= 2000) {
-				notifyFollow = new Message("Followers requests notification", "time "+String.valueOf(start),this.clientID);
-				notifyUnfollow = new Message("Unfollow notification", "time "+String.valueOf(start),this.clientID);
-				notifyNewComment = new Message("Comment Notification", "time "+String.valueOf(start),this.clientID);
+				String ack = "ack "+this.listener.getLastSequence();
 				try {
-					this.out.writeObject(notifyFollow);
-					this.out.flush();
-					this.out.writeObject(notifyUnfollow);
-					this.out.flush();
-					this.out.writeObject(notifyNewComment);
-					this.out.flush();
+					this.out.send(new Message("Followers requests notification", ack, this.clientID));
+					if(all) {
+						this.out.send(new Message("Unfollow notification", ack, this.clientID));
+						this.out.send(new Message("Comment Notification", ack, this.clientID));
+					}
 					start = System.currentTimeMillis();
 				} 
 				catch (IOException e) {
@@ -0,0 +1,110 @@
+package socialNetwork;
+
+import java.util.HashMap;
+
+/*
+ * This enum gives a number to every header of a Message. The binary protocol (see FrameCodec)
+ * sends this number instead of the header text, and the client handler and the listener
+ * switch on it instead of comparing the header with a chain of equals.
+ * The codes travel on the wire, so a new header gets a new code at the end and
+ * the existing codes never change.
+ */
+public enum Opcode {
+
+	UNKNOWN(0, null), // a header that has no code. The binary protocol sends its text.
+
+	// requests of the client
+	SIGN_UP(1, "Sign up"),
+	LOGIN(2, "Login"),
+	GET_FOLLOWERS(3, "Get followers"),
+	GET_FOLLOWING(4, "Get following"),
+	PULL_USERS(5, "Pull Users"),
+	FOLLOW_REQUEST(6, "Follow request"),
+	FOLLOW_REQUEST_ACCEPT(7, "Follow request accept"),
+	UNFOLLOW(8, "Unfollow"),
+	SYNCHRONIZATION(9, "Synchronization"),
+	ACCESS_PROFILE(10, "Access Profile"),
+	SEARCH(11, "Search"),
+	ASK_COMMENT(12, "Ask Comment"),
+	APPROVE_COMMENT(13, "Approve Comment"),
+	DENY_COMMENT(14, "Deny Comment"),
+	DOWNLOAD_REQUEST(15, "Download request"),
+	DOWNLOAD(16, "Download"),
+	ACK(17, "Ack"),
+	LOG_OUT(18, "Log Out"),
+	FOLLOWERS_REQUESTS_NOTIFICATION(19, "Followers requests notification"),
+	UNFOLLOW_NOTIFICATION(20, "Unfollow notification"),
+	COMMENT_NOTIFICATION(21, "Comment Notification"),
+	DOWNLOAD_STREAM(22, "Download stream"),
+	SUBSCRIBE(23, "Subscribe"),
+	SYNC_POST(24, "Sync post"),
+	UPLOAD_OFFSET(25, "Upload offset"),
+	ACK_NOTIFICATIONS(26, "Ack notifications"),
+
+	// replies and notifications of the server
+	SIGN_UP_REPLY(32, "Sing up reply"),
+	LOGIN_SUCCESS(33, "Login success"),
+	LOGIN_FAILED(34, "Login failed"),
+	FOLLOWERS_REPLY(35, "Followers reply"),
+	FOLLOWING_REPLY(36, "Following reply"),
+	PULL_USERS_REPLY(37, "Pull Users reply"),
+	FOLLOW_REQUESTS(38, "Follow Request"),
+	FOLLOW_ACCEPT(39, "Follow Accept"),
+	UPLOAD_NOTIFICATION(40, "Upload Notification"),
+	COMMENT_REQUEST_HANDLED(41, "Comment Request Handled"),
+	UNFOLLOW_COMMIT(42, "Unfollow commit"),
+	ACCEPT_PROFILE(43, "Accept Profile"),
+	DENY_PROFILE(44, "Deny Profile"),
+	SEARCH_REPLY(45, "Search reply"),
+	ERROR_COMMENT(46, "Error Comment"),
+	COMMENT_REQUESTS(47, "Comment requests"),
+	DOWNLOAD_ACCEPT(48, "Download accept"),
+	FILE_CHUNK(49, "File Chunk"),
+	CAPTION_DOWNLOAD(50, "Caption Download"),
+	FILE_STREAM(51, "File Stream"),
+	SYNC_POST_REPLY(52, "Sync post reply"),
+	UPLOAD_OFFSET_REPLY(53, "Upload offset reply"),
+	DOWNLOAD_ERROR(54, "Download error"),
+	REQUEST_ERROR(55, "Request error");
+
+	private static final Opcode[] BY_CODE = new Opcode[256];
+	private static final HashMap<String, Opcode> BY_HEADER = new HashMap<>();
+
+	static {
+		for(Opcode op : values()) {
+			BY_CODE[op.code] = op;
+			if(op.header != null)
+				BY_HEADER.put(op.header, op);
+		}
+	}
+
+	private final int code;
+	private final String header;
+
+	Opcode(int code, String header) {
+		this.code = code;
+		this.header = header;
+	}
+
+	//the number that is sent on the wire
+	public int getCode() {
+		return this.code;
+	}
+
+	//the header text of the messages with this code
+	public String getHeader() {
+		return this.header;
+	}
+
+	//returns the opcode of a header, or UNKNOWN if the header has no code
+	public static Opcode of(String header) {
+		Opcode op = header == null ? null : BY_HEADER.get(header);
+		return op == null ? UNKNOWN : op;
+	}
+
+	//returns the opcode of a number read from the wire, or UNKNOWN if the number has no opcode
+	public static Opcode of(int code) {
+		Opcode op = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+		return op == null ? UNKNOWN : op;
+	}
+}
@@ -0,0 +1,190 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * What waits to be written to one connection of the server. The handler of the connection and the handlers
+ * of other users (the notifications, see Inbox) only add to it and go on, and one writer at a time takes
+ * everything that waits and writes it with one flush: the event loop of the session in nio mode, a writer
+ * task of the channel in classic mode. A burst of notifications then costs one system call, not one per
+ * message, and a thread never waits for the socket of another user.
+ *
+ * A client that does not read makes the queue grow. At most --net.outboundBytes (4 MB) may wait for a
+ * connection, and a connection that has not taken anything for --net.slowConsumerMillis (10 s) while
+ * something waits is too slow. In both cases add fails and the channel closes the connection; the
+ * notifications that were not acknowledged are sent again when the user connects again. Parts of
+ * files are not counted, they stay on the disk until they are written.
+ * A client that stops reading may never be sent anything else, so the queues that wait for their
+ * client are also looked at every second by the sweeper thread, which closes the ones that are too slow.
+ * Closing the socket also ends a writer that waits for it in a blocking write.
+ */
+class OutboundQueue {
+
+	private static final long MAX_BYTES = Settings.getLong("net.outboundBytes", 4 << 20);
+	private static final long SLOW_MILLIS = Settings.getLong("net.slowConsumerMillis", 10000);
+	private static final AtomicLong DISCONNECTED = new AtomicLong(); // connections closed because they were too slow.
+	private static final Set<OutboundQueue> BEHIND = ConcurrentHashMap.newKeySet(); // the queues whose client has not taken everything.
+	private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "slow-consumers");
+		t.setDaemon(true);
+		return t;
+	});
+
+	static {
+		long period = Math.max(10, Math.min(1000, SLOW_MILLIS / 4));
+		SWEEPER.scheduleWithFixedDelay(OutboundQueue::sweep, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	//runs the writer tasks of the classic channels. A task that waits for a slow socket holds only its own thread
+	static final ExecutorService WRITERS = Threads.newThreadPerTaskExecutor("writer");
+
+	private final ConcurrentLinkedQueue<Object> items = new ConcurrentLinkedQueue<>(); // frames (ByteBuffer), messages or parts of files.
+	private final AtomicLong bytes = new AtomicLong(); // bytes of the waiting items.
+	private final AtomicBoolean writing = new AtomicBoolean(false); // true while a writer is responsible for the queue.
+	private volatile long behindSince = 0; // when the writer last took something while items wait, 0 if nothing waits.
+	private final MessageChannel connection; // closed by the sweeper if it is too slow.
+
+	OutboundQueue(MessageChannel connection) {
+		this.connection = connection;
+	}
+
+	/*
+	 * Queues an item. Throws an IOException, and counts a disconnection, if the connection is too
+	 * slow; the caller closes it. An item bigger than the limit is accepted when nothing else waits.
+	 */
+	void add(Object item) throws IOException {
+		long size = sizeOf(item);
+		long now = System.currentTimeMillis();
+		long since = this.behindSince;
+		if(since != 0 && now - since > SLOW_MILLIS) {
+			DISCONNECTED.incrementAndGet();
+			throw new IOException("Slow consumer: nothing was read for " + (now - since) + " ms");
+		}
+		long waiting = this.bytes.addAndGet(size);
+		if(waiting > MAX_BYTES && waiting != size) {
+			this.bytes.addAndGet(-size);
+			DISCONNECTED.incrementAndGet();
+			throw new IOException("Slow consumer: more than " + MAX_BYTES + " bytes are waiting");
+		}
+		this.items.add(item);
+		if(this.behindSince == 0)
+			this.behind(now); // after the item is in the queue, so a writer that has just seen it empty can not miss it.
+	}
+
+	Object peek() {
+		return this.items.peek();
+	}
+
+	Object poll() {
+		Object item = this.items.poll();
+		if(item != null)
+			this.bytes.addAndGet(-sizeOf(item));
+		return item;
+	}
+
+	//puts the frames at the head of the queue, up to the first part of a file, in the array and returns how many
+	int peekFrames(ByteBuffer[] frames) {
+		int n = 0;
+		for(Object item : this.items) {
+			if(n == frames.length || !(item instanceof ByteBuffer))
+				break;
+			frames[n++] = (ByteBuffer)item;
+		}
+		return n;
+	}
+
+	boolean isEmpty() {
+		return this.items.isEmpty();
+	}
+
+	//called by the writer when the client took some bytes: the time of a slow client counts from here
+	void progress() {
+		this.progress(false);
+	}
+
+	//more is true if the writer goes on with something that is not in the queue (the rest of a file)
+	void progress(boolean more) {
+		long now = System.currentTimeMillis();
+		this.behindSince = 0;
+		if(more || !this.items.isEmpty())
+			this.behind(now);
+	}
+
+	private void behind(long now) {
+		this.behindSince = now;
+		BEHIND.add(this);
+	}
+
+	//makes the caller the writer of the queue and returns true, or returns false if there is one already
+	boolean claim() {
+		return this.writing.compareAndSet(false, true);
+	}
+
+	//the writer stops. Returns true if it has to go on, because an item was added after it looked
+	boolean release() {
+		this.writing.set(false);
+		return !this.items.isEmpty() && this.writing.compareAndSet(false, true);
+	}
+
+	//connections of the server that were closed because they were too slow
+	static long getDisconnected() {
+		return DISCONNECTED.get();
+	}
+
+	/*
+	 * Closes the connections that have not taken anything for SLOW_MILLIS. A queue that caught up is forgotten
+	 * here and not by the writer, and is looked at again after it is removed, in case it fell behind meanwhile.
+	 */
+	private static void sweep() {
+		long now = System.currentTimeMillis();
+		for(OutboundQueue queue : BEHIND) {
+			long since = queue.behindSince;
+			if(since == 0) {
+				BEHIND.remove(queue);
+				if(queue.behindSince != 0)
+					BEHIND.add(queue);
+			}
+			else if(now - since > SLOW_MILLIS) {
+				BEHIND.remove(queue);
+				if(!queue.connection.isOpen())
+					continue;
+				DISCONNECTED.incrementAndGet();
+				NetLog.event(NetLog.Category.SESSION, NetLog.Level.WARN, "closed").with("address", queue.connection.getRemoteAddress()).with("reason", "slow consumer").with("behindMillis", now - since).log();
+				try {
+					queue.connection.close();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	//the frames are written from their start, so their limit is their size. A message is estimated
+	private static long sizeOf(Object item) {
+		if(item instanceof ByteBuffer)
+			return ((ByteBuffer)item).limit();
+		if(item instanceof Message) {
+			Message m = (Message)item;
+			long size = 64;
+			if(m.getHeader() != null)
+				size += m.getHeader().length();
+			if(m.getData() != null)
+				size += m.getData().length();
+			if(m.getChunk() != null)
+				size += m.getChunk().length;
+			return size;
+		}
+		return 0;
+	}
+}
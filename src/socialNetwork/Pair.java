@@ -1,5 +1,7 @@
 package socialNetwork;
 
+import java.util.Objects;
+
 /*
  * The class Pair is used to store data together as a set/pair. 
  * It has two variables, one key and one value, which contains the data of that specific key.
@@ -51,5 +53,11 @@ public class Pair<K,V> {
 		 Pair<K,V> p = (Pair<K,V>)o;
 		 return this.key.equals(p.key) && this.value.equals(p.value);
 	}
+
+	//equal pairs must have equal hash codes, so pairs can be kept in hash maps and sets
+	@Override
+	public int hashCode() {
+		return Objects.hash(this.key, this.value);
+	}
 	
 }
@@ -0,0 +1,168 @@
+package socialNetwork;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class keeps the replies of "Access Profile" (the profile page of a user, as it is sent to the
+ * client) so a popular profile is not read from the disk for every viewer. It is a least recently used
+ * cache bounded by bytes, not entries (--profiles.cacheBytes, 16 MB): every page weighs the bytes that it
+ * holds on the heap, and the least recently viewed pages are evicted until the total fits.
+ *
+ * The handlers that write a profile (the synchronization of an upload, an approved comment) call invalidate
+ * after writing. Every page is read from the disk outside the lock, so a page read while its profile was being
+ * written could be older than the file. To never keep such a page, every invalidation counts up a version
+ * (one of VERSIONS, chosen by the user), and a page that was read is only kept if the version of its user
+ * did not change since the read started.
+ */
+public class ProfileCache {
+
+	private static final int VERSIONS = 1024; // must be a power of 2.
+	private static final int ENTRY_BYTES = 64; // the entry, its node in the map and the string, besides the characters.
+
+	private final long capacity = Settings.getLong("profiles.cacheBytes", 16 << 20);
+	private final ReentrantLock lock = new ReentrantLock(); // protects everything below.
+	private final LinkedHashMap<String, String> pages = new LinkedHashMap<>(16, 0.75f, true); // user -> page, least recently used first.
+	private final long[] versions = new long[VERSIONS];
+	private long bytes 		= 0; // bytes of the pages in the cache.
+	private long hits 		= 0;
+	private long misses 	= 0;
+	private long evictions 	= 0;
+
+	//reads a profile page from the disk
+	public interface Loader {
+		String load() throws IOException;
+	}
+
+	//returns the page of a user from the cache, or reads it with the loader and keeps it
+	public String get(String user, Loader loader) throws IOException {
+		long version;
+		this.lock.lock();
+		try {
+			String page = this.pages.get(user);
+			if(page != null) {
+				this.hits++;
+				return page;
+			}
+			this.misses++;
+			version = this.versions[versionOf(user)];
+		}
+		finally {
+			this.lock.unlock();
+		}
+
+		String page = loader.load();
+		long size = weight(page);
+		this.lock.lock();
+		try {
+			if(this.versions[versionOf(user)] == version && size <= this.capacity) {
+				String old = this.pages.put(user, page);
+				this.bytes += size - (old == null ? 0 : weight(old));
+				this.evict();
+			}
+		}
+		finally {
+			this.lock.unlock();
+		}
+		return page;
+	}
+
+	//forgets the page of a user whose profile was written. Must be called after the write
+	public void invalidate(String user) {
+		this.lock.lock();
+		try {
+			this.versions[versionOf(user)]++;
+			String old = this.pages.remove(user);
+			if(old != null)
+				this.bytes -= weight(old);
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//hits / (hits + misses), 0 before the first request
+	public double getHitRatio() {
+		this.lock.lock();
+		try {
+			long requests = this.hits + this.misses;
+			return requests == 0 ? 0 : (double)this.hits / requests;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	public long getHits() {
+		this.lock.lock();
+		try {
+			return this.hits;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	public long getMisses() {
+		this.lock.lock();
+		try {
+			return this.misses;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	public long getEvictions() {
+		this.lock.lock();
+		try {
+			return this.evictions;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//bytes held by the pages in the cache
+	public long getBytes() {
+		this.lock.lock();
+		try {
+			return this.bytes;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	public int getEntries() {
+		this.lock.lock();
+		try {
+			return this.pages.size();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//removes the least recently used pages until the cache fits. Must be called with the lock held
+	private void evict() {
+		Iterator<Map.Entry<String, String>> oldest = this.pages.entrySet().iterator();
+		while(this.bytes > this.capacity && oldest.hasNext()) {
+			this.bytes -= weight(oldest.next().getValue());
+			oldest.remove();
+			this.evictions++;
+		}
+	}
+
+	private static long weight(String page) {
+		return ENTRY_BYTES + 2L * page.length();
+	}
+
+	private static int versionOf(String user) {
+		int h = user.hashCode();
+		return (h ^ (h >>> 16)) & (VERSIONS - 1);
+	}
+}
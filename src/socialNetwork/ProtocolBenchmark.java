@@ -0,0 +1,149 @@
+package socialNetwork;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * This program compares the formats in which a Message can travel. For a few typical
+ * messages it reports the bytes on the wire and the time to encode and decode one message:
+ *
+ *   object stream 	: one ObjectOutputStream for the whole connection, as the classic transport and the old clients do.
+ *   serialized frame 	: every message serialized on its own, as the frames carried messages before the binary protocol.
+ *   binary 			: the binary protocol (see FrameCodec).
+ *
+ *   java socialNetwork.ProtocolBenchmark --bench.iterations=200000
+ *
+ * Nothing goes through a socket, so only the cost of the format itself is measured.
+ */
+public class ProtocolBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Settings.parseArgs(args);
+		int iterations = Settings.getInt("bench.iterations", 200000);
+
+		byte[] chunk = new byte[5000];
+		new Random(1).nextBytes(chunk);
+		Message[] samples = {
+			new Message("Get followers", "", "user1"),
+			new Message("Followers reply", "user2 user3 user4 user5 user6 user7 user8 user9 ", ""),
+			new Message("Ack", 3),
+			new Message("File Chunk", chunk, 2)
+		};
+
+		System.out.printf("%-16s %-18s %8s %12s%n", "message", "format", "bytes", "ns/message");
+		for(int round = 0; round < 2; round++) { // the first round warms up the JIT.
+			boolean print = round == 1;
+			for(Message m : samples) {
+				int n = m.getChunk() != null ? iterations / 10 : iterations; // chunks are slow in the object formats.
+				measureObjectStream(m, n, print);
+				measureSerializedFrame(m, n, print);
+				measureBinary(m, n, print);
+			}
+		}
+	}
+
+	/*
+	 * Writes the message again and again on one object stream and reads every copy back.
+	 * The stream is reset every 1024 messages, otherwise it would keep every message it wrote.
+	 */
+	private static void measureObjectStream(Message m, int iterations, boolean print) throws IOException, ClassNotFoundException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.flush();
+		Loopback loopback = new Loopback();
+		loopback.set(bytes.toByteArray());
+		bytes.reset();
+		ObjectInputStream in = new ObjectInputStream(loopback);
+
+		long total = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			if(i % 1024 == 0)
+				out.reset();
+			out.writeObject(copy(m));
+			out.flush();
+			total += bytes.size();
+			loopback.set(bytes.toByteArray());
+			bytes.reset();
+			in.readObject();
+		}
+		report(m, "object stream", total, iterations, System.nanoTime() - start, print);
+	}
+
+	private static void measureSerializedFrame(Message m, int iterations, boolean print) throws IOException, ClassNotFoundException {
+		long total = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(copy(m));
+			out.close();
+			byte[] payload = bytes.toByteArray();
+			total += FrameCodec.HEADER_SIZE + payload.length;
+			new ObjectInputStream(new ByteArrayInputStream(payload)).readObject();
+		}
+		report(m, "serialized frame", total, iterations, System.nanoTime() - start, print);
+	}
+
+	private static void measureBinary(Message m, int iterations, boolean print) throws IOException {
+		long total = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < iterations; i++) {
+			ByteBuffer frame = FrameCodec.encodeMessage(copy(m));
+			total += frame.remaining();
+			int length = frame.getInt();
+			frame.get();
+			FrameCodec.decodeMessage(frame, length);
+		}
+		report(m, "binary", total, iterations, System.nanoTime() - start, print);
+	}
+
+	/*
+	 * A new message with the same content, like a handler builds for every reply. The strings
+	 * are new too, otherwise the object stream would only send a reference to the previous copy.
+	 */
+	private static Message copy(Message m) {
+		if(m.getChunk() != null)
+			return new Message(new String(m.getHeader()), m.getChunk().clone(), m.getSequence());
+		if(m.getData() == null)
+			return new Message(new String(m.getHeader()), m.getSequence());
+		return new Message(new String(m.getHeader()), new String(m.getData()), new String(m.getSender()));
+	}
+
+	private static void report(Message m, String format, long bytes, int iterations, long nanos, boolean print) {
+		if(print)
+			System.out.printf("%-16s %-18s %8d %12d%n", m.getHeader(), format, bytes / iterations, nanos / iterations);
+	}
+
+	//an input stream that returns the bytes of the last message written
+	private static class Loopback extends InputStream {
+		private byte[] data;
+		private int position;
+
+		void set(byte[] data) {
+			this.data = data;
+			this.position = 0;
+		}
+
+		@Override
+		public int read() {
+			return this.position < this.data.length ? (this.data[this.position++] & 0xff) : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(this.position == this.data.length)
+				return -1;
+			int n = Math.min(len, this.data.length - this.position);
+			System.arraycopy(this.data, this.position, b, off, n);
+			this.position += n;
+			return n;
+		}
+	}
+}
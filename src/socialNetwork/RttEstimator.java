@@ -0,0 +1,54 @@
+package socialNetwork;
+
+/*
+ * This class estimates the round trip time of a connection and computes the retransmission
+ * timeout of the sliding window sender from it, the way TCP does (RFC 6298):
+ *
+ *     first sample R 	: SRTT = R, RTTVAR = R / 2
+ *     next samples 	: RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+ *     timeout 			: RTO = SRTT + 4 RTTVAR, kept between --arq.minRto and --arq.maxRto ms
+ *
+ * Every expired timeout doubles the RTO until a new sample arrives. Samples are only taken from
+ * packets that were sent once, because the acknowledgement of a retransmitted packet could belong
+ * to any of its copies (Karn's algorithm, see SlidingWindowSender).
+ */
+public class RttEstimator {
+
+	private final long minRto = Settings.getLong("arq.minRto", 100);
+	private final long maxRto = Settings.getLong("arq.maxRto", 60000);
+	private double srtt = -1; // smoothed round trip time in ms, -1 before the first sample.
+	private double rttvar;
+	private long rto = Settings.getLong("arq.initialRto", 1000);
+
+	//adds the round trip time of a packet that was sent once
+	public synchronized void sample(long rttNanos) {
+		double r = rttNanos / 1e6;
+		if(this.srtt < 0) {
+			this.srtt 	= r;
+			this.rttvar = r / 2;
+		}
+		else {
+			this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - r);
+			this.srtt 	= 0.875 * this.srtt + 0.125 * r;
+		}
+		this.rto = this.clamp((long)Math.ceil(this.srtt + 4 * this.rttvar));
+	}
+
+	//called when the timeout expired before the acknowledgement arrived
+	public synchronized void backoff() {
+		this.rto = this.clamp(this.rto * 2);
+	}
+
+	public synchronized long getTimeoutMillis() {
+		return this.rto;
+	}
+
+	//the smoothed round trip time in ms, or -1 if there is no sample yet
+	public synchronized double getSmoothedRtt() {
+		return this.srtt;
+	}
+
+	private long clamp(long rto) {
+		return Math.max(this.minRto, Math.min(this.maxRto, rto));
+	}
+}
@@ -1,11 +1,16 @@
 package socialNetwork;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.PushbackInputStream;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 /*
  * This is the server class.
@@ -14,6 +19,8 @@ import java.util.HashMap;
  * that will be used later. It's main task is 
  * to wait for clients to be connected and then starting a new thread for each
  * one of them in order to service multiple clients at the same time.
+ * With the startup option --server.mode=nio the connections are serviced instead
+ * by the non-blocking NioServer (see NioServer).
  */
 
 
@@ -21,38 +28,54 @@ public class Server {
 	final int PORT = 5000;
 	final String GRAPH_FILE = "SocialGraph.txt"; //file that contains graph info.
 	final String REGISTERED_USERS_FILE = "registeredUsers.txt"; // file that contains the users of social network.
-	private ServerSocket server;
-	private final HashMap<String,ArrayList<String>> graph; // user,<user followers> map : representing the network's graph.
-	private final ArrayList<Pair<String, String>> registeredUsers; // < user name , password > : representing user's credentials.
-	private final HashMap<String, ArrayList<String>> followRequests; // key : user name , value: < user1, user2,... > map for follow requests per user.
-	private final HashMap<String, ArrayList<String>> followAccepts; //	key : user name , value: < user1, user2,... > map for follow accepts per user.
-	private final HashMap<String, ArrayList<String>> unfollowPendings; //key : user name , value: < user1, user2,... > map that contains the  are not committed yet for a user. 
-	private final HashMap<String, ArrayList<String>> uploadNotifications; // key : user who posted, value : users that should be notified for this post.
-	private final HashMap<String,ArrayList<String>> commentRequests;
-	private final HashMap<String,ArrayList<String>> commentAccepts;
-	//Server's constructor
+	final String MODE = Settings.get("server.mode", "classic"); // classic: one thread per client, nio: selector event loops.
+	private ServerSocketChannel server; // blocking, so that every connection has a channel for file transfers (see FileTransfer).
+	private final ExecutorService handlers = Threads.newThreadPerTaskExecutor("client-handler"); // one (platform or virtual) thread per client.
+	private final SymbolTable symbols = new SymbolTable(); // user name <-> number. The structures below keep the numbers (see SymbolTable).
+	private final SocialGraph graph; // users, their followers and the users they follow : representing the network's graph.
+	private GraphLog graphLog; // records the changes of the graph (see GraphLog).
+	private final UserDirectory users; // user name -> salted password hash : representing user's credentials (see UserDirectory).
+	private final NotificationCenter notifications; // the inbox of pending notifications of every user (see Inbox).
+	private final FeedFanout fanout; // delivers the new posts to the feeds of the followers in the background.
+	private final MediaCatalog catalog = new MediaCatalog(); // photos and captions of every user, so requests do not list directories.
+	private final ProfileCache profiles = new ProfileCache(); // the profile pages that were viewed, so they are not read again.
+	/*
+	 * Server's constructor. The users and the graph are loaded at the same time, each of them
+	 * on all the cores, and the server starts listening as soon as both are ready. The media catalog
+	 * is read in the background (its lookups wait for it, see MediaCatalog). The folders of the users
+	 * are created when they are first needed (see UserFiles), or all of them now with --server.startup=eager.
+	 */
 	public Server() {
-		this.followAccepts 			= new HashMap<String, ArrayList<String>>();
-		this.followRequests 		= new HashMap<String, ArrayList<String>>();
-		this.registeredUsers 		= new ArrayList<Pair<String, String>>();
-		this.graph  				= new HashMap<String,ArrayList<String>>();
-		this.unfollowPendings 		= new HashMap<String,ArrayList<String>>();
-		this.uploadNotifications 	= new HashMap<String,ArrayList<String>>();
-		this.commentRequests		= new HashMap<String,ArrayList<String>>();
-		this.commentAccepts			= new HashMap<String,ArrayList<String>>();
-		this.initRegisteredUsers(REGISTERED_USERS_FILE);
-		this.initUsersDirectories();
-		this.initFollowRequestsBuffers();
-		this.initFollowAcceptsBuffers();
-		this.initUnfollowPendingsBuffers();
-		this.initUploadNotifications();
-		this.initCommentRequests();
-		this.initCommentAccepts();
+		long start = System.nanoTime();
+		this.users 					= new UserDirectory(REGISTERED_USERS_FILE);
+		this.graph  				= new SocialGraph(this.symbols);
+		this.notifications 			= new NotificationCenter(this.symbols);
+		this.fanout 				= new FeedFanout(this.graph, this.symbols, this.notifications);
+		this.startMetrics();
+		CompletableFuture<Void> usersLoaded = CompletableFuture.runAsync(this::initRegisteredUsers);
+		this.initGraph(GRAPH_FILE);
+		usersLoaded.join();
+		if(Settings.get("server.startup", "lazy").equals("eager"))
+			this.initUsersDirectories();
+		this.catalog.loadInBackground("ServerDirectory");
 		try {
-			System.out.println("Server started");
-			this.server = new ServerSocket(PORT);
-			this.initGraph(GRAPH_FILE);
-			this.acceptConnections();
+			this.fanout.start();
+			String ready = " in " + (System.nanoTime() - start) / 1000000 + " ms, " + this.users.size() + " users";
+			NetLog.event(NetLog.Category.SERVER, NetLog.Level.INFO, "started").with("mode", MODE)
+				.with("millis", (System.nanoTime() - start) / 1000000).with("users", this.users.size()).log();
+			if(MODE.equals("nio")) {
+				int cores = Runtime.getRuntime().availableProcessors();
+				NioServer nio = new NioServer(PORT, Settings.getInt("nio.loops", Math.max(1, cores / 2)), Settings.getInt("nio.workers", cores * 4), this::newClientHandler);
+				System.out.println("Server started (" + MODE + " mode)" + ready);
+				nio.acceptConnections();
+			}
+			else {
+				this.server = ServerSocketChannel.open();
+				this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				this.server.bind(new InetSocketAddress(PORT));
+				System.out.println("Server started (" + MODE + " mode)" + ready);
+				this.acceptConnections();
+			}
 		} 
 		catch (IOException e) {
 			e.printStackTrace();
@@ -61,64 +84,88 @@ public class Server {
 	
 	/*
 	 * This method reads the file that contains the 
-	 * graph info and initialize the graph 
+	 * graph info and initialize the graph. Then it replays the graph log (see GraphLog).
+	 * With --graph.snapshot=binary (default) the graph is mapped from SocialGraph.bin, which is
+	 * converted from the text file first if it is missing or older (see GraphSnapshot). With text
+	 * the lines are read, and as the graph is concurrent they are added on all the cores: the users
+	 * (the first name of every line) and then their followers.
 	 */
 	private void initGraph(String fileName) {
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(fileName));
-			String line = reader.readLine();
-			while(line!=null) {
-				String[] s = line.split("\\s+");
-				String name = s[0];
-				ArrayList<String> followers = new ArrayList<>();
-				
-				for(int i=1;i<s.length;i++) {
-					followers.add(s[i]);
+			if(Settings.get("graph.snapshot", "binary").equals("binary")) {
+				Path text = Paths.get(fileName);
+				Path binary = GraphSnapshot.binaryFile(fileName);
+				if(!Files.exists(binary) || Files.exists(text) && Files.getLastModifiedTime(text).compareTo(Files.getLastModifiedTime(binary)) > 0) {
+					System.out.println("Converting " + text + " to " + binary);
+					GraphSnapshot.convert(text, binary);
 				}
-					
-				this.graph.put(name, followers);
-				line = reader.readLine();
+				this.graph.setSnapshot(GraphSnapshot.open(binary));
+			}
+			else {
+				// the users first, so a follower that has no line is left out, as in the binary snapshot.
+				List<String> lines = Files.readAllLines(Paths.get(fileName));
+				lines.parallelStream().forEach(line -> {
+					StringTokenizer s = new StringTokenizer(line);
+					if(s.hasMoreTokens()) // skip empty lines.
+						this.graph.addUser(s.nextToken());
+				});
+				lines.parallelStream().forEach(line -> {
+					StringTokenizer s = new StringTokenizer(line);
+					if(!s.hasMoreTokens())
+						return;
+					String name = s.nextToken();
+					while(s.hasMoreTokens()) {
+						String follower = s.nextToken();
+						if(this.graph.containsUser(follower))
+							this.graph.addFollower(name, follower);
+					}
+				});
 			}
-			reader.close();
+
+			/*
+			 * The file is the last snapshot of the graph. The changes made after it are
+			 * in the log, so replay them and then record every new change there.
+			 */
+			this.graphLog = new GraphLog(this.graph, fileName);
+			this.graphLog.recover();
+			this.graph.setLog(this.graphLog);
+			this.graphLog.start();
 		} 
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	
 	/*
-	 * This method initialize the map for 
-	 * upload notification (see the map above).
+	 * Adds the numbers that the structures keep to the timers of the requests, the downloads, the fan-out
+	 * and the graph log, and starts serving them (see Metrics).
 	 */
-	private void initUploadNotifications() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.uploadNotifications.put(user.getKey(), new ArrayList<String>());
-		}
+	private void startMetrics() {
+		Metrics.gauge("users", this.users::size);
+		Metrics.gauge("fanout.queued", this.fanout::getQueued);
+		Metrics.gauge("fanout.submitted", this.fanout::getSubmitted);
+		Metrics.gauge("fanout.delivered", this.fanout::getDelivered);
+		Metrics.gauge("fanout.fileWrites", this.fanout::getFileWrites);
+		Metrics.gauge("fanout.lastLagMillis", this.fanout::getLastLagMillis);
+		Metrics.gauge("fanout.maxLagMillis", this.fanout::getMaxLagMillis);
+		Metrics.gauge("profiles.hits", this.profiles::getHits);
+		Metrics.gauge("profiles.misses", this.profiles::getMisses);
+		Metrics.gauge("profiles.evictions", this.profiles::getEvictions);
+		Metrics.gauge("profiles.bytes", this.profiles::getBytes);
+		Metrics.gauge("inbox.spilled", Inbox::getSpilled);
+		Metrics.gauge("net.slowConsumersDisconnected", OutboundQueue::getDisconnected);
+		Metrics.gauge("log.dropped", NetLog::getDropped);
+		Metrics.start();
 	}
 
-	private void initCommentAccepts() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.commentAccepts.put(user.getKey(), new ArrayList<String>());
-		}
-	}
-	
 	/*
 	 * This method reads the file with register users and 
-	 * initialize the Array list that contains them.
+	 * initialize the directory that contains them.
 	 */
-	private void initRegisteredUsers(String fileName) {
+	private void initRegisteredUsers() {
 		try{
-			BufferedReader reader = new BufferedReader(new FileReader(fileName));
-			String line;
-			line = reader.readLine();
-			while(line!=null) {
-				String[] s = line.split("\\s+");
-				String name = s[0];
-				String password = s[1];
-				this.registeredUsers.add(new Pair<String,String>(name,password));
-				line = reader.readLine();
-			}
-			reader.close();
+			this.users.load();
 		} catch (IOException e) {
 			
 			e.printStackTrace();
@@ -128,67 +175,38 @@ public class Server {
 	
 	/*
 	 * This method creates a directory for each user that holds their pictures,
-	 * their captions and their profile page.
+	 * their captions and their profile page (only with --server.startup=eager).
 	 */
 	private void initUsersDirectories()  {
-		for(Pair<String,String> user: this.registeredUsers) {
-			String dirPath = "ServerDirectory/";
-			File directory = new File(dirPath+user.getKey());
-			directory.mkdir();
-			File clientProfile = new File("ServerDirectory/"+user.getKey()+"/"+"Profile_998"+user.getKey()+".txt");
-			File othersProfile = new File("ServerDirectory/"+user.getKey()+"/"+"Others_998"+user.getKey()+".txt");
-			try {
-				clientProfile.createNewFile();
-				othersProfile.createNewFile();
-			}
-			catch (IOException e) {
-				throw new RuntimeException(e);
-			}
-		}
+		this.users.getNames().parallelStream().forEach(UserFiles::ensure);
 	}
 	
 	
-	/*
-	 * The 3 methods following initialize the maps that are used for
-	 * follow and unfollow implementation.
-	 */
-	private void initFollowRequestsBuffers() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.followRequests.put(user.getKey(), new ArrayList<String>());
-		}
-	}
-
-	private void initCommentRequests() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.commentRequests.put(user.getKey(), new ArrayList<String>());
-		}
-	}
-
-	private void initFollowAcceptsBuffers() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.followAccepts.put(user.getKey(), new ArrayList<String>());
-		}
-	}
-
-	private void initUnfollowPendingsBuffers() {
-		for(Pair<String,String> user: this.registeredUsers) {
-			this.unfollowPendings.put(user.getKey(), new ArrayList<String>());
-		}
-	}
-
 	/*
 	 * This method waits until a new request from a client has occurred. After 
 	 * receiving the request, it creates a new instance of the class Client Handler which
 	 * is responsible for handling the clients and starts a new thread with this instance. This
-	 * makes it possible for us to service multiple clients at the same time.
+	 * makes it possible for us to service multiple clients at the same time. The streams are opened
+	 * on the new thread, because opening them waits for the client.
 	 */
 	private void acceptConnections() {
-		while(!this.server.isClosed()) {
+		while(this.server.isOpen()) {
 			try {
-				Socket connection = this.server.accept();
-				ClientHandler client = new ClientHandler(connection, this.registeredUsers,this.graph, this.followRequests,this.followAccepts,this.unfollowPendings, this.uploadNotifications,this.commentRequests,this.commentAccepts);
-				Thread t = new Thread(client);
-				t.start();
+				Socket connection = this.server.accept().socket();
+				this.handlers.execute(() -> {
+					try {
+						this.newClientHandler(this.openChannel(connection)).run();
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+						try {
+							connection.close();
+						}
+						catch (IOException e1) {
+							e1.printStackTrace();
+						}
+					}
+				});
 			} 
 			catch (IOException e) {
 				e.printStackTrace();
@@ -196,8 +214,28 @@ public class Server {
 		}
 	}
 	
-	//Server's entry point.
+	/*
+	 * Looks at the first 4 bytes that the client sent. A client of the binary protocol starts
+	 * with the preamble (see FrameCodec). An old client starts an object stream, so the bytes are
+	 * given back and the connection is read as an object stream.
+	 */
+	private MessageChannel openChannel(Socket connection) throws IOException {
+		PushbackInputStream in = new PushbackInputStream(connection.getInputStream(), 4);
+		byte[] first = in.readNBytes(4);
+		if(first.length == 4 && ByteBuffer.wrap(first).getInt() == FrameCodec.PREAMBLE)
+			return new FramedMessageChannel(connection, in);
+		in.unread(first);
+		return new StreamMessageChannel(connection, in);
+	}
+	
+	//creates the handler of a new connection with all the structures of the server.
+	private ClientHandler newClientHandler(MessageChannel channel) {
+		return new ClientHandler(channel, this.users,this.graph,this.notifications,this.fanout,this.catalog,this.profiles);
+	}
+	
+	//Server's entry point. Options are given as --key=value (see Settings).
 	public static void main(String args[]) {
+		Settings.parseArgs(args);
 		Server s = new Server();
 	}
 
@@ -0,0 +1,101 @@
+package socialNetwork;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * This program compares the thread modes of the server (see Threads). It opens
+ * many idle sessions against a running server and reports how much the resident memory of
+ * the server grew per session (sessions per GB) and the latency of "Get followers" requests
+ * while all of them are open. Run the server with --threads=platform and then with
+ * --threads=virtual (Java 21) and compare the two outputs:
+ *
+ *   java socialNetwork.Server --threads=virtual
+ *   java socialNetwork.SessionCapacityBenchmark --bench.pid=<server pid> --bench.sessions=5000
+ *
+ * The memory of the server is read from /proc/<pid>/status, so it is only reported on Linux.
+ */
+public class SessionCapacityBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		Settings.parseArgs(args);
+		int sessions = Settings.getInt("bench.sessions", 2000);
+		int requests = Settings.getInt("bench.requests", 5000);
+		String pid 	 = Settings.get("bench.pid", "");
+		String user  = firstRegisteredUser();
+		boolean binary = Settings.get("client.transport", "binary").equals("binary");
+
+		long rssBefore = residentKilobytes(pid);
+		ArrayList<MessageChannel> channels = new ArrayList<>();
+		for(int i = 0; i < sessions; i++) {
+			Socket socket = new Socket("localhost", 5000);
+			MessageChannel channel = binary ? new FramedMessageChannel(socket) : new StreamMessageChannel(socket);
+			channels.add(channel);
+			roundTrip(channel, user); // make sure the server has started servicing the session.
+		}
+		Thread.sleep(2000); // let the server settle before reading its memory.
+		long rssAfter = residentKilobytes(pid);
+
+		Random random = new Random(1);
+		long[] latencies = new long[requests];
+		for(int i = 0; i < requests; i++) {
+			MessageChannel channel = channels.get(random.nextInt(channels.size()));
+			long start = System.nanoTime();
+			roundTrip(channel, user);
+			latencies[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(latencies);
+
+		System.out.println("sessions: " + sessions);
+		if(rssBefore > 0 && rssAfter > rssBefore) {
+			double kilobytesPerSession = (double)(rssAfter - rssBefore) / sessions;
+			System.out.printf("server memory per session: %.1f KB%n", kilobytesPerSession);
+			System.out.printf("sessions per GB: %.0f%n", 1024 * 1024 / kilobytesPerSession);
+		}
+		System.out.printf("latency p50: %.3f ms%n", latencies[requests / 2] / 1e6);
+		System.out.printf("latency p99: %.3f ms%n", latencies[(int)(requests * 0.99)] / 1e6);
+		System.out.printf("latency max: %.3f ms%n", latencies[requests - 1] / 1e6);
+
+		for(MessageChannel channel : channels)
+			channel.close();
+	}
+
+	private static void roundTrip(MessageChannel channel, String user) throws IOException, ClassNotFoundException {
+		channel.send(new Message("Get followers", "", user));
+		while(!channel.receive().getHeader().equals("Followers reply"));
+	}
+
+	//the first user of registeredUsers.txt, whose followers are asked
+	private static String firstRegisteredUser() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader("registeredUsers.txt"));
+		String line = reader.readLine();
+		reader.close();
+		return line.split("\\s+")[0];
+	}
+
+	//returns the resident memory of a process in KB, or 0 if it can not be read
+	private static long residentKilobytes(String pid) {
+		if(pid.equals(""))
+			return 0;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"));
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("VmRSS:")) {
+					reader.close();
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+			reader.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return 0;
+	}
+}
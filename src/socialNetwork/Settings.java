@@ -0,0 +1,47 @@
+package socialNetwork;
+
+/*
+ * This class holds the startup options of the server and the client.
+ * Every option is a system property with the prefix "social." so it can be given
+ * either as -Dsocial.<key>=<value> to the JVM or as --<key>=<value> to the main methods.
+ */
+public class Settings {
+
+	private static final String PREFIX = "social.";
+
+	/*
+	 * This method reads the command line arguments of the form --key=value
+	 * and stores them as system properties. Arguments that do not follow this form are ignored.
+	 */
+	public static void parseArgs(String[] args) {
+		for(String arg : args) {
+			if(!arg.startsWith("--"))
+				continue;
+			int eq = arg.indexOf('=');
+			if(eq < 0)
+				System.setProperty(PREFIX + arg.substring(2), "true");
+			else
+				System.setProperty(PREFIX + arg.substring(2, eq), arg.substring(eq + 1));
+		}
+	}
+
+	//returns the value of an option or the default value if the option is not set
+	public static String get(String key, String defaultValue) {
+		return System.getProperty(PREFIX + key, defaultValue);
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		return value == null ? defaultValue : Long.parseLong(value.trim());
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = System.getProperty(PREFIX + key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+}
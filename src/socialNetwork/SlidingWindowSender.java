@@ -0,0 +1,177 @@
+package socialNetwork;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This class sends the packets of a download (see ClientHandler.generateAPDUs) with a sliding
+ * window. It replaces the Stop-and-Wait and GBN senders. Up to --arq.window packets are sent
+ * without waiting, and the sender sleeps on a queue of acknowledgements until one arrives or the
+ * oldest timer expires. The timeout comes from the round trip time of the connection (see RttEstimator).
+ *
+ * The sequence number of a packet is its index. The client acknowledges every packet it receives
+ * with an Ack whose sequence is the index of that packet and whose data is the number of packets it
+ * has received in order. With --arq.mode:
+ *     gbn : (Go-Back-N) only the packets received in order count. When the timer of the oldest
+ *           packet expires, it and every packet after it are sent again.
+ *     sr  : (Selective Repeat, default) every acknowledged packet counts, and only the
+ *           packets whose own timer expired are sent again.
+ * An Ack whose data is not a number of packets between 0 and the number sent is a protocol error: the
+ * connection is closed and send throws a ProtocolException.
+ */
+public class SlidingWindowSender {
+
+	private static final int MAX_TIMEOUTS = 8; // timeouts in a row after which the client is considered gone.
+	private static final Message MALFORMED = new Message("Ack", "", ""); // queued by the reader to wake the sender when an Ack is malformed.
+
+	private final MessageChannel channel;
+	private final RttEstimator rtt;
+	private final boolean selectiveRepeat = Settings.get("arq.mode", "sr").equals("sr");
+	private final int window = Math.max(1, Settings.getInt("arq.window", 4));
+	private final LinkedBlockingQueue<Message> acks = new LinkedBlockingQueue<>();
+	private final ArrayList<Message> deferred = new ArrayList<>(); // other messages of the client that arrived during the transfer.
+	private int retransmissions = 0;
+	private volatile String malformed; // the data of the malformed Ack.
+
+	public SlidingWindowSender(MessageChannel channel, RttEstimator rtt) {
+		this.channel = channel;
+		this.rtt = rtt;
+	}
+
+	/*
+	 * Sends all the packets and returns when every one of them has been acknowledged.
+	 * The messages that the client sent meanwhile are returned, so the caller can handle them.
+	 * Throws an IOException if the client stopped acknowledging.
+	 */
+	public ArrayList<Message> send(Message[] packets) throws IOException {
+		int n = packets.length;
+		boolean[] acked 		= new boolean[n];
+		boolean[] retransmitted = new boolean[n];
+		long[] sentAt 			= new long[n];
+		int base = 0; 			// the oldest packet that is not acknowledged.
+		int next = 0; 			// the next packet that has never been sent.
+		int timeouts = 0;
+
+		Thread reader = Threads.start("ack-reader", () -> this.readAcks(n));
+		try {
+			while(base < n) {
+				while(next < n && next < base + this.window) {
+					this.channel.send(packets[next]);
+					sentAt[next] = System.nanoTime();
+					next++;
+				}
+
+				// sleep until an acknowledgement arrives or the timer of a packet in the window expires.
+				long timeout = TimeUnit.MILLISECONDS.toNanos(this.rtt.getTimeoutMillis());
+				long deadline = Long.MAX_VALUE;
+				for(int i = base; i < next; i++) {
+					if(!acked[i])
+						deadline = Math.min(deadline, sentAt[i] + timeout);
+					if(!this.selectiveRepeat)
+						break; // Go-Back-N keeps a single timer, for the oldest packet.
+				}
+				Message ack = this.acks.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+				if(ack == null) {
+					if(++timeouts > MAX_TIMEOUTS) {
+						this.channel.close(); // also stops the reader, which waits for a message.
+						throw new IOException("The client stopped acknowledging the download");
+					}
+					this.rtt.backoff();
+					NetLog.event(NetLog.Category.ARQ, NetLog.Level.DEBUG, "timeout").with("base", base).with("timeouts", timeouts).with("rtoMillis", this.rtt.getTimeoutMillis()).log();
+					long now = System.nanoTime();
+					for(int i = base; i < next; i++) {
+						if(acked[i] || (this.selectiveRepeat && now < sentAt[i] + timeout))
+							continue;
+						this.channel.send(packets[i]);
+						sentAt[i] = now;
+						retransmitted[i] = true;
+						this.retransmissions++;
+						NetLog.event(NetLog.Category.ARQ, NetLog.Level.DEBUG, "retransmit").with("seq", i).log();
+					}
+					continue;
+				}
+
+				if(ack == MALFORMED)
+					throw new ProtocolException("Malformed Ack: " + this.malformed); // the reader closed the connection.
+
+				timeouts = 0;
+				int seq = ack.getSequence();
+				int inOrder = inOrder(ack, n); // checked by the reader.
+				NetLog.event(NetLog.Category.ARQ, NetLog.Level.DEBUG, "ack").with("seq", seq).with("inOrder", inOrder).with("base", base).log();
+				if(seq >= 0 && seq < next && !acked[seq] && !retransmitted[seq])
+					this.rtt.sample(System.nanoTime() - sentAt[seq]);
+				if(this.selectiveRepeat && seq >= 0 && seq < next)
+					acked[seq] = true;
+				for(int i = base; i < Math.min(inOrder, next); i++)
+					acked[i] = true;
+				while(base < n && acked[base])
+					base++;
+			}
+			reader.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		return this.deferred;
+	}
+
+	//number of packets that were sent more than once during the last transfer
+	public int getRetransmissions() {
+		return this.retransmissions;
+	}
+
+	/*
+	 * Runs on its own thread while the packets are sent. Reads the messages of the client, hands
+	 * the acknowledgements to the sender and keeps the rest. It stops when the client has received
+	 * all the packets in order, so it does not take messages that belong to the client handler.
+	 */
+	private void readAcks(int packets) {
+		try {
+			int inOrder = 0;
+			while(inOrder < packets) {
+				Message m = this.channel.receive();
+				if(m.getOpcode() != Opcode.ACK) {
+					synchronized(this.deferred) {
+						this.deferred.add(m);
+					}
+					continue;
+				}
+				int acked = inOrder(m, packets);
+				if(acked < 0) {
+					this.malformed = m.getData();
+					this.acks.add(MALFORMED);
+					this.channel.close(); // the messages after it can not be trusted either.
+					return;
+				}
+				inOrder = Math.max(inOrder, acked);
+				this.acks.add(m);
+			}
+		}
+		catch (EOFException | SocketException e) {
+			// the connection was closed, the sender gives up after its timeouts.
+		}
+		catch (ClassNotFoundException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	//the number of packets that an Ack says were received in order, or -1 if its data is not one
+	private static int inOrder(Message ack, int packets) {
+		if(ack.getData() == null)
+			return -1;
+		try {
+			int inOrder = Integer.parseInt(ack.getData().trim());
+			return inOrder <= packets ? inOrder : -1;
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package socialNetwork;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/*
+ * This class is the social graph of the network. For every user it keeps the set of
+ * his followers and, as a reverse index, the set of the users he follows, so both
+ * "who follows X" and "who does X follow" are answered without scanning the graph.
+ * All the client handlers share one instance. A follow or an unfollow updates both
+ * directions under a lock chosen from a small array of locks by the edge, so two handlers
+ * only wait for each other when they change the same edge (or two edges that share a lock).
+ * Every change is also appended to the GraphLog, if one is set.
+ *
+ * The users are kept as numbers (see SymbolTable): the sets are IntHashSets in UserTables at the
+ * number of their user, and each set is locked while it is read or changed. The methods take and
+ * return names, which are turned into numbers here. The sets that they return are read only copies.
+ *
+ * The graph can start from a binary snapshot (see GraphSnapshot) instead of the text file. Then the tables
+ * only hold the users that changed after it: the first change of a user copies his set from the snapshot
+ * to the table, and from then on the table answers for him. The other users are answered by the snapshot.
+ */
+public class SocialGraph {
+
+	private static final int STRIPES = 64; // number of locks for the edges, must be a power of 2.
+
+	private final SymbolTable symbols;
+	private final UserTable<IntHashSet> followers = new UserTable<>(); // user -> users that follow him. The users that have a set are the users of the graph.
+	private final UserTable<IntHashSet> following = new UserTable<>(); // user -> users that he follows.
+	private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+	private volatile GraphLog log; // where the changes are recorded, null while the graph is being loaded.
+	private volatile GraphSnapshot snapshot; // the binary snapshot that the graph started from, or null.
+
+	public SocialGraph(SymbolTable symbols) {
+		this.symbols = symbols;
+		for(int i = 0; i < STRIPES; i++)
+			this.stripes[i] = new ReentrantLock();
+	}
+
+	//connects the graph to its log. From now on every change is appended to it (see GraphLog)
+	public void setLog(GraphLog log) {
+		this.log = log;
+	}
+
+	//starts the graph from a binary snapshot, whose users keep their numbers. It must be set before the first change
+	public void setSnapshot(GraphSnapshot snapshot) {
+		this.symbols.setSnapshot(snapshot);
+		this.snapshot = snapshot;
+	}
+
+	//adds a user without followers to the graph, if he is not already in it
+	public void addUser(String user) {
+		int id = this.symbols.intern(user);
+		ReentrantLock lock = this.lockFor(id, id);
+		long change = 0;
+		lock.lock();
+		try {
+			if(!this.inSnapshot(id) && this.followers.putIfAbsent(id, new IntHashSet()) == null && this.log != null)
+				change = this.log.append('N', user, null);
+		}
+		finally {
+			lock.unlock();
+		}
+		this.awaitDurable(change);
+	}
+
+	public boolean containsUser(String user) {
+		int id = this.symbols.idOf(user);
+		return id >= 0 && (this.followers.get(id) != null || this.inSnapshot(id));
+	}
+
+	/*
+	 * Adds the follower to the followers of the user and the user to the users that the
+	 * follower follows. Returns false if the edge already existed.
+	 */
+	public boolean addFollower(String user, String follower) {
+		int u = this.symbols.intern(user);
+		int f = this.symbols.intern(follower);
+		ReentrantLock lock = this.lockFor(u, f);
+		long change = 0;
+		boolean added;
+		lock.lock();
+		try {
+			IntHashSet userFollowers = this.changeable(this.followers, u, true);
+			synchronized(userFollowers) {
+				added = userFollowers.add(f);
+			}
+			IntHashSet followerFollowing = this.changeable(this.following, f, false);
+			synchronized(followerFollowing) {
+				followerFollowing.add(u);
+			}
+			if(added && this.log != null)
+				change = this.log.append('F', user, follower);
+		}
+		finally {
+			lock.unlock();
+		}
+		this.awaitDurable(change);
+		return added;
+	}
+
+	/*
+	 * Removes the follower from the followers of the user (an unfollow).
+	 * Returns false if the follower was not following the user.
+	 */
+	public boolean removeFollower(String user, String follower) {
+		int u = this.symbols.idOf(user);
+		int f = this.symbols.idOf(follower);
+		if(u < 0 || f < 0)
+			return false;
+		ReentrantLock lock = this.lockFor(u, f);
+		long change = 0;
+		boolean removed = false;
+		lock.lock();
+		try {
+			if(this.isFollower(u, f)) {
+				IntHashSet userFollowers = this.changeable(this.followers, u, true);
+				synchronized(userFollowers) {
+					removed = userFollowers.remove(f);
+				}
+			}
+			if(this.following.get(f) != null || this.inSnapshot(f)) {
+				IntHashSet followerFollowing = this.changeable(this.following, f, false);
+				synchronized(followerFollowing) {
+					followerFollowing.remove(u);
+				}
+			}
+			if(removed && this.log != null)
+				change = this.log.append('U', user, follower);
+		}
+		finally {
+			lock.unlock();
+		}
+		this.awaitDurable(change);
+		return removed;
+	}
+
+	//waits for a logged change outside the lock of the edge, so other edges are not held up by the disk
+	private void awaitDurable(long change) {
+		if(change > 0)
+			this.log.awaitDurable(change);
+	}
+
+	/*
+	 * Returns the set of a user in one of the tables, to be changed. The first change of a user
+	 * that is in the snapshot copies his followers (or the users he follows) from it.
+	 */
+	private IntHashSet changeable(UserTable<IntHashSet> table, int user, boolean followersOf) {
+		return table.computeIfAbsent(user, id -> {
+			if(!this.inSnapshot(id))
+				return new IntHashSet();
+			int[] ids = followersOf ? this.snapshot.getFollowerIds(id) : this.snapshot.getFollowingIds(id);
+			IntHashSet set = new IntHashSet(ids.length);
+			set.addAll(ids);
+			return set;
+		});
+	}
+
+	private boolean inSnapshot(int id) {
+		GraphSnapshot snapshot = this.snapshot;
+		return snapshot != null && id < snapshot.getUserCount();
+	}
+
+	//returns true if the follower follows the user
+	public boolean isFollower(String user, String follower) {
+		return this.isFollower(this.symbols.idOf(user), this.symbols.idOf(follower));
+	}
+
+	private boolean isFollower(int user, int follower) {
+		if(user < 0 || follower < 0)
+			return false;
+		IntHashSet userFollowers = this.followers.get(user);
+		if(userFollowers != null) {
+			synchronized(userFollowers) {
+				return userFollowers.contains(follower);
+			}
+		}
+		return this.inSnapshot(user) && this.snapshot.isFollower(user, follower);
+	}
+
+	//returns the followers of a user (a read only copy)
+	public Set<String> getFollowers(String user) {
+		return this.symbols.names(this.getFollowerIds(this.symbols.idOf(user)));
+	}
+
+	//returns the users that a user follows (a read only copy)
+	public Set<String> getFollowing(String user) {
+		return this.symbols.names(this.ids(this.following, this.symbols.idOf(user), false));
+	}
+
+	//the numbers of the followers of a user (a copy), for the structures that keep numbers (see FeedFanout)
+	public int[] getFollowerIds(int user) {
+		return this.ids(this.followers, user, true);
+	}
+
+	private int[] ids(UserTable<IntHashSet> table, int user, boolean followersOf) {
+		if(user < 0)
+			return new int[0];
+		IntHashSet set = table.get(user);
+		if(set != null) {
+			synchronized(set) {
+				return set.toArray();
+			}
+		}
+		if(!this.inSnapshot(user))
+			return new int[0];
+		return followersOf ? this.snapshot.getFollowerIds(user) : this.snapshot.getFollowingIds(user);
+	}
+
+	//returns all the users of the graph (a read only view that follows the changes of the graph)
+	public Set<String> getUsers() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return this.ids().mapToObj(symbols::nameOf).iterator();
+			}
+
+			@Override
+			public int size() {
+				return (int)this.ids().count();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return o instanceof String && containsUser((String)o);
+			}
+
+			private IntStream ids() {
+				return IntStream.range(0, symbols.size()).filter(id -> inSnapshot(id) || followers.get(id) != null);
+			}
+		};
+	}
+
+	private ReentrantLock lockFor(int user, int follower) {
+		int hash = user * 31 + follower;
+		hash ^= (hash >>> 16);
+		return this.stripes[hash & (STRIPES - 1)];
+	}
+}
@@ -0,0 +1,217 @@
+package socialNetwork;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This is the classic transport of the social network. The messages are
+ * written with an ObjectOutputStream and read with an ObjectInputStream
+ * directly on the socket, exactly as the first version of the server and the client did.
+ * On the server they are queued and written by a writer task, as in FramedMessageChannel.
+ */
+public class StreamMessageChannel implements MessageChannel {
+
+	private final Socket socket;
+	private final InputStream input;
+	private final ObjectInputStream in;
+	private final ObjectOutputStream out;
+	private static final int OUT_BUFFER = 64 * 1024;
+	private static final int MAX_BATCH = 64; // the most waiting messages written with one flush.
+
+	private final ReentrantLock writeLock = new ReentrantLock(); // the menu thread and the notifier write on the same stream.
+	private DataOutputStream raw;
+	private final OutboundQueue outbound; // messages waiting for the writer task, null on the client.
+
+	/*
+	 * The output stream is created first because the constructor of the
+	 * ObjectInputStream blocks until the header of the other side's stream arrives.
+	 */
+	public StreamMessageChannel(Socket socket) throws IOException {
+		this(socket, socket.getInputStream(), false);
+	}
+
+	//the server reads the socket through a stream that gives back the bytes it looked at (see Server.openChannel)
+	StreamMessageChannel(Socket socket, InputStream input) throws IOException {
+		this(socket, input, true);
+	}
+
+	private StreamMessageChannel(Socket socket, InputStream input, boolean server) throws IOException {
+		this.socket = socket;
+		this.socket.setTcpNoDelay(true); // messages are small, do not let them wait for the acknowledgement of the previous one.
+		this.input 	= input;
+		this.outbound = server ? new OutboundQueue(this) : null;
+		this.out 	= new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), OUT_BUFFER));
+		this.out.flush();
+		this.in 	= new ObjectInputStream(input);
+	}
+
+	@Override
+	public Message receive() throws IOException, ClassNotFoundException {
+		return (Message)this.in.readObject();
+	}
+
+	@Override
+	public void send(Message m) throws IOException {
+		if(this.outbound != null) {
+			this.enqueue(m);
+			return;
+		}
+		this.writeLock.lock();
+		try {
+			this.out.writeObject(m);
+			this.out.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	//queues a message and starts a writer task if none is running. A client that is too slow is disconnected
+	private void enqueue(Message m) throws IOException {
+		if(this.socket.isClosed())
+			throw new EOFException("Connection closed");
+		try {
+			this.outbound.add(m);
+		}
+		catch (IOException e) {
+			this.close();
+			throw e;
+		}
+		if(this.outbound.claim())
+			OutboundQueue.WRITERS.execute(this::drain);
+	}
+
+	//the writer task. It stops when the queue is empty, and closes the connection if writing fails
+	private void drain() {
+		do {
+			this.writeLock.lock();
+			try {
+				this.writeQueued();
+			}
+			catch (IOException e) {
+				try {
+					this.close();
+				}
+				catch (IOException e1) {
+					e1.printStackTrace();
+				}
+				return;
+			}
+			finally {
+				this.writeLock.unlock();
+			}
+		} while(this.outbound.release());
+	}
+
+	/*
+	 * Writes the waiting messages, at most MAX_BATCH of them, and flushes them once.
+	 * Must be called with the write lock held.
+	 */
+	private void writeQueued() throws IOException {
+		if(this.outbound == null)
+			return;
+		Object m;
+		for(int i = 0; i < MAX_BATCH && (m = this.outbound.poll()) != null; i++)
+			this.out.writeObject(m);
+		this.out.flush();
+		this.outbound.progress();
+	}
+
+	@Override
+	public DataOutputStream beginRaw(Message header) throws IOException {
+		this.writeLock.lock();
+		try {
+			while(this.outbound != null && !this.outbound.isEmpty())
+				this.writeQueued();
+			this.out.writeObject(header);
+			this.out.flush();
+			if(this.raw == null)
+				this.raw = new DataOutputStream(this.socket.getOutputStream());
+			return this.raw;
+		}
+		catch (IOException e) {
+			this.writeLock.unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public void endRaw() throws IOException {
+		try {
+			this.raw.flush();
+		}
+		finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/*
+	 * The object stream does not read ahead, so after a message has been
+	 * read the raw bytes that follow it are still in the socket.
+	 */
+	@Override
+	public DataInputStream rawInput() throws IOException {
+		return new DataInputStream(this.input);
+	}
+
+	@Override
+	public void sendFile(Message header, FileChannel file, long count) throws IOException {
+		this.writeLock.lock();
+		try {
+			while(this.outbound != null && !this.outbound.isEmpty())
+				this.writeQueued();
+			this.out.writeObject(header);
+			this.out.flush();
+			if(this.outbound != null)
+				this.outbound.progress(true); // a client that stops reading the file is as slow as one that stops reading messages.
+			WritableByteChannel target = FileTransfer.output(this.socket);
+			long position = 0;
+			while(position < count) {
+				long n = Math.min(FrameCodec.FILE_FRAME, count - position);
+				FileTransfer.send(file, position, n, target);
+				position += n;
+				if(this.outbound != null)
+					this.outbound.progress(position < count); // the client is reading, the messages that wait for the file are not late.
+			}
+		}
+		finally {
+			this.writeLock.unlock();
+			file.close();
+		}
+	}
+
+	@Override
+	public void receiveFile(FileChannel file, long count) throws IOException {
+		FileTransfer.receive(FileTransfer.input(this.socket, this.input), file, 0, count);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return !this.socket.isClosed();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return this.socket.getInetAddress().getHostAddress();
+	}
+
+	@Override
+	public int getRemotePort() {
+		return this.socket.getPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.socket.close();
+	}
+}
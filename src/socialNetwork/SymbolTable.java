@@ -0,0 +1,205 @@
+package socialNetwork;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class numbers the user names, so the structures of the server keep small ints instead of
+ * strings (see SocialGraph, UserTable). The numbers are dense: 0, 1, 2... in the order the names are
+ * met. Names are turned into numbers when a request arrives and back into names when a reply is built.
+ *
+ * When the graph starts from a binary snapshot the names of the snapshot keep their numbers in it
+ * (0 .. users-1, see GraphSnapshot) and are not copied to the heap. The new names get the next numbers.
+ *
+ * The new names are kept in an open addressing table (an int array of slots and an array of names). A lookup
+ * does not lock: it reads the current table, and only when the name is not found it looks again under the lock,
+ * where the names are added. A table is never changed in a way that hides a name from a reader, it is replaced
+ * by a bigger copy when it is half full.
+ */
+public class SymbolTable {
+
+	private final ReentrantLock lock = new ReentrantLock(); // taken to add a name.
+	private volatile GraphSnapshot snapshot;
+	private volatile int base = 0; // number of the first name that is not in the snapshot.
+	private volatile Table table = new Table(1024);
+
+	//numbers the names from the snapshot. It must be set before the first name is added
+	public void setSnapshot(GraphSnapshot snapshot) {
+		this.lock.lock();
+		try {
+			if(this.table.count > 0)
+				throw new IllegalStateException("The names are numbered already");
+			this.snapshot = snapshot;
+			this.base = snapshot.getUserCount();
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//the number of a name, which is given the next number if it is new
+	public int intern(String name) {
+		int id = this.lookup(name);
+		if(id >= 0)
+			return id;
+		this.lock.lock();
+		try {
+			Table table = this.table;
+			int index = table.find(name);
+			if(index >= 0)
+				return this.base + index;
+			if(table.count == table.names.length) {
+				table = table.grow();
+				this.table = table;
+			}
+			index = table.count;
+			table.names[index] = name;
+			table.place(name, index);
+			table.count = index + 1;
+			return this.base + index;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//the number of a name, or -1 if it has none
+	public int idOf(String name) {
+		int id = this.lookup(name);
+		if(id >= 0)
+			return id;
+		this.lock.lock();
+		try {
+			int index = this.table.find(name);
+			return index < 0 ? -1 : this.base + index;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	public String nameOf(int id) {
+		int index = id - this.base;
+		if(index < 0)
+			return this.snapshot.nameOf(id);
+		Table table = this.table;
+		String name = index < table.names.length ? table.names[index] : null;
+		if(name != null)
+			return name;
+		this.lock.lock();
+		try {
+			table = this.table;
+			if(index >= table.count)
+				throw new IllegalArgumentException("No name has the number " + id);
+			return table.names[index];
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//the numbers given so far are 0 .. size()-1
+	public int size() {
+		return this.base + this.table.count;
+	}
+
+	//the names of some numbers as a read only set. The array is sorted and then used by the set
+	public Set<String> names(int[] ids) {
+		Arrays.sort(ids);
+		return new AbstractSet<String>() {
+			@Override
+			public int size() {
+				return ids.length;
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if(!(o instanceof String))
+					return false;
+				int id = idOf((String)o);
+				return id >= 0 && Arrays.binarySearch(ids, id) >= 0;
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.next < ids.length;
+					}
+
+					@Override
+					public String next() {
+						if(this.next >= ids.length)
+							throw new NoSuchElementException();
+						return nameOf(ids[this.next++]);
+					}
+				};
+			}
+		};
+	}
+
+	//looks a name up without the lock. A name that is being added may be missed
+	private int lookup(String name) {
+		GraphSnapshot snapshot = this.snapshot;
+		if(snapshot != null) {
+			int id = snapshot.idOf(name);
+			if(id >= 0)
+				return id;
+		}
+		int index = this.table.find(name);
+		return index < 0 ? -1 : this.base + index;
+	}
+
+	private static class Table {
+		final int[] slots; // index of a name + 1, or 0 for a free slot. Never more than half full.
+		final String[] names;
+		volatile int count = 0; // names in the table, written under the lock after the name and its slot.
+
+		Table(int capacity) {
+			this.slots = new int[capacity * 2];
+			this.names = new String[capacity];
+		}
+
+		int find(String name) {
+			int mask = this.slots.length - 1;
+			for(int i = hash(name) & mask; ; i = (i + 1) & mask) {
+				int slot = this.slots[i];
+				if(slot == 0)
+					return -1;
+				String s = this.names[slot - 1];
+				if(name.equals(s))
+					return slot - 1;
+			}
+		}
+
+		void place(String name, int index) {
+			int mask = this.slots.length - 1;
+			int i = hash(name) & mask;
+			while(this.slots[i] != 0)
+				i = (i + 1) & mask;
+			this.slots[i] = index + 1;
+		}
+
+		Table grow() {
+			Table bigger = new Table(this.names.length * 2);
+			for(int i = 0; i < this.count; i++) {
+				bigger.names[i] = this.names[i];
+				bigger.place(this.names[i], i);
+			}
+			bigger.count = this.count;
+			return bigger;
+		}
+
+		private static int hash(String name) {
+			int h = name.hashCode() * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
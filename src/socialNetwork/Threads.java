@@ -0,0 +1,80 @@
+package socialNetwork;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * This class creates every thread of the server and the client: the client handlers,
+ * the readers of the download acknowledgements, the Listener and the Notifier. With the option
+ * --threads=virtual they are started as virtual threads, so a blocked client does not hold
+ * a platform thread with its stack. Virtual threads need Java 21. They are looked up by
+ * reflection so the code still compiles and runs on older Java versions, where the option
+ * falls back to platform threads. SessionCapacityBenchmark compares the two modes.
+ */
+public class Threads {
+
+	public static final String MODE = Settings.get("threads", "platform"); // platform or virtual.
+	private static final ThreadFactory VIRTUAL_FACTORY = MODE.equals("virtual") ? virtualFactory() : null;
+
+	//returns true if the threads are really started as virtual threads
+	public static boolean isVirtual() {
+		return VIRTUAL_FACTORY != null;
+	}
+
+	//starts a task on a new thread of the selected kind
+	public static Thread start(String name, Runnable task) {
+		Thread t;
+		if(VIRTUAL_FACTORY != null) {
+			t = VIRTUAL_FACTORY.newThread(task);
+			t.setName(name);
+		}
+		else {
+			t = new Thread(task, name);
+		}
+		t.start();
+		return t;
+	}
+
+	/*
+	 * Returns an executor that runs every task on its own thread. In virtual mode
+	 * this is Executors.newVirtualThreadPerTaskExecutor().
+	 */
+	public static ExecutorService newThreadPerTaskExecutor(String name) {
+		if(VIRTUAL_FACTORY != null) {
+			try {
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)m.invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				return Executors.newCachedThreadPool(VIRTUAL_FACTORY);
+			}
+		}
+		return Executors.newCachedThreadPool(r -> new Thread(r, name));
+	}
+
+	/*
+	 * Returns an executor with a fixed number of workers. Virtual threads are
+	 * cheap enough that in virtual mode every task gets its own thread instead,
+	 * so workers is ignored and the number of tasks that run at once is not bounded.
+	 */
+	public static ExecutorService newWorkerPool(String name, int workers) {
+		if(VIRTUAL_FACTORY != null)
+			return newThreadPerTaskExecutor(name);
+		return Executors.newFixedThreadPool(workers, r -> new Thread(r, name));
+	}
+
+	//Thread.ofVirtual().factory() through reflection, or null if this Java has no virtual threads
+	private static ThreadFactory virtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			System.out.println("Virtual threads are not available in Java " + System.getProperty("java.version") + ", using platform threads");
+			return null;
+		}
+	}
+}
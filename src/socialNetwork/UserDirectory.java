@@ -0,0 +1,220 @@
+package socialNetwork;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/*
+ * This class holds the registered users of the social network, keyed by user name, and replaces
+ * the list of < user name , password > pairs that every login walked. Every user has a record of
+ * RECORD_SIZE bytes:
+ *
+ *     [int iterations][16 bytes salt][32 bytes PBKDF2-HMAC-SHA256 of the password]
+ *
+ * The passwords are not kept. registeredUsers.txt holds one line per user, "name pbkdf2$iterations$salt$hash"
+ * (Base64). Lines of the old format, "name password", are hashed when the server starts and the file is
+ * rewritten without them. Hashing is slow on purpose (--users.iterations, 100000), so it runs on a pool of
+ * one thread per core and the handlers get the result as a CompletableFuture, instead of blocking the thread
+ * that reads the connection.
+ *
+ * A Bloom filter of the names answers most "is this name taken" questions of the sign up without the map.
+ */
+public class UserDirectory {
+
+	public static final int RECORD_SIZE = 4 + 16 + 32;
+	private static final String PREFIX = "pbkdf2$";
+
+	private final Path file;
+	private final int iterations = Settings.getInt("users.iterations", 100000);
+	private final ConcurrentHashMap<String, byte[]> records = new ConcurrentHashMap<>();
+	private final ExecutorService hashing;
+	private final SecureRandom random = new SecureRandom();
+	private final ReentrantLock appendLock = new ReentrantLock(); // one registration at a time is appended to the file.
+	private volatile byte[] dummy; // checked for unknown names, so they take as long as known ones. Made at the first one.
+	private volatile BloomFilter names;
+
+	public UserDirectory(String fileName) {
+		this.file = Paths.get(fileName);
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.hashing = Executors.newFixedThreadPool(cores, r -> {
+			Thread t = new Thread(r, "password-hashing");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*
+	 * Reads the users from the file, decoding the lines on all the cores. The passwords of old lines
+	 * are hashed in parallel and the file is rewritten (to a temporary file that replaces it atomically).
+	 */
+	public void load() throws IOException {
+		List<String> lines = Files.readAllLines(this.file, StandardCharsets.UTF_8);
+		ConcurrentLinkedQueue<String[]> legacy = new ConcurrentLinkedQueue<>();
+		lines.parallelStream().forEach(line -> {
+			StringTokenizer s = new StringTokenizer(line);
+			if(s.countTokens() < 2)
+				return;
+			String name = s.nextToken();
+			String password = s.nextToken();
+			if(password.startsWith(PREFIX))
+				this.records.put(name, decode(password));
+			else
+				legacy.add(new String[] {name, password});
+		});
+
+		legacy.parallelStream().forEach(s -> this.records.put(s[0], this.newRecord(s[1])));
+		BloomFilter names = new BloomFilter(Math.max(1024, this.records.size() * 2));
+		this.records.keySet().parallelStream().forEach(names::add);
+		this.names = names;
+
+		if(!legacy.isEmpty()) {
+			Path temporary = Paths.get(this.file + ".tmp");
+			BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8);
+			boolean first = true;
+			for(String line : lines) { // the file is rewritten in the same order.
+				StringTokenizer s = new StringTokenizer(line);
+				if(s.countTokens() < 2)
+					continue;
+				String name = s.nextToken();
+				writer.append(first ? "" : "\n").append(name).append(' ').append(encode(this.records.get(name)));
+				first = false;
+			}
+			writer.close();
+			Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			System.out.println("Hashed the passwords of " + legacy.size() + " users");
+		}
+	}
+
+	public boolean contains(String name) {
+		return this.records.containsKey(name);
+	}
+
+	//true if a user already has this name. Most free names are answered by the Bloom filter alone.
+	public boolean isTaken(String name) {
+		return this.names.mightContain(name) && this.records.containsKey(name);
+	}
+
+	//checks the password of a user on the hashing pool
+	public CompletableFuture<Boolean> verify(String name, String password) {
+		return CompletableFuture.supplyAsync(() -> {
+			byte[] record = this.records.get(name);
+			if(record == null && this.dummy == null)
+				this.dummy = this.newRecord("");
+			boolean matches = matches(record != null ? record : this.dummy, password);
+			return record != null && matches;
+		}, this.hashing);
+	}
+
+	/*
+	 * Registers a new user on the hashing pool. Completes with false if the name is taken, also when
+	 * another handler registers the same name at the same time (only one of them gets the name).
+	 */
+	public CompletableFuture<Boolean> register(String name, String password) {
+		return CompletableFuture.supplyAsync(() -> {
+			if(this.isTaken(name))
+				return false;
+			byte[] record = this.newRecord(password);
+			if(this.records.putIfAbsent(name, record) != null)
+				return false;
+			this.names.add(name);
+			this.append(name, record);
+			return true;
+		}, this.hashing);
+	}
+
+	//the names of all the users (a view that follows the registrations)
+	public Set<String> getNames() {
+		return this.records.keySet();
+	}
+
+	public int size() {
+		return this.records.size();
+	}
+
+	//held around the write to the file, so it is not a monitor that a virtual thread would wait on with its carrier (see UserFiles.profileLock)
+	private void append(String name, byte[] record) {
+		this.appendLock.lock();
+		try {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(this.file.toFile(), true));
+			bw.append("\n"+name+" "+encode(record));
+			bw.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			this.appendLock.unlock();
+		}
+	}
+
+	private byte[] newRecord(String password) {
+		byte[] salt = new byte[16];
+		this.random.nextBytes(salt);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(this.iterations);
+		record.put(salt);
+		record.put(pbkdf2(password, salt, this.iterations));
+		return record.array();
+	}
+
+	private static boolean matches(byte[] record, String password) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		int iterations = buffer.getInt();
+		byte[] salt = new byte[16];
+		byte[] hash = new byte[32];
+		buffer.get(salt);
+		buffer.get(hash);
+		return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations)); // takes the same time wherever the hashes differ.
+	}
+
+	private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+		try {
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String encode(byte[] record) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		int iterations = buffer.getInt();
+		byte[] salt = new byte[16];
+		byte[] hash = new byte[32];
+		buffer.get(salt);
+		buffer.get(hash);
+		Base64.Encoder base64 = Base64.getEncoder();
+		return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+	}
+
+	private static byte[] decode(String s) {
+		String[] parts = s.substring(PREFIX.length()).split("\\$");
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putInt(Integer.parseInt(parts[0]));
+		record.put(Base64.getDecoder().decode(parts[1]));
+		record.put(Base64.getDecoder().decode(parts[2]));
+		return record.array();
+	}
+}
@@ -0,0 +1,144 @@
+package socialNetwork;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class creates the folder of a user in ServerDirectory, with its empty profile and feed
+ * files, the first time the server needs it (login, a new post for the feed, a comment...).
+ * With --server.startup=eager the server creates the folders of all the users when it starts,
+ * as the first version did, otherwise a user that never logs in costs no file operations.
+ *
+ * The profile of a user is written by the handler of the user (a new post) and by the handlers of other
+ * users (an approved comment), so it is only read and written while its lock is held (see profileLock).
+ *
+ * An uploaded file is written to a part file next to it as it arrives (see receive) and renamed when it is
+ * complete, so the server holds no more than a buffer of it whatever its size, and a reader never sees half
+ * a photo. The part file of an upload that was cut off is kept, and the client continues from its length.
+ */
+public class UserFiles {
+
+	private static final Set<String> READY = ConcurrentHashMap.newKeySet(); // users whose folder exists.
+	private static final ReentrantLock[] PROFILE_LOCKS = new ReentrantLock[64]; // the lock of a profile is chosen by its user.
+	private static final int UPLOAD_BUFFER = Settings.getInt("upload.buffer", 64 * 1024); // bytes of an upload held in memory.
+
+	static {
+		for(int i = 0; i < PROFILE_LOCKS.length; i++)
+			PROFILE_LOCKS[i] = new ReentrantLock();
+	}
+
+	//makes sure that the folder and the files of a user exist
+	public static void ensure(String user) {
+		if(READY.contains(user))
+			return;
+		File directory = new File("ServerDirectory/"+user);
+		directory.mkdirs();
+		File clientProfile = new File("ServerDirectory/"+user+"/"+"Profile_998"+user+".txt");
+		File othersProfile = new File("ServerDirectory/"+user+"/"+"Others_998"+user+".txt");
+		try {
+			clientProfile.createNewFile();
+			othersProfile.createNewFile();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		READY.add(user);
+	}
+
+	public static File profile(String user) {
+		return new File("ServerDirectory/"+user+"/"+"Profile_998"+user+".txt");
+	}
+
+	//the file where the notifications of a user go when too many of them wait (see Inbox)
+	public static File inbox(String user) {
+		return new File("ServerDirectory/"+user+"/"+"Inbox_998"+user+".log");
+	}
+
+	/*
+	 * The lock that is held while the profile of a user is read or written. It is held around file operations,
+	 * so it is a ReentrantLock and not a monitor: a virtual thread that waits for it or for the disk inside it
+	 * leaves its carrier thread to the others.
+	 */
+	public static ReentrantLock profileLock(String user) {
+		int h = user.hashCode();
+		return PROFILE_LOCKS[(h ^ (h >>> 16)) & (PROFILE_LOCKS.length - 1)];
+	}
+
+	/*
+	 * The part file of an upload. It is named after the size and the CRC-32 of the whole file, so an upload
+	 * only continues a part file of the same content, and ends with .part so the catalog skips it.
+	 */
+	public static Path partFile(String user, String fileName, long size, int crc) {
+		return Paths.get("ServerDirectory", user, fileName + "." + size + "-" + Integer.toHexString(crc) + ".part");
+	}
+
+	//bytes of an upload that the server already has: the length of its part file
+	public static long uploadedBytes(Path part, long size) throws IOException {
+		return Files.exists(part) ? Math.min(Files.size(part), size) : 0;
+	}
+
+	/*
+	 * Writes the next count bytes of the input to the part file from an offset, through a buffer of
+	 * --upload.buffer bytes (64 KB), and renames it to the file of the user when it is complete.
+	 * If the input ends before, the bytes received so far stay in the part file.
+	 */
+	public static void receive(DataInputStream in, String user, String fileName, Path part, long offset, long count) throws IOException {
+		FileChannel file = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if(file.size() < offset)
+				throw new ProtocolException("Upload of " + fileName + " continues at " + offset + " but the server has " + file.size() + " bytes");
+			file.truncate(offset);
+			byte[] buffer = new byte[(int)Math.max(1, Math.min(UPLOAD_BUFFER, count))];
+			long position = offset;
+			long end = offset + count;
+			while(position < end) {
+				int n = in.read(buffer, 0, (int)Math.min(buffer.length, end - position));
+				if(n < 0)
+					throw new EOFException("Connection closed during the upload of " + fileName);
+				ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+				while(bytes.hasRemaining())
+					position += file.write(bytes, position);
+			}
+		}
+		finally {
+			file.close();
+		}
+		Files.move(part, Paths.get("ServerDirectory", user, fileName), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//appends to the profile of a user. Must be called with its lock held
+	public static void appendProfile(String user, byte[] text) throws IOException {
+		FileOutputStream out = new FileOutputStream(profile(user), true);
+		out.write(text);
+		out.close();
+	}
+
+	//reads the bytes of the profile of a user from an offset to its end. Must be called with its lock held
+	public static byte[] readProfile(String user, long from) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(profile(user), "r");
+		try {
+			byte[] bytes = new byte[(int)(file.length() - from)];
+			file.seek(from);
+			file.readFully(bytes);
+			return bytes;
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package socialNetwork;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/*
+ * A value for every user, kept in an array at the number of the user (see SymbolTable) instead of
+ * a map from the name. The server keeps in such tables the followers of every user and the pending
+ * notifications. Reading a value does not lock. A value is created once, under a lock, when it is
+ * first needed (computeIfAbsent), and the array is replaced by a bigger copy when a number does not fit.
+ */
+public class UserTable<T> {
+
+	private final ReentrantLock lock = new ReentrantLock(); // taken to add a value.
+	private volatile AtomicReferenceArray<T> values = new AtomicReferenceArray<>(1024);
+
+	//the value of a user, or null if he has none
+	public T get(int id) {
+		AtomicReferenceArray<T> values = this.values;
+		return id < values.length() ? values.get(id) : null;
+	}
+
+	//the value of a user, which is created with the function the first time
+	public T computeIfAbsent(int id, IntFunction<T> create) {
+		T value = this.get(id);
+		if(value != null)
+			return value;
+		this.lock.lock();
+		try {
+			AtomicReferenceArray<T> values = this.grow(id);
+			value = values.get(id);
+			if(value == null) {
+				value = create.apply(id);
+				values.set(id, value);
+			}
+			return value;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//sets the value of a user if he has none. Returns the value he had, or null
+	public T putIfAbsent(int id, T value) {
+		T old = this.get(id);
+		if(old != null)
+			return old;
+		this.lock.lock();
+		try {
+			AtomicReferenceArray<T> values = this.grow(id);
+			old = values.get(id);
+			if(old == null)
+				values.set(id, value);
+			return old;
+		}
+		finally {
+			this.lock.unlock();
+		}
+	}
+
+	//makes room for a number. Must be called with the lock held
+	private AtomicReferenceArray<T> grow(int id) {
+		AtomicReferenceArray<T> values = this.values;
+		if(id < values.length())
+			return values;
+		AtomicReferenceArray<T> bigger = new AtomicReferenceArray<>(Math.max(id + 1, values.length() * 2));
+		for(int i = 0; i < values.length(); i++)
+			bigger.set(i, values.get(i));
+		this.values = bigger;
+		return bigger;
+	}
+}